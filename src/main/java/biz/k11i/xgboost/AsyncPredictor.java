@@ -0,0 +1,337 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.util.FMatrix;
+import biz.k11i.xgboost.util.FVec;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous facade of {@link Predictor} which coalesces concurrent requests into batches.
+ * <p>
+ * Feature vectors passed to {@link #predict(FVec)} are queued in a bounded lock-free queue, and a
+ * small number of scorer threads drain the queue into batches of up to {@code maxBatchSize} rows,
+ * waiting at most {@code maxWait} for a batch to fill up. Each batch is evaluated with
+ * {@link Predictor#predict(FMatrix, double[], boolean, int)}, so predictions are identical to
+ * those of {@link Predictor#predict(FVec, boolean, int)}.
+ * </p>
+ * <p>
+ * Feature vectors must not be modified until the returned future completes.
+ * </p>
+ */
+public class AsyncPredictor implements AutoCloseable {
+    public static class Builder {
+        private final Predictor predictor;
+        private int numThreads = 1;
+        private int maxBatchSize = 64;
+        private long maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(200);
+        private int queueCapacity = 4096;
+        private boolean outputMargin;
+        private int ntreeLimit;
+        private ThreadFactory threadFactory;
+
+        Builder(Predictor predictor) {
+            this.predictor = predictor;
+        }
+
+        /**
+         * @param numThreads number of scorer threads (default: {@code 1})
+         * @return this builder
+         */
+        public Builder numThreads(int numThreads) {
+            if (numThreads <= 0) {
+                throw new IllegalArgumentException("numThreads must be positive: " + numThreads);
+            }
+            this.numThreads = numThreads;
+            return this;
+        }
+
+        /**
+         * @param maxBatchSize maximum number of rows evaluated at once (default: {@code 64})
+         * @return this builder
+         */
+        public Builder maxBatchSize(int maxBatchSize) {
+            if (maxBatchSize <= 0) {
+                throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+            }
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * Sets how long a scorer thread waits for more requests after it has taken the first
+         * request of a batch. This bounds the latency added by batching.
+         *
+         * @param maxWait maximum wait time (default: 200 microseconds)
+         * @param unit    unit of {@code maxWait}
+         * @return this builder
+         */
+        public Builder maxWait(long maxWait, TimeUnit unit) {
+            if (maxWait < 0) {
+                throw new IllegalArgumentException("maxWait must not be negative: " + maxWait);
+            }
+            this.maxWaitNanos = unit.toNanos(maxWait);
+            return this;
+        }
+
+        /**
+         * @param queueCapacity maximum number of queued requests; further requests are rejected
+         *                      until scorer threads catch up (default: {@code 4096})
+         * @return this builder
+         */
+        public Builder queueCapacity(int queueCapacity) {
+            if (queueCapacity <= 0) {
+                throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+            }
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * @param outputMargin whether to only predict margin value instead of transformed
+         *                     prediction (default: {@code false})
+         * @return this builder
+         */
+        public Builder outputMargin(boolean outputMargin) {
+            this.outputMargin = outputMargin;
+            return this;
+        }
+
+        /**
+         * @param ntreeLimit limit the number of trees used in prediction (default: {@code 0},
+         *                   i.e. all trees)
+         * @return this builder
+         */
+        public Builder ntreeLimit(int ntreeLimit) {
+            this.ntreeLimit = ntreeLimit;
+            return this;
+        }
+
+        /**
+         * @param threadFactory factory of scorer threads (default: daemon threads)
+         * @return this builder
+         */
+        public Builder threadFactory(ThreadFactory threadFactory) {
+            this.threadFactory = threadFactory;
+            return this;
+        }
+
+        public AsyncPredictor build() {
+            return new AsyncPredictor(this);
+        }
+    }
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final Predictor predictor;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final int queueCapacity;
+    private final boolean outputMargin;
+    private final int ntreeLimit;
+    private final int predictionSize;
+
+    private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queueSize = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Thread> idleScorers = new ConcurrentLinkedQueue<>();
+    private final Thread[] scorers;
+    private volatile boolean closed;
+
+    private static class Request {
+        final FVec feat;
+        final CompletableFuture<double[]> future = new CompletableFuture<>();
+
+        Request(FVec feat) {
+            this.feat = feat;
+        }
+    }
+
+    /**
+     * Creates a builder of {@link AsyncPredictor}.
+     *
+     * @param predictor predictor evaluating batches
+     * @return builder
+     */
+    public static Builder builder(Predictor predictor) {
+        return new Builder(predictor);
+    }
+
+    private AsyncPredictor(Builder builder) {
+        predictor = builder.predictor;
+        maxBatchSize = builder.maxBatchSize;
+        maxWaitNanos = builder.maxWaitNanos;
+        queueCapacity = builder.queueCapacity;
+        outputMargin = builder.outputMargin;
+        ntreeLimit = builder.ntreeLimit;
+        predictionSize = predictor.getPredictionSize(outputMargin);
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = builder.threadFactory != null ? builder.threadFactory : r -> {
+            Thread thread = new Thread(r, "xgboost-predictor-scorer-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        scorers = new Thread[builder.numThreads];
+        for (int i = 0; i < scorers.length; i++) {
+            scorers[i] = threadFactory.newThread(this::runScorer);
+        }
+        for (Thread scorer : scorers) {
+            scorer.start();
+        }
+    }
+
+    /**
+     * Queues a feature vector to be predicted.
+     *
+     * @param feat feature vector
+     * @return future completed with prediction values
+     * @throws RejectedExecutionException if the queue is full or this predictor is closed
+     */
+    public CompletableFuture<double[]> predict(FVec feat) {
+        if (closed) {
+            throw new RejectedExecutionException("AsyncPredictor is closed");
+        }
+        if (queueSize.incrementAndGet() > queueCapacity) {
+            queueSize.decrementAndGet();
+            throw new RejectedExecutionException("Queue is full: capacity = " + queueCapacity);
+        }
+
+        Request request = new Request(feat);
+        queue.offer(request);
+
+        // close() may have drained the queue between the check above and the offer, in which case
+        // nobody would take the request. Taking it back fails it here; otherwise a scorer or the
+        // drain in close() has taken it and completes it.
+        if (closed && queue.remove(request)) {
+            queueSize.decrementAndGet();
+            throw new RejectedExecutionException("AsyncPredictor is closed");
+        }
+
+        Thread idleScorer = idleScorers.poll();
+        if (idleScorer != null) {
+            LockSupport.unpark(idleScorer);
+        }
+
+        return request.future;
+    }
+
+    /**
+     * @return number of queued requests not yet taken by scorer threads
+     */
+    public int queueSize() {
+        return queueSize.get();
+    }
+
+    /**
+     * Stops accepting requests, and waits for the scorer threads to finish queued requests.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread scorer : scorers) {
+            LockSupport.unpark(scorer);
+        }
+
+        boolean interrupted = false;
+        for (Thread scorer : scorers) {
+            while (scorer.isAlive()) {
+                try {
+                    scorer.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Fails requests queued concurrently with closing after the scorers exited
+        Request request;
+        while ((request = poll()) != null) {
+            request.future.completeExceptionally(new RejectedExecutionException("AsyncPredictor is closed"));
+        }
+    }
+
+    private Request poll() {
+        Request request = queue.poll();
+        if (request != null) {
+            queueSize.decrementAndGet();
+        }
+        return request;
+    }
+
+    private void runScorer() {
+        Thread self = Thread.currentThread();
+        Request[] batch = new Request[maxBatchSize];
+        FVec[] rows = new FVec[maxBatchSize];
+        double[] out = new double[maxBatchSize * predictionSize];
+
+        while (true) {
+            Request first = poll();
+            if (first == null) {
+                if (closed) {
+                    return;
+                }
+
+                // Registers itself before re-checking the queue, so that a request queued
+                // in between never goes unnoticed
+                idleScorers.offer(self);
+                if (queue.isEmpty() && !closed) {
+                    LockSupport.park(this);
+                }
+                idleScorers.remove(self);
+                continue;
+            }
+
+            batch[0] = first;
+            int size = 1;
+            long deadline = System.nanoTime() + maxWaitNanos;
+            while (size < maxBatchSize) {
+                Request request = poll();
+                if (request != null) {
+                    batch[size++] = request;
+                    continue;
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || closed) {
+                    break;
+                }
+                LockSupport.parkNanos(this, Math.min(remaining, MAX_PARK_NANOS));
+            }
+
+            evaluate(batch, rows, out, size);
+        }
+    }
+
+    private void evaluate(Request[] batch, FVec[] rows, double[] out, int size) {
+        for (int i = 0; i < size; i++) {
+            rows[i] = batch[i].feat;
+        }
+
+        try {
+            predictor.predict(FMatrix.Transformer.fromRows(rows, size), out, outputMargin, ntreeLimit);
+            for (int i = 0; i < size; i++) {
+                batch[i].future.complete(
+                        Arrays.copyOfRange(out, i * predictionSize, (i + 1) * predictionSize));
+            }
+        } catch (Throwable e) {
+            // Errors are passed to the futures too, so that the scorer keeps serving the queue and
+            // no request of the batch is left pending
+            for (int i = 0; i < size; i++) {
+                batch[i].future.completeExceptionally(e);
+            }
+        } finally {
+            Arrays.fill(batch, 0, size, null);
+            Arrays.fill(rows, 0, size, null);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package biz.k11i.xgboost;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Threshold of a prediction mapped into margin space, used by
+ * {@link Predictor#predictAboveThreshold(biz.k11i.xgboost.util.FVec, double)} to compare bounds of
+ * the margin without transforming them.
+ * <p>
+ * The transform from margin to prediction must be monotone non-decreasing and must not return
+ * NaN. This holds for the single value objectives built in, and is assumed for their Jafama
+ * versions ({@code ObjFunction.useFastMathExp(true)}) and for objectives registered with
+ * {@code ObjFunction.register()}. Then a margin is above the threshold iff it is at least
+ * {@link #getAboveMargin()}, the smallest such margin, which is found once by bisection over all
+ * doubles.
+ * </p>
+ */
+public class MarginThreshold {
+    private final DoubleUnaryOperator transform;
+    private final double threshold;
+    private final double notAboveMargin;
+    private final double aboveMargin;
+
+    /**
+     * @param transform monotone non-decreasing function mapping a margin to the prediction
+     * @param threshold threshold of the prediction
+     */
+    public MarginThreshold(DoubleUnaryOperator transform, double threshold) {
+        this.transform = transform;
+        this.threshold = threshold;
+
+        // Bisects the doubles in their order as longs, keeping transform(lo) <= threshold < transform(hi)
+        long lo = orderedBits(Double.NEGATIVE_INFINITY);
+        long hi = orderedBits(Double.POSITIVE_INFINITY);
+        if (isAbove(Double.NEGATIVE_INFINITY)) {
+            notAboveMargin = Double.NaN;
+            aboveMargin = Double.NEGATIVE_INFINITY;
+        } else if (!isAbove(Double.POSITIVE_INFINITY)) {
+            notAboveMargin = Double.POSITIVE_INFINITY;
+            aboveMargin = Double.NaN;
+        } else {
+            // Floor of the midpoint, as hi - lo may overflow
+            for (long mid = (lo >> 1) + (hi >> 1) + (lo & hi & 1); mid != lo;
+                 mid = (lo >> 1) + (hi >> 1) + (lo & hi & 1)) {
+                if (isAbove(fromOrderedBits(mid))) {
+                    hi = mid;
+                } else {
+                    lo = mid;
+                }
+            }
+            notAboveMargin = fromOrderedBits(lo);
+            aboveMargin = fromOrderedBits(hi);
+        }
+    }
+
+    /**
+     * Maps doubles other than NaN to longs in the same order, with -0.0 right below 0.0.
+     */
+    private static long orderedBits(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        return bits >= 0 ? bits : bits ^ Long.MAX_VALUE;
+    }
+
+    private static double fromOrderedBits(long ordered) {
+        return Double.longBitsToDouble(ordered >= 0 ? ordered : ordered ^ Long.MAX_VALUE);
+    }
+
+    /**
+     * @return threshold of the prediction
+     */
+    public double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Gets the largest margin whose prediction is not above the threshold.
+     *
+     * @return margin, or NaN if every prediction is above the threshold
+     */
+    public double getNotAboveMargin() {
+        return notAboveMargin;
+    }
+
+    /**
+     * Gets the smallest margin whose prediction is above the threshold.
+     *
+     * @return margin, or NaN if no prediction is above the threshold
+     */
+    public double getAboveMargin() {
+        return aboveMargin;
+    }
+
+    /**
+     * Decides whether the prediction of the given margin is above the threshold by transforming
+     * it.
+     *
+     * @param margin margin
+     * @return {@code true} if the transformed margin is greater than the threshold
+     */
+    public boolean isAbove(double margin) {
+        return transform.applyAsDouble(margin) > threshold;
+    }
+}
@@ -1,23 +1,52 @@
 package biz.k11i.xgboost;
 
+import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.gbm.GBTree;
 import biz.k11i.xgboost.gbm.GradBooster;
 import biz.k11i.xgboost.learner.ObjFunction;
+import biz.k11i.xgboost.tree.ForestArena;
+import biz.k11i.xgboost.util.FMatrix;
 import biz.k11i.xgboost.util.FVec;
+import biz.k11i.xgboost.util.FeatureMap;
 import biz.k11i.xgboost.util.ModelReader;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.DoubleUnaryOperator;
 
 /**
  * Predicts using the Xgboost model.
  */
 public class Predictor implements Serializable {
+    private static final int NUM_CORES = Runtime.getRuntime().availableProcessors();
+    private static final int PARALLEL_CHUNKS_PER_CORE = 4;
+    // Upper bound of the thread-local buffer margins of a batch are computed into when they can't
+    // be computed in the output array, 256 KiB
+    private static final int BATCH_BUFFER_DOUBLES = 1 << 15;
+
     private ModelParam mparam;
     private String name_obj;
     private String name_gbm;
     private ObjFunction obj;
     private GradBooster gbm;
+    private FeatureMap featureMap;
+    private transient ThreadLocal<double[]> marginBuffer;
+    private transient ThreadLocal<double[]> batchBuffer;
+    private transient int marginSize;
+    private transient int transformedSize;
+    // Last thresholds mapped into margin space, reused while callers keep the same threshold
+    private transient volatile MarginThreshold predictionThreshold;
+    private transient volatile MarginThreshold marginThreshold;
 
     /**
      * Instantiates with the Xgboost model
@@ -26,21 +55,53 @@ public class Predictor implements Serializable {
      * @throws IOException If an I/O error occurs
      */
     public Predictor(InputStream in) throws IOException {
+        this(in, PredictorConfiguration.DEFAULT);
+    }
+
+    /**
+     * Instantiates with the Xgboost model
+     *
+     * @param in            input stream
+     * @param configuration configuration applied when the model is loaded
+     * @throws IOException If an I/O error occurs
+     */
+    public Predictor(InputStream in, PredictorConfiguration configuration) throws IOException {
         ModelReader reader = new ModelReader(in);
 
         mparam = new ModelParam(reader);
         name_obj = reader.readString();
         name_gbm = reader.readString();
 
-        initObjGbm();
+        initObjGbm(configuration);
 
         gbm.loadModel(reader, mparam.saved_with_pbuffer != 0);
+        initPredictionSizes();
     }
 
-    void initObjGbm() {
+    void initObjGbm(PredictorConfiguration configuration) {
         obj = ObjFunction.fromName(name_obj);
-        gbm = GradBooster.Factory.createGradBooster(name_gbm);
+        gbm = GradBooster.Factory.createGradBooster(name_gbm, configuration);
         gbm.setNumClass(mparam.num_class);
+        initMarginBuffer();
+    }
+
+    private void initMarginBuffer() {
+        marginBuffer = ThreadLocal.withInitial(() -> new double[gbm.getNumOutputGroup()]);
+        batchBuffer = ThreadLocal.withInitial(() -> {
+            int numGroups = gbm.getNumOutputGroup();
+            return new double[Math.max(1, BATCH_BUFFER_DOUBLES / numGroups) * numGroups];
+        });
+    }
+
+    private void initPredictionSizes() {
+        marginSize = gbm.getNumOutputGroup();
+        transformedSize = obj.predTransform(new double[marginSize]).length;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        initMarginBuffer();
+        initPredictionSizes();
     }
 
     /**
@@ -80,6 +141,32 @@ public class Predictor implements Serializable {
         return preds;
     }
 
+    /**
+     * Generates predictions for given feature vector into given array.
+     * <p>
+     * Unlike {@link #predict(FVec, boolean, int)}, this method does not allocate once warmed up.
+     * </p>
+     *
+     * @param feat          feature vector
+     * @param output_margin whether to only predict margin value instead of transformed prediction
+     * @param ntree_limit   limit the number of trees used in prediction
+     * @param out           array to write {@link #getPredictionSize(boolean)} prediction values to
+     * @param outOffset     position in {@code out} of the first prediction value
+     * @return number of prediction values written
+     */
+    public int predict(FVec feat, boolean output_margin, int ntree_limit, double[] out, int outOffset) {
+        int numGroups = gbm.getNumOutputGroup();
+        double[] margins = marginBuffer.get();
+        gbm.predict(feat, ntree_limit, margins, 0);
+        for (int i = 0; i < numGroups; i++) {
+            margins[i] += mparam.base_score;
+        }
+
+        int size = output_margin ? numGroups : obj.predTransform(margins, 0, numGroups);
+        System.arraycopy(margins, 0, out, outOffset, size);
+        return size;
+    }
+
     double[] predictRaw(FVec feat, int ntree_limit) {
         double[] preds = gbm.predict(feat, ntree_limit);
         for (int i = 0; i < preds.length; i++) {
@@ -88,6 +175,274 @@ public class Predictor implements Serializable {
         return preds;
     }
 
+    /**
+     * Gets the number of prediction values per feature vector.
+     *
+     * @param output_margin whether to count margin values instead of transformed predictions
+     * @return number of prediction values, i.e. the length of the array returned by
+     * {@link #predict(FVec, boolean)}
+     */
+    public int getPredictionSize(boolean output_margin) {
+        return output_margin ? marginSize : transformedSize;
+    }
+
+    /**
+     * Generates predictions for each row of given feature matrix.
+     *
+     * @param batch feature matrix
+     * @param out   array to write prediction values to; row {@code i} is written to
+     *              {@code out[i * getPredictionSize(false) ...]}
+     */
+    public void predict(FMatrix batch, double[] out) {
+        predict(batch, out, false);
+    }
+
+    /**
+     * Generates predictions for each row of given feature matrix.
+     *
+     * @param batch         feature matrix
+     * @param out           array to write prediction values to; row {@code i} is written to
+     *                      {@code out[i * getPredictionSize(output_margin) ...]}
+     * @param output_margin whether to only predict margin value instead of transformed prediction
+     */
+    public void predict(FMatrix batch, double[] out, boolean output_margin) {
+        predict(batch, out, output_margin, 0);
+    }
+
+    /**
+     * Generates predictions for each row of given feature matrix.
+     * <p>
+     * Results are identical to calling {@link #predict(FVec, boolean, int)} for each row, but
+     * the batch is evaluated tree by tree, which keeps each tree in cache across rows.
+     * </p>
+     *
+     * @param batch         feature matrix
+     * @param out           array to write prediction values to; row {@code i} is written to
+     *                      {@code out[i * getPredictionSize(output_margin) ...]}
+     * @param output_margin whether to only predict margin value instead of transformed prediction
+     * @param ntree_limit   limit the number of trees used in prediction
+     */
+    public void predict(FMatrix batch, double[] out, boolean output_margin, int ntree_limit) {
+        int predictionSize = getPredictionSize(output_margin);
+        checkOutputSize(batch, out.length, predictionSize);
+        predictBatch(batch, out, 0, predictionSize, output_margin, ntree_limit);
+    }
+
+    /**
+     * Generates predictions for each row of given feature matrix into a float array.
+     * <p>
+     * Values are computed exactly like {@link #predict(FMatrix, double[], boolean, int)} and then
+     * narrowed to float, going through a bounded thread-local buffer.
+     * </p>
+     *
+     * @param batch         feature matrix
+     * @param out           array to write prediction values to; row {@code i} is written to
+     *                      {@code out[i * getPredictionSize(output_margin) ...]}
+     * @param output_margin whether to only predict margin value instead of transformed prediction
+     * @param ntree_limit   limit the number of trees used in prediction
+     */
+    public void predict(FMatrix batch, float[] out, boolean output_margin, int ntree_limit) {
+        int predictionSize = getPredictionSize(output_margin);
+        checkOutputSize(batch, out.length, predictionSize);
+
+        int numRows = batch.numRows();
+        int numGroups = gbm.getNumOutputGroup();
+        double[] margins = batchBuffer.get();
+        int chunkRows = margins.length / numGroups;
+
+        for (int begin = 0; begin < numRows; begin += chunkRows) {
+            int end = Math.min(numRows, begin + chunkRows);
+            predictMargins(batch.slice(begin, end), ntree_limit, margins, 0);
+            for (int i = 0; i < end - begin; i++) {
+                if (!output_margin) {
+                    obj.predTransform(margins, i * numGroups, numGroups);
+                }
+                for (int j = 0; j < predictionSize; j++) {
+                    out[(begin + i) * predictionSize + j] = (float) margins[i * numGroups + j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates predictions for each row of given feature matrix in parallel on the common
+     * {@link ForkJoinPool}.
+     *
+     * @see #predictParallel(FMatrix, double[], boolean, int, Executor, int)
+     */
+    public void predictParallel(
+            FMatrix batch, double[] out, boolean output_margin, int ntree_limit, int minChunkRows) {
+        predictParallel(batch, out, output_margin, ntree_limit, ForkJoinPool.commonPool(), minChunkRows);
+    }
+
+    /**
+     * Generates predictions for each row of given feature matrix in parallel.
+     * <p>
+     * Rows are split into contiguous chunks of at least {@code minChunkRows} rows, each of which
+     * is predicted like {@link #predict(FMatrix, double[], boolean, int)} on a worker thread with
+     * its own thread-local scratch buffers. Rows are independent, so results are identical to
+     * sequential prediction. This method returns once every row has been predicted.
+     * </p>
+     *
+     * @param batch         feature matrix
+     * @param out           array to write prediction values to; row {@code i} is written to
+     *                      {@code out[i * getPredictionSize(output_margin) ...]}
+     * @param output_margin whether to only predict margin value instead of transformed prediction
+     * @param ntree_limit   limit the number of trees used in prediction
+     * @param executor      executor running the chunks; a {@link ForkJoinPool} splits the rows
+     *                      recursively, other executors receive a fixed number of chunks
+     * @param minChunkRows  minimum number of rows predicted by a single task
+     */
+    public void predictParallel(
+            FMatrix batch, double[] out, boolean output_margin, int ntree_limit,
+            Executor executor, int minChunkRows) {
+        if (minChunkRows <= 0) {
+            throw new IllegalArgumentException("minChunkRows must be positive: " + minChunkRows);
+        }
+
+        int predictionSize = getPredictionSize(output_margin);
+        checkOutputSize(batch, out.length, predictionSize);
+
+        int numRows = batch.numRows();
+        if (executor instanceof ForkJoinPool) {
+            ((ForkJoinPool) executor).invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    predictRecursively(batch, 0, numRows, out, predictionSize, output_margin, ntree_limit, minChunkRows);
+                }
+            });
+            return;
+        }
+
+        int chunkRows = Math.max(minChunkRows,
+                (numRows + PARALLEL_CHUNKS_PER_CORE * NUM_CORES - 1) / (PARALLEL_CHUNKS_PER_CORE * NUM_CORES));
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int begin = 0; begin < numRows; begin += chunkRows) {
+            final int chunkBegin = begin;
+            final int chunkEnd = Math.min(numRows, begin + chunkRows);
+            futures.add(CompletableFuture.runAsync(
+                    () -> predictBatch(batch.slice(chunkBegin, chunkEnd), out, chunkBegin * predictionSize,
+                            predictionSize, output_margin, ntree_limit),
+                    executor));
+        }
+
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void predictRecursively(
+            FMatrix batch, int begin, int end, double[] out, int predictionSize,
+            boolean output_margin, int ntree_limit, int minChunkRows) {
+        if (end - begin <= minChunkRows) {
+            predictBatch(batch.slice(begin, end), out, begin * predictionSize,
+                    predictionSize, output_margin, ntree_limit);
+            return;
+        }
+
+        int mid = (begin + end) >>> 1;
+        ForkJoinTask.invokeAll(
+                new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        predictRecursively(batch, begin, mid, out, predictionSize, output_margin, ntree_limit, minChunkRows);
+                    }
+                },
+                new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        predictRecursively(batch, mid, end, out, predictionSize, output_margin, ntree_limit, minChunkRows);
+                    }
+                });
+    }
+
+    private static void checkOutputSize(FMatrix batch, int outLength, int predictionSize) {
+        if (outLength < (long) batch.numRows() * predictionSize) {
+            throw new IllegalArgumentException(String.format(
+                    "Output array is too small: expected = %d, actual = %d",
+                    (long) batch.numRows() * predictionSize, outLength));
+        }
+    }
+
+    private void predictBatch(
+            FMatrix batch, double[] out, int outOffset, int predictionSize,
+            boolean output_margin, int ntree_limit) {
+        int numRows = batch.numRows();
+        int numGroups = gbm.getNumOutputGroup();
+
+        if (predictionSize == numGroups) {
+            // Margins are computed and transformed in place
+            predictMargins(batch, ntree_limit, out, outOffset);
+            if (!output_margin) {
+                for (int i = 0; i < numRows; i++) {
+                    obj.predTransform(out, outOffset + i * numGroups, numGroups);
+                }
+            }
+            return;
+        }
+
+        // The transformation shrinks the values of each row, e.g. "multi:softmax", so margins are
+        // computed chunk by chunk into a bounded thread-local buffer
+        double[] margins = batchBuffer.get();
+        int chunkRows = margins.length / numGroups;
+        for (int begin = 0; begin < numRows; begin += chunkRows) {
+            int end = Math.min(numRows, begin + chunkRows);
+            predictMargins(batch.slice(begin, end), ntree_limit, margins, 0);
+            for (int i = 0; i < end - begin; i++) {
+                obj.predTransform(margins, i * numGroups, numGroups);
+                System.arraycopy(margins, i * numGroups, out, outOffset + (begin + i) * predictionSize, predictionSize);
+            }
+        }
+    }
+
+    private void predictMargins(FMatrix batch, int ntree_limit, double[] margins, int marginOffset) {
+        gbm.predict(batch, ntree_limit, margins, marginOffset);
+        for (int i = 0; i < batch.numRows() * gbm.getNumOutputGroup(); i++) {
+            margins[marginOffset + i] += mparam.base_score;
+        }
+    }
+
+    /**
+     * Generates predictions for each row of given sparse matrix in CSR (compressed sparse row)
+     * format.
+     *
+     * @param indptr        row pointers, whose length is the number of rows plus one
+     * @param indices       feature indices, in strictly ascending order within each row (not verified)
+     * @param values        feature values corresponding to {@code indices}
+     * @param out           array to write prediction values to; row {@code i} is written to
+     *                      {@code out[i * getPredictionSize(output_margin) ...]}
+     * @param output_margin whether to only predict margin value instead of transformed prediction
+     */
+    public void predictCSR(int[] indptr, int[] indices, float[] values, double[] out, boolean output_margin) {
+        predictCSR(indptr, indices, values, 0, indptr.length - 1, out, output_margin, 0);
+    }
+
+    /**
+     * Generates predictions for a range of rows of given sparse matrix in CSR (compressed sparse
+     * row) format, without building a feature vector per row.
+     *
+     * @param indptr        row pointers
+     * @param indices       feature indices, in strictly ascending order within each row (not verified)
+     * @param values        feature values corresponding to {@code indices}
+     * @param rowBegin      first row to predict (inclusive)
+     * @param rowEnd        last row to predict (exclusive)
+     * @param out           array to write prediction values to; row {@code rowBegin + i} is
+     *                      written to {@code out[i * getPredictionSize(output_margin) ...]}
+     * @param output_margin whether to only predict margin value instead of transformed prediction
+     * @param ntree_limit   limit the number of trees used in prediction
+     */
+    public void predictCSR(
+            int[] indptr, int[] indices, float[] values, int rowBegin, int rowEnd,
+            double[] out, boolean output_margin, int ntree_limit) {
+        predict(FMatrix.Transformer.fromCSR(indptr, indices, values, rowBegin, rowEnd),
+                out, output_margin, ntree_limit);
+    }
+
     /**
      * Generates a prediction for given feature vector.
      * <p>
@@ -134,6 +489,63 @@ public class Predictor implements Serializable {
         return pred;
     }
 
+    /**
+     * Determines whether the prediction for given feature vector is greater than the threshold,
+     * e.g. for gating decisions on "binary:logistic" probabilities.
+     * <p>
+     * This method only works when the model is "gbtree" and outputs single value. Trees are
+     * evaluated only until the remaining trees can no longer change the decision, which is
+     * exactly the same as comparing {@link #predictSingle(FVec)} to the threshold.
+     * </p>
+     *
+     * @param feat      feature vector
+     * @param threshold threshold of the prediction value
+     * @return decision and the number of trees evaluated
+     */
+    public ThresholdPrediction predictAboveThreshold(FVec feat, double threshold) {
+        return predictAboveThreshold(feat, threshold, false, 0);
+    }
+
+    /**
+     * Determines whether the prediction for given feature vector is greater than the threshold.
+     * <p>
+     * This method only works when the model is "gbtree" and outputs single value. The threshold
+     * is mapped into margin space once per distinct threshold, which requires the objective's
+     * transform to be monotone non-decreasing as described in {@link MarginThreshold}; this
+     * includes objectives registered with {@link ObjFunction#register(String, ObjFunction)} and
+     * the Jafama versions enabled by {@link ObjFunction#useFastMathExp(boolean)}.
+     * </p>
+     *
+     * @param feat          feature vector
+     * @param threshold     threshold of the prediction value
+     * @param output_margin whether to compare margin value instead of transformed prediction
+     * @param ntree_limit   limit the number of trees used in prediction
+     * @return decision and the number of trees evaluated
+     * @see #predictAboveThreshold(FVec, double)
+     */
+    public ThresholdPrediction predictAboveThreshold(
+            FVec feat, double threshold, boolean output_margin, int ntree_limit) {
+        if (marginSize != 1) {
+            // The transforms of multiple values are not defined on a single margin
+            throw new IllegalStateException(
+                    "Can't invoke predictAboveThreshold() because this model outputs multiple values: " + marginSize);
+        }
+        return gbm.predictAboveThreshold(
+                feat, ntree_limit, mparam.base_score, toMarginThreshold(threshold, output_margin));
+    }
+
+    private MarginThreshold toMarginThreshold(double threshold, boolean output_margin) {
+        MarginThreshold cached = output_margin ? marginThreshold : predictionThreshold;
+        if (cached != null && Double.compare(cached.getThreshold(), threshold) == 0) {
+            return cached;
+        }
+
+        if (output_margin) {
+            return marginThreshold = new MarginThreshold(DoubleUnaryOperator.identity(), threshold);
+        }
+        return predictionThreshold = new MarginThreshold(obj::predTransform, threshold);
+    }
+
     double predictSingleRaw(FVec feat, int ntree_limit) {
         return gbm.predictSingle(feat, ntree_limit) + mparam.base_score;
     }
@@ -160,6 +572,53 @@ public class Predictor implements Serializable {
         return gbm.predictLeaf(feat, ntree_limit);
     }
 
+    /**
+     * Predicts leaf index of each tree into given array, without allocating.
+     *
+     * @param feat        feature vector
+     * @param ntree_limit limit
+     * @param out         array to write leaf indexes to
+     * @param outOffset   position in {@code out} of the first leaf index
+     * @return number of leaf indexes written
+     */
+    public int predictLeaf(FVec feat, int ntree_limit, int[] out, int outOffset) {
+        return gbm.predictLeaf(feat, ntree_limit, out, outOffset);
+    }
+
+    /**
+     * Loads the feature map ({@code featmap.txt}) of the model, so that feature vectors can be
+     * built from feature names with {@link FeatureMap#newFVec()}.
+     *
+     * @param in input stream of the feature map
+     * @return feature map restricted to the features the model uses
+     * @throws IOException If an I/O error occurs or the feature map is malformed
+     */
+    public FeatureMap loadFeatureMap(InputStream in) throws IOException {
+        featureMap = FeatureMap.load(in, gbm.getUsedFeatures());
+        return featureMap;
+    }
+
+    /**
+     * Gets the feature map loaded by {@link #loadFeatureMap(InputStream)}.
+     *
+     * @return feature map, or {@code null} if not loaded
+     */
+    public FeatureMap getFeatureMap() {
+        return featureMap;
+    }
+
+    /**
+     * Gets the arena the trees are packed into when loaded with
+     * {@link ForestArena#factory(boolean)}. The arena holds the nodes of all trees of the model,
+     * which are not kept elsewhere, so its {@code toString()} reports the node bytes the model
+     * retains, with and without deduplication.
+     *
+     * @return forest arena, or {@code null} if not used
+     */
+    public ForestArena getForestArena() {
+        return gbm instanceof GBTree ? ((GBTree) gbm).getForestArena() : null;
+    }
+
     /**
      * Parameters.
      */
@@ -0,0 +1,37 @@
+package biz.k11i.xgboost;
+
+/**
+ * Result of {@link Predictor#predictAboveThreshold(biz.k11i.xgboost.util.FVec, double)}.
+ */
+public class ThresholdPrediction {
+    private final boolean aboveThreshold;
+    private final int evaluatedTrees;
+
+    public ThresholdPrediction(boolean aboveThreshold, int evaluatedTrees) {
+        this.aboveThreshold = aboveThreshold;
+        this.evaluatedTrees = evaluatedTrees;
+    }
+
+    /**
+     * Gets whether the prediction is above the threshold.
+     *
+     * @return {@code true} if the prediction is greater than the threshold
+     */
+    public boolean isAboveThreshold() {
+        return aboveThreshold;
+    }
+
+    /**
+     * Gets the number of trees evaluated before the decision was settled.
+     *
+     * @return number of evaluated trees
+     */
+    public int getEvaluatedTrees() {
+        return evaluatedTrees;
+    }
+
+    @Override
+    public String toString() {
+        return "ThresholdPrediction{aboveThreshold=" + aboveThreshold + ", evaluatedTrees=" + evaluatedTrees + "}";
+    }
+}
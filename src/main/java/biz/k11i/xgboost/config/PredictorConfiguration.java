@@ -0,0 +1,228 @@
+package biz.k11i.xgboost.config;
+
+import biz.k11i.xgboost.tree.AbstractRegTree;
+import biz.k11i.xgboost.tree.CompactRegTree;
+import biz.k11i.xgboost.tree.ForestEngine;
+import biz.k11i.xgboost.tree.PreorderRegTree;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+/**
+ * Configuration of {@link biz.k11i.xgboost.Predictor}, applied when the model is loaded.
+ */
+public class PredictorConfiguration {
+    public static class Builder {
+        private PredictorConfiguration predictorConfiguration;
+
+        Builder() {
+            predictorConfiguration = new PredictorConfiguration();
+        }
+
+        /**
+         * Rewrites the split feature indices of a tree model into a dense range covering only the
+         * features used by the forest, and gathers those features from the input into a small
+         * reusable array once per prediction.
+         * <p>
+         * This pays off for large forests splitting on a few hundred features scattered across a
+         * wide or sparse feature space, because tree traversal then only touches a cache-resident
+         * array instead of probing the input feature vector at every node.
+         * </p>
+         *
+         * @param remapFeatures whether to remap features (default: {@code false})
+         * @return this builder
+         */
+        public Builder remapFeatures(boolean remapFeatures) {
+            predictorConfiguration.remapFeatures = remapFeatures;
+            return this;
+        }
+
+        /**
+         * Sets the strategy creating the tree implementation of a tree model, e.g.
+         * {@code param -> new CompiledRegTree()} to compile trees into bytecode.
+         *
+         * @param treeCreationStrategy function creating an empty tree for the parameters of each
+         *                             tree (default: creates {@link CompactRegTree} if the tree
+         *                             fits, and {@link PreorderRegTree} otherwise)
+         * @return this builder
+         */
+        public Builder treeCreationStrategy(
+                Function<AbstractRegTree.Param, AbstractRegTree> treeCreationStrategy) {
+            if (treeCreationStrategy == null) {
+                throw new IllegalArgumentException("treeCreationStrategy must not be null");
+            }
+            predictorConfiguration.treeCreationStrategy = treeCreationStrategy;
+            return this;
+        }
+
+        /**
+         * Evaluates the trees of each output group of a tree model with a {@link ForestEngine},
+         * e.g. {@code QuickScorer.factory()}, instead of tree by tree.
+         * <p>
+         * Leaf index prediction still evaluates trees one by one.
+         * </p>
+         *
+         * @param forestEngine factory of forest engines, or {@code null} to evaluate tree by
+         *                     tree (default: {@code null})
+         * @return this builder
+         */
+        public Builder forestEngine(ForestEngine.Factory forestEngine) {
+            predictorConfiguration.forestEngine = forestEngine;
+            return this;
+        }
+
+        /**
+         * Evaluates the trees of a tree model in parallel when predicting a single feature vector,
+         * if the number of trees to evaluate is at least the given threshold.
+         * <p>
+         * Trees are split into contiguous segments of {@link #parallelTreeSegmentSize(int)} trees
+         * evaluated on {@link #parallelTreePool(ForkJoinPool)}. Leaf values are then summed in tree
+         * order on the calling thread, so predictions are identical to sequential evaluation.
+         * This lowers the latency of single-row prediction with very large forests at the cost of
+         * more CPU time; batch prediction is not affected.
+         * </p>
+         *
+         * @param parallelTreeThreshold minimum number of trees evaluated in parallel, or {@code 0}
+         *                              to always evaluate sequentially (default: {@code 0})
+         * @return this builder
+         */
+        public Builder parallelTreeThreshold(int parallelTreeThreshold) {
+            if (parallelTreeThreshold < 0) {
+                throw new IllegalArgumentException(
+                        "parallelTreeThreshold must not be negative: " + parallelTreeThreshold);
+            }
+            predictorConfiguration.parallelTreeThreshold = parallelTreeThreshold;
+            return this;
+        }
+
+        /**
+         * Sets the number of trees evaluated by a single task of parallel tree evaluation.
+         *
+         * @param parallelTreeSegmentSize number of trees per task (default: {@code 256})
+         * @return this builder
+         * @see #parallelTreeThreshold(int)
+         */
+        public Builder parallelTreeSegmentSize(int parallelTreeSegmentSize) {
+            if (parallelTreeSegmentSize <= 0) {
+                throw new IllegalArgumentException(
+                        "parallelTreeSegmentSize must be positive: " + parallelTreeSegmentSize);
+            }
+            predictorConfiguration.parallelTreeSegmentSize = parallelTreeSegmentSize;
+            return this;
+        }
+
+        /**
+         * Sets the pool used for parallel tree evaluation. Deserialized predictors use the common
+         * pool.
+         *
+         * @param parallelTreePool pool (default: {@link ForkJoinPool#commonPool()})
+         * @return this builder
+         * @see #parallelTreeThreshold(int)
+         */
+        public Builder parallelTreePool(ForkJoinPool parallelTreePool) {
+            if (parallelTreePool == null) {
+                throw new IllegalArgumentException("parallelTreePool must not be null");
+            }
+            predictorConfiguration.parallelTreePool = parallelTreePool;
+            return this;
+        }
+
+        /**
+         * Sets the number of rows advanced through each tree in lockstep by batch prediction of a
+         * tree model, so that the memory accesses of those rows overlap. Rows are still summed
+         * in float precision in tree order, so predictions are identical to row-at-a-time
+         * evaluation. Does not apply to groups evaluated by a {@link ForestEngine}.
+         * <p>
+         * This pays off when the trees do not fit in the CPU caches. Otherwise there is no memory
+         * latency to hide, and evaluating rows one at a time is usually as fast or faster.
+         * </p>
+         *
+         * @param interleavedRows number of rows in lockstep, typically 4 to 16, or {@code 0} or
+         *                        {@code 1} to evaluate rows one at a time (default: {@code 0})
+         * @return this builder
+         */
+        public Builder interleavedRows(int interleavedRows) {
+            if (interleavedRows < 0 || interleavedRows > MAX_INTERLEAVED_ROWS) {
+                throw new IllegalArgumentException(
+                        "interleavedRows must be in [0, " + MAX_INTERLEAVED_ROWS + "]: " + interleavedRows);
+            }
+            predictorConfiguration.interleavedRows = interleavedRows;
+            return this;
+        }
+
+        /**
+         * Tiles batch prediction of a tree model into blocks of trees and blocks of rows that fit
+         * in the given cache budget, typically the size of the L2 cache. Trees are grouped so that
+         * their nodes take up to half of the budget, and rows so that their used features take up
+         * the rest; each tree block then goes through all row blocks. Rows are still summed in
+         * float precision in tree order, so predictions are identical to untiled evaluation.
+         * Does not apply to groups evaluated by a {@link ForestEngine}.
+         *
+         * @param cacheBudget cache budget in bytes, or {@code 0} not to tile (default: {@code 0})
+         * @return this builder
+         */
+        public Builder cacheBudget(long cacheBudget) {
+            if (cacheBudget < 0) {
+                throw new IllegalArgumentException("cacheBudget must not be negative: " + cacheBudget);
+            }
+            predictorConfiguration.cacheBudget = cacheBudget;
+            return this;
+        }
+
+        public PredictorConfiguration build() {
+            PredictorConfiguration result = predictorConfiguration;
+            predictorConfiguration = null;
+            return result;
+        }
+    }
+
+    public static final PredictorConfiguration DEFAULT = new PredictorConfiguration();
+
+    public static final int MAX_INTERLEAVED_ROWS = 64;
+
+    private boolean remapFeatures;
+    private Function<AbstractRegTree.Param, AbstractRegTree> treeCreationStrategy =
+            CompactRegTree.strategy(CompactRegTree.LeafEncoding.FLOAT);
+    private ForestEngine.Factory forestEngine;
+    private int parallelTreeThreshold;
+    private int parallelTreeSegmentSize = 256;
+    private ForkJoinPool parallelTreePool;
+    private int interleavedRows;
+    private long cacheBudget;
+
+    public boolean isRemapFeatures() {
+        return remapFeatures;
+    }
+
+    public Function<AbstractRegTree.Param, AbstractRegTree> getTreeCreationStrategy() {
+        return treeCreationStrategy;
+    }
+
+    public ForestEngine.Factory getForestEngine() {
+        return forestEngine;
+    }
+
+    public int getParallelTreeThreshold() {
+        return parallelTreeThreshold;
+    }
+
+    public int getParallelTreeSegmentSize() {
+        return parallelTreeSegmentSize;
+    }
+
+    public ForkJoinPool getParallelTreePool() {
+        return parallelTreePool != null ? parallelTreePool : ForkJoinPool.commonPool();
+    }
+
+    public int getInterleavedRows() {
+        return interleavedRows;
+    }
+
+    public long getCacheBudget() {
+        return cacheBudget;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+}
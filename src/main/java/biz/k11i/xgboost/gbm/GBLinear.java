@@ -1,10 +1,12 @@
 package biz.k11i.xgboost.gbm;
 
+import biz.k11i.xgboost.util.FMatrix;
 import biz.k11i.xgboost.util.FVec;
 import biz.k11i.xgboost.util.ModelReader;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.BitSet;
 
 /**
  * Linear booster implementation
@@ -34,6 +36,13 @@ public class GBLinear extends GBBase {
         return preds;
     }
 
+    @Override
+    public void predict(FVec feat, int ntree_limit, double[] out, int outOffset) {
+        for (int gid = 0; gid < mparam.num_output_group; ++gid) {
+            out[outOffset + gid] = pred(feat, gid);
+        }
+    }
+
     @Override
     public double predictSingle(FVec feat, int ntree_limit) {
         if (mparam.num_output_group != 1) {
@@ -44,13 +53,59 @@ public class GBLinear extends GBBase {
         return pred(feat, 0);
     }
 
+    @Override
+    public void predict(FMatrix batch, int ntree_limit, double[] out, int outOffset) {
+        FMatrix.Row row = batch.newRow();
+        int numGroups = mparam.num_output_group;
+
+        if (row instanceof FMatrix.SparseRow) {
+            FMatrix.SparseRow sparseRow = (FMatrix.SparseRow) row;
+            for (int i = 0; i < batch.numRows(); i++) {
+                sparseRow.at(i);
+                for (int gid = 0; gid < numGroups; ++gid) {
+                    out[outOffset + i * numGroups + gid] = pred(sparseRow, gid);
+                }
+            }
+            return;
+        }
+
+        for (int i = 0; i < batch.numRows(); i++) {
+            row.at(i);
+            for (int gid = 0; gid < numGroups; ++gid) {
+                out[outOffset + i * numGroups + gid] = pred(row, gid);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #pred(FVec, int)}, but only visits the stored entries of a sparse row.
+     * Since entries are in ascending index order, the summation order and thus the result are
+     * the same.
+     */
+    double pred(FMatrix.SparseRow row, int gid) {
+        double psum = bias(gid);
+        for (int k = 0; k < row.numEntries(); k++) {
+            int fid = row.entryIndex(k);
+            float featValue = row.entryValue(k);
+            if (fid >= 0 && fid < mparam.num_feature && !FVec.isMissing(featValue)) {
+                psum += (double) featValue * weight(fid, gid);
+            }
+        }
+        return psum;
+    }
+
+    @Override
+    public int getNumOutputGroup() {
+        return mparam.num_output_group;
+    }
+
     double pred(FVec feat, int gid) {
         double psum = bias(gid);
-        Number featValue;
+        float featValue;
         for (int fid = 0; fid < mparam.num_feature; ++fid) {
-            featValue = feat.fvalue(fid);
-            if (featValue != null) {
-                psum += featValue.doubleValue() * weight(fid, gid);
+            featValue = feat.floatValue(fid);
+            if (!FVec.isMissing(featValue)) {
+                psum += (double) featValue * weight(fid, gid);
             }
         }
         return psum;
@@ -61,6 +116,24 @@ public class GBLinear extends GBBase {
         throw new UnsupportedOperationException("gblinear does not support predict leaf index");
     }
 
+    @Override
+    public int predictLeaf(FVec feat, int ntree_limit, int[] out, int outOffset) {
+        throw new UnsupportedOperationException("gblinear does not support predict leaf index");
+    }
+
+    @Override
+    public BitSet getUsedFeatures() {
+        BitSet result = new BitSet(mparam.num_feature);
+        for (int fid = 0; fid < mparam.num_feature; ++fid) {
+            for (int gid = 0; gid < mparam.num_output_group; ++gid) {
+                if (weight(fid, gid) != 0) {
+                    result.set(fid);
+                }
+            }
+        }
+        return result;
+    }
+
     float weight(int fid, int gid) {
         return weights[(fid * mparam.num_output_group) + gid];
     }
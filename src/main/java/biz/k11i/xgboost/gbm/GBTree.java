@@ -1,42 +1,106 @@
 package biz.k11i.xgboost.gbm;
 
+import biz.k11i.xgboost.MarginThreshold;
+import biz.k11i.xgboost.ThresholdPrediction;
+import biz.k11i.xgboost.config.PredictorConfiguration;
 import biz.k11i.xgboost.tree.AbstractRegTree;
-import biz.k11i.xgboost.tree.PreorderRegTree;
+import biz.k11i.xgboost.tree.ForestArena;
+import biz.k11i.xgboost.tree.ForestEngine;
+import biz.k11i.xgboost.util.FMatrix;
 import biz.k11i.xgboost.util.FVec;
+import biz.k11i.xgboost.util.FeatureRemap;
 import biz.k11i.xgboost.util.ModelReader;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.Function;
 
 /**
  * Gradient boosted tree implementation.
  */
 public class GBTree extends GBBase {
+    private static final int CACHE_LINE_BYTES = 64;
+    // Upper bound of the thread-local buffer rows of a batch are gathered into, 256 KiB
+    private static final int GATHER_CHUNK_FLOATS = 1 << 16;
+    // Bound on the relative rounding error of a float addition, with a factor 2 of margin
+    private static final double FLOAT_ADD_ERROR = 0x1p-23;
+
     private ModelParam mparam;
     private AbstractRegTree[] trees;
     private int[] tree_info;
     private Function<AbstractRegTree.Param, AbstractRegTree> treeCreationStrategy;
+    private final transient PredictorConfiguration configuration;
 
     private AbstractRegTree[][] _groupTrees;
+    private ForestEngine[] _groupEngines;
+    // Whether the trees are views provided by the forest engines
+    private boolean _enginesProvideTrees;
+    private BitSet _usedFeatures;
+    private FeatureRemap _featureRemap;
+    private transient ThreadLocal<FeatureRemap.Gathered> _gatheredFeat;
+    private transient ThreadLocal<float[]> _gatheredBatch;
+    private int _parallelTreeThreshold;
+    private int _parallelTreeSegmentSize;
+    private transient ForkJoinPool _parallelTreePool;
+    private transient ThreadLocal<double[]> _leafValues;
+    private int _interleavedRows;
+    private long _cacheBudget;
+    private long _rowBytes;
+    // Prefix sums of minimum, maximum and maximum absolute leaf values of the trees of each group
+    private double[][] _leafMinPrefix;
+    private double[][] _leafMaxPrefix;
+    private double[][] _leafAbsPrefix;
 
     public GBTree() {
-        this(param -> new PreorderRegTree());
+        this(PredictorConfiguration.DEFAULT.getTreeCreationStrategy());
     }
 
     public GBTree(Function<AbstractRegTree.Param, AbstractRegTree> treeCreationStrategy) {
+        this(treeCreationStrategy, PredictorConfiguration.DEFAULT);
+    }
+
+    public GBTree(
+            Function<AbstractRegTree.Param, AbstractRegTree> treeCreationStrategy,
+            PredictorConfiguration configuration) {
         this.treeCreationStrategy = treeCreationStrategy;
+        this.configuration = configuration;
     }
 
     @Override
     public void loadModel(ModelReader reader, boolean with_pbuffer) throws IOException {
         mparam = new ModelParam(reader);
 
-        trees = new AbstractRegTree[mparam.num_trees];
+        AbstractRegTree.Param[] params = new AbstractRegTree.Param[mparam.num_trees];
         for (int i = 0; i < mparam.num_trees; i++) {
-            AbstractRegTree.Param param = new AbstractRegTree.Param(reader);
-            trees[i] = this.treeCreationStrategy.apply(param);
-            trees[i].loadModel(param);
+            params[i] = new AbstractRegTree.Param(reader);
+        }
+
+        _usedFeatures = new BitSet();
+        for (AbstractRegTree.Param param : params) {
+            param.collectSplitFeatures(_usedFeatures);
+        }
+
+        if (configuration.isRemapFeatures()) {
+            _featureRemap = FeatureRemap.fromUsedFeatures(_usedFeatures);
+            for (AbstractRegTree.Param param : params) {
+                param.remapSplitFeatures(_featureRemap);
+            }
+            initGatheredFeat();
+        }
+
+        ForestEngine.Factory forestEngine = configuration.getForestEngine();
+        _enginesProvideTrees = forestEngine != null && forestEngine.providesTrees();
+
+        trees = new AbstractRegTree[mparam.num_trees];
+        if (!_enginesProvideTrees) {
+            for (int i = 0; i < mparam.num_trees; i++) {
+                trees[i] = this.treeCreationStrategy.apply(params[i]);
+                trees[i].loadModel(params[i]);
+            }
         }
 
         if (mparam.num_trees != 0) {
@@ -49,6 +113,7 @@ public class GBTree extends GBBase {
         }
 
         _groupTrees = new AbstractRegTree[mparam.num_output_group][];
+        AbstractRegTree.Param[][] groupParams = new AbstractRegTree.Param[mparam.num_output_group][];
         for (int i = 0; i < mparam.num_output_group; i++) {
             int treeCount = 0;
             for (int j = 0; j < tree_info.length; j++) {
@@ -58,18 +123,126 @@ public class GBTree extends GBBase {
             }
 
             _groupTrees[i] = new AbstractRegTree[treeCount];
+            groupParams[i] = new AbstractRegTree.Param[treeCount];
             treeCount = 0;
 
             for (int j = 0; j < tree_info.length; j++) {
                 if (tree_info[j] == i) {
+                    groupParams[i][treeCount] = params[j];
                     _groupTrees[i][treeCount++] = trees[j];
                 }
             }
         }
+
+        initLeafBounds(groupParams);
+
+        if (forestEngine != null) {
+            _groupEngines = forestEngine.create(groupParams, _enginesProvideTrees ? null : _groupTrees);
+        }
+        if (_enginesProvideTrees) {
+            initTreesFromEngines();
+        }
+
+        _interleavedRows = configuration.getInterleavedRows();
+        _cacheBudget = configuration.getCacheBudget();
+        // Estimates the bytes of a row touched by the trees, plus its output
+        _rowBytes = 4L * Math.max(1, _usedFeatures.cardinality()) + 8;
+
+        if (configuration.getParallelTreeThreshold() > 0) {
+            _parallelTreeThreshold = configuration.getParallelTreeThreshold();
+            _parallelTreeSegmentSize = configuration.getParallelTreeSegmentSize();
+            initParallelTrees(configuration.getParallelTreePool());
+        }
+    }
+
+    /**
+     * Replaces the trees with the views provided by the forest engines, in boosting order.
+     */
+    private void initTreesFromEngines() {
+        int[] treeCounts = new int[mparam.num_output_group];
+        for (int gid = 0; gid < mparam.num_output_group; gid++) {
+            _groupTrees[gid] = _groupEngines[gid].getTrees();
+        }
+        for (int i = 0; i < mparam.num_trees; i++) {
+            int gid = tree_info[i];
+            trees[i] = _groupTrees[gid][treeCounts[gid]++];
+        }
+    }
+
+    private void initLeafBounds(AbstractRegTree.Param[][] groupParams) {
+        int numGroups = groupParams.length;
+        _leafMinPrefix = new double[numGroups][];
+        _leafMaxPrefix = new double[numGroups][];
+        _leafAbsPrefix = new double[numGroups][];
+
+        for (int gid = 0; gid < numGroups; gid++) {
+            AbstractRegTree.Param[] params = groupParams[gid];
+            double[] minPrefix = new double[params.length + 1];
+            double[] maxPrefix = new double[params.length + 1];
+            double[] absPrefix = new double[params.length + 1];
+
+            for (int t = 0; t < params.length; t++) {
+                float min = params[t].minLeafValue();
+                float max = params[t].maxLeafValue();
+                minPrefix[t + 1] = minPrefix[t] + min;
+                maxPrefix[t + 1] = maxPrefix[t] + max;
+                absPrefix[t + 1] = absPrefix[t] + Math.max(Math.abs(min), Math.abs(max));
+            }
+
+            _leafMinPrefix[gid] = minPrefix;
+            _leafMaxPrefix[gid] = maxPrefix;
+            _leafAbsPrefix[gid] = absPrefix;
+        }
+    }
+
+    private void initParallelTrees(ForkJoinPool pool) {
+        int maxGroupTrees = 0;
+        for (AbstractRegTree[] groupTrees : _groupTrees) {
+            maxGroupTrees = Math.max(maxGroupTrees, groupTrees.length);
+        }
+
+        final int size = maxGroupTrees;
+        _parallelTreePool = pool;
+        _leafValues = ThreadLocal.withInitial(() -> new double[size]);
+    }
+
+    private void initGatheredFeat() {
+        final FeatureRemap featureRemap = _featureRemap;
+        _gatheredFeat = ThreadLocal.withInitial(featureRemap::newGathered);
+        // Rows per gathered chunk, so that the buffer never exceeds GATHER_CHUNK_FLOATS unless a
+        // single row does
+        final int chunkRows = Math.max(1, GATHER_CHUNK_FLOATS / Math.max(1, featureRemap.size()));
+        _gatheredBatch = ThreadLocal.withInitial(() -> new float[chunkRows * featureRemap.size()]);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (_featureRemap != null) {
+            initGatheredFeat();
+        }
+        if (_parallelTreeThreshold > 0) {
+            // Pools are not serializable, so a deserialized model evaluates trees in parallel on
+            // the common pool whatever pool it was configured with
+            initParallelTrees(ForkJoinPool.commonPool());
+        }
+    }
+
+    /**
+     * Gathers the used features into a thread-local dense vector if features are remapped.
+     *
+     * @param feat feature vector indexed by original feature index
+     * @return feature vector indexed the way the trees are
+     */
+    private FVec remapFeatures(FVec feat) {
+        if (_featureRemap == null) {
+            return feat;
+        }
+        return _gatheredFeat.get().gather(feat);
     }
 
     @Override
     public double[] predict(FVec feat, int ntree_limit) {
+        feat = remapFeatures(feat);
         double[] preds = new double[mparam.num_output_group];
         for (int gid = 0; gid < mparam.num_output_group; gid++) {
             preds[gid] = pred(feat, gid, ntree_limit);
@@ -77,6 +250,14 @@ public class GBTree extends GBBase {
         return preds;
     }
 
+    @Override
+    public void predict(FVec feat, int ntree_limit, double[] out, int outOffset) {
+        feat = remapFeatures(feat);
+        for (int gid = 0; gid < mparam.num_output_group; gid++) {
+            out[outOffset + gid] = pred(feat, gid, ntree_limit);
+        }
+    }
+
     @Override
     public double predictSingle(FVec feat, int ntree_limit) {
         if (mparam.num_output_group != 1) {
@@ -84,13 +265,25 @@ public class GBTree extends GBBase {
                     "Can't invoke predictSingle() because this model outputs multiple values: "
                     + mparam.num_output_group);
         }
-        return pred(feat,  0, ntree_limit);
+        return pred(remapFeatures(feat), 0, ntree_limit);
     }
 
     double pred(FVec feat, int bst_group, int ntree_limit) {
         AbstractRegTree[] trees = _groupTrees[bst_group];
         int treeleft = ntree_limit == 0 ? trees.length : ntree_limit;
 
+        ForestEngine engine = _groupEngines == null ? null : _groupEngines[bst_group];
+
+        // Trees provided by an engine are views of its storage, which segments can evaluate too
+        if (_parallelTreeThreshold > 0 && treeleft >= _parallelTreeThreshold
+                && (engine == null || _enginesProvideTrees)) {
+            return predParallel(feat, trees, treeleft);
+        }
+
+        if (engine != null) {
+            return engine.predict(feat, treeleft);
+        }
+
         float psum = 0;
         for (int i = 0; i < treeleft; i++) {
             psum += trees[i].getLeafValue(feat);
@@ -99,11 +292,336 @@ public class GBTree extends GBBase {
         return psum;
     }
 
+    /**
+     * Evaluates contiguous segments of trees in parallel, and then sums up leaf values in tree
+     * order so that the result is identical to {@link #pred(FVec, int, int)}.
+     */
+    private double predParallel(FVec feat, AbstractRegTree[] trees, int treeleft) {
+        // A pool worker may run another prediction while it waits for segments, in which case the
+        // thread-local buffer is still in use and the nested prediction gets a buffer of its own
+        double[] leafValues = _leafValues.get();
+        boolean borrowed = leafValues != null;
+        if (borrowed) {
+            _leafValues.set(null);
+        } else {
+            leafValues = new double[treeleft];
+        }
+
+        try {
+            new TreeSegments(feat, trees, 0, treeleft, leafValues, _parallelTreeSegmentSize, _parallelTreePool)
+                    .compute();
+
+            float psum = 0;
+            for (int i = 0; i < treeleft; i++) {
+                psum += leafValues[i];
+            }
+            return psum;
+        } finally {
+            if (borrowed) {
+                _leafValues.set(leafValues);
+            }
+        }
+    }
+
+    /**
+     * Evaluates a range of trees, splitting it in halves along segment boundaries until a single
+     * segment is left. The calling thread evaluates the left half while the right half is forked
+     * to the pool.
+     */
+    private static class TreeSegments extends RecursiveAction {
+        private final FVec feat;
+        private final AbstractRegTree[] trees;
+        private final int begin;
+        private final int end;
+        private final double[] leafValues;
+        private final int segmentSize;
+        private final ForkJoinPool pool;
+
+        TreeSegments(
+                FVec feat, AbstractRegTree[] trees, int begin, int end, double[] leafValues,
+                int segmentSize, ForkJoinPool pool) {
+            this.feat = feat;
+            this.trees = trees;
+            this.begin = begin;
+            this.end = end;
+            this.leafValues = leafValues;
+            this.segmentSize = segmentSize;
+            this.pool = pool;
+        }
+
+        @Override
+        protected void compute() {
+            int numSegments = (end - begin + segmentSize - 1) / segmentSize;
+            if (numSegments <= 1) {
+                for (int i = begin; i < end; i++) {
+                    leafValues[i] = trees[i].getLeafValue(feat);
+                }
+                return;
+            }
+
+            int mid = begin + numSegments / 2 * segmentSize;
+            TreeSegments right = new TreeSegments(feat, trees, mid, end, leafValues, segmentSize, pool);
+            if (getPool() == pool) {
+                right.fork();
+            } else {
+                // Not a worker of the pool, e.g. a request thread
+                pool.execute(right);
+            }
+            new TreeSegments(feat, trees, begin, mid, leafValues, segmentSize, pool).compute();
+            right.join();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Rows are evaluated tree by tree, so that the nodes of each tree stay in cache while the
+     * whole batch goes through it. With interleaved rows configured, each tree advances that many
+     * rows in lockstep. With a cache budget configured, trees and rows are tiled into blocks
+     * fitting in the budget. With a {@link ForestEngine}, rows are evaluated one by one by the
+     * engine instead.
+     * </p>
+     */
+    @Override
+    public void predict(FMatrix batch, int ntree_limit, double[] out, int outOffset) {
+        if (_featureRemap == null) {
+            predictBatch(batch, ntree_limit, out, outOffset);
+            return;
+        }
+
+        // Gathers the used features of the rows chunk by chunk into a thread-local dense matrix
+        // of bounded size, and predicts each chunk like a batch of its own
+        int numRows = batch.numRows();
+        int numCols = _featureRemap.size();
+        float[] gathered = _gatheredBatch.get();
+        int chunkRows = numCols == 0 ? numRows : gathered.length / numCols;
+        FMatrix.Row row = batch.newRow();
+
+        for (int begin = 0; begin < numRows; begin += chunkRows) {
+            int end = Math.min(numRows, begin + chunkRows);
+            for (int i = begin; i < end; i++) {
+                _featureRemap.gather(row.at(i), gathered, (i - begin) * numCols);
+            }
+            predictBatch(
+                    FMatrix.Transformer.fromDense(gathered, end - begin, numCols, numCols, Float.NaN),
+                    ntree_limit, out, outOffset + begin * mparam.num_output_group);
+        }
+    }
+
+    private void predictBatch(FMatrix batch, int ntree_limit, double[] out, int outOffset) {
+        FMatrix.Row row = batch.newRow();
+        int numRows = batch.numRows();
+        int numGroups = mparam.num_output_group;
+        BatchKernel kernel = null;
+
+        for (int gid = 0; gid < numGroups; gid++) {
+            AbstractRegTree[] trees = _groupTrees[gid];
+            int treeleft = ntree_limit == 0 ? trees.length : ntree_limit;
+
+            if (_groupEngines != null && _groupEngines[gid] != null) {
+                ForestEngine engine = _groupEngines[gid];
+                for (int i = 0; i < numRows; i++) {
+                    out[outOffset + i * numGroups + gid] = engine.predict(row.at(i), treeleft);
+                }
+                continue;
+            }
+
+            for (int i = 0; i < numRows; i++) {
+                out[outOffset + i * numGroups + gid] = 0;
+            }
+
+            if (kernel == null) {
+                kernel = new BatchKernel(batch, _interleavedRows);
+            }
+            if (_cacheBudget > 0) {
+                predictTiled(trees, treeleft, numRows, kernel, numGroups, gid, out, outOffset);
+            } else {
+                kernel.predict(trees, 0, treeleft, 0, numRows, numGroups, gid, out, outOffset);
+            }
+        }
+    }
+
+    /**
+     * Splits the trees into blocks whose nodes take up to half of the cache budget and the rows
+     * into blocks whose features take up the rest, and evaluates a tree block for every row
+     * block before moving on to the next tree block. Each row still goes through the trees in
+     * order, so sums are accumulated exactly like the untiled evaluation.
+     */
+    private void predictTiled(
+            AbstractRegTree[] trees, int treeleft, int numRows, BatchKernel kernel,
+            int numGroups, int gid, double[] out, int outOffset) {
+        long treeBudget = _cacheBudget / 2;
+        int rowBlockSize = (int) Math.max(1, Math.min(numRows, (_cacheBudget - treeBudget) / _rowBytes));
+
+        int treeBegin = 0;
+        while (treeBegin < treeleft) {
+            int treeEnd = treeBegin + 1;
+            long treeBytes = treeBytes(trees[treeBegin]);
+            while (treeEnd < treeleft && treeBytes + treeBytes(trees[treeEnd]) <= treeBudget) {
+                treeBytes += treeBytes(trees[treeEnd]);
+                treeEnd++;
+            }
+
+            for (int rowBegin = 0; rowBegin < numRows; rowBegin += rowBlockSize) {
+                int rowEnd = Math.min(numRows, rowBegin + rowBlockSize);
+                kernel.predict(trees, treeBegin, treeEnd, rowBegin, rowEnd, numGroups, gid, out, outOffset);
+            }
+            treeBegin = treeEnd;
+        }
+    }
+
+    private static long treeBytes(AbstractRegTree tree) {
+        return Math.max(CACHE_LINE_BYTES, tree.sizeInBytes());
+    }
+
+    /**
+     * Evaluates ranges of trees and rows of a batch tree by tree, holding the row views and work
+     * arrays for a single batch.
+     */
+    private static class BatchKernel {
+        final FMatrix.Row[] rows;
+        final int[] nodes;
+        final double[] values;
+
+        BatchKernel(FMatrix batch, int interleavedRows) {
+            int width = Math.max(1, interleavedRows);
+            rows = new FMatrix.Row[width];
+            for (int k = 0; k < width; k++) {
+                rows[k] = batch.newRow();
+            }
+            nodes = new int[width];
+            values = new double[width];
+        }
+
+        void predict(
+                AbstractRegTree[] trees, int treeBegin, int treeEnd, int rowBegin, int rowEnd,
+                int numGroups, int gid, double[] out, int outOffset) {
+            int width = rows.length;
+
+            for (int t = treeBegin; t < treeEnd; t++) {
+                AbstractRegTree tree = trees[t];
+
+                if (width == 1) {
+                    FMatrix.Row row = rows[0];
+                    for (int i = rowBegin; i < rowEnd; i++) {
+                        int pos = outOffset + i * numGroups + gid;
+                        // Accumulates in float precision exactly like pred()
+                        out[pos] = (float) (out[pos] + tree.getLeafValue(row.at(i)));
+                    }
+                    continue;
+                }
+
+                for (int begin = rowBegin; begin < rowEnd; begin += width) {
+                    int count = Math.min(width, rowEnd - begin);
+                    for (int k = 0; k < count; k++) {
+                        rows[k].at(begin + k);
+                    }
+
+                    tree.getLeafValues(rows, count, nodes, values);
+
+                    for (int k = 0; k < count; k++) {
+                        int pos = outOffset + (begin + k) * numGroups + gid;
+                        out[pos] = (float) (out[pos] + values[k]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * After each tree, the remaining trees can only add between the sums of their minimum and
+     * maximum leaf values. Since leaf values are summed in float precision, those bounds are
+     * widened by the rounding errors the remaining additions may make. Once the lower bound of
+     * the margin reaches the smallest margin above the threshold, or the upper bound does not
+     * exceed the largest margin not above it, the decision cannot change and the remaining trees
+     * are skipped. The bounds are compared in margin space, so that the transform, which must be
+     * monotone non-decreasing, is only applied for the final decision.
+     * </p>
+     */
+    @Override
+    public ThresholdPrediction predictAboveThreshold(
+            FVec feat, int ntree_limit, double baseScore, MarginThreshold threshold) {
+        if (mparam.num_output_group != 1) {
+            throw new IllegalStateException(
+                    "Can't invoke predictAboveThreshold() because this model outputs multiple values: "
+                    + mparam.num_output_group);
+        }
+
+        feat = remapFeatures(feat);
+        AbstractRegTree[] trees = _groupTrees[0];
+        int treeleft = ntree_limit == 0 ? trees.length : ntree_limit;
+        double[] minPrefix = _leafMinPrefix[0];
+        double[] maxPrefix = _leafMaxPrefix[0];
+        double[] absPrefix = _leafAbsPrefix[0];
+        // Either is NaN when no margin is on its side, so that comparisons with it never settle
+        double aboveMargin = threshold.getAboveMargin();
+        double notAboveMargin = threshold.getNotAboveMargin();
+
+        float psum = 0;
+        for (int t = 0; t < treeleft; t++) {
+            int remaining = treeleft - t;
+            double slack = remaining * FLOAT_ADD_ERROR
+                    * (Math.abs(psum) + absPrefix[treeleft] - absPrefix[t]);
+            double lower = psum + (minPrefix[treeleft] - minPrefix[t]) - slack;
+            double upper = psum + (maxPrefix[treeleft] - maxPrefix[t]) + slack;
+
+            if (lower + baseScore >= aboveMargin) {
+                return new ThresholdPrediction(true, t);
+            }
+            if (upper + baseScore <= notAboveMargin) {
+                return new ThresholdPrediction(false, t);
+            }
+
+            psum += trees[t].getLeafValue(feat);
+        }
+
+        return new ThresholdPrediction(threshold.isAbove(psum + baseScore), treeleft);
+    }
+
+    @Override
+    public int getNumOutputGroup() {
+        return mparam.num_output_group;
+    }
+
     @Override
     public int[] predictLeaf(FVec feat, int ntree_limit) {
-        return predPath(feat, ntree_limit);
+        return predPath(remapFeatures(feat), ntree_limit);
     }
 
+    @Override
+    public int predictLeaf(FVec feat, int ntree_limit, int[] out, int outOffset) {
+        feat = remapFeatures(feat);
+        int treeleft = ntree_limit == 0 ? trees.length : ntree_limit;
+        for (int i = 0; i < treeleft; i++) {
+            out[outOffset + i] = trees[i].getLeafIndex(feat);
+        }
+        return treeleft;
+    }
+
+
+    @Override
+    public BitSet getUsedFeatures() {
+        return (BitSet) _usedFeatures.clone();
+    }
+
+    /**
+     * Gets the arena the trees are packed into when loaded with {@link ForestArena#factory(boolean)}.
+     *
+     * @return forest arena, or {@code null} if not used
+     */
+    public ForestArena getForestArena() {
+        if (_groupEngines != null) {
+            for (ForestEngine engine : _groupEngines) {
+                ForestArena arena = ForestArena.of(engine);
+                if (arena != null) {
+                    return arena;
+                }
+            }
+        }
+        return null;
+    }
 
     int[] predPath(FVec feat, int ntree_limit) {
         int treeleft = ntree_limit == 0 ? trees.length : ntree_limit;
@@ -1,10 +1,15 @@
 package biz.k11i.xgboost.gbm;
 
+import biz.k11i.xgboost.MarginThreshold;
+import biz.k11i.xgboost.ThresholdPrediction;
+import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.util.FMatrix;
 import biz.k11i.xgboost.util.FVec;
 import biz.k11i.xgboost.util.ModelReader;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.BitSet;
 
 /**
  * Interface of gradient boosting model.
@@ -18,8 +23,19 @@ public interface GradBooster extends Serializable {
          * @return created gradient booster
          */
         public static GradBooster createGradBooster(String name) {
+            return createGradBooster(name, PredictorConfiguration.DEFAULT);
+        }
+
+        /**
+         * Creates a gradient booster from given name.
+         *
+         * @param name          name of gradient booster
+         * @param configuration configuration applied when the model is loaded
+         * @return created gradient booster
+         */
+        public static GradBooster createGradBooster(String name, PredictorConfiguration configuration) {
             if ("gbtree".equals(name)) {
-                return new GBTree();
+                return new GBTree(configuration.getTreeCreationStrategy(), configuration);
             } else if ("gblinear".equals(name)) {
                 return new GBLinear();
             }
@@ -48,6 +64,16 @@ public interface GradBooster extends Serializable {
      */
     double[] predict(FVec feat, int ntree_limit);
 
+    /**
+     * Generates predictions for given feature vector into given array, without allocating.
+     *
+     * @param feat        feature vector
+     * @param ntree_limit limit the number of trees used in prediction
+     * @param out         array to write {@link #getNumOutputGroup()} prediction results to
+     * @param outOffset   position in {@code out} of the first result
+     */
+    void predict(FVec feat, int ntree_limit, double[] out, int outOffset);
+
     /**
      * Generates a prediction for given feature vector.
      * <p>
@@ -60,6 +86,27 @@ public interface GradBooster extends Serializable {
      */
     double predictSingle(FVec feat, int ntree_limit);
 
+    /**
+     * Generates predictions for each row of given feature matrix.
+     * <p>
+     * Predictions of row {@code i} are written to
+     * {@code out[outOffset + i * getNumOutputGroup() + gid]}.
+     * </p>
+     *
+     * @param batch       feature matrix
+     * @param ntree_limit limit the number of trees used in prediction
+     * @param out         array to write prediction results to
+     * @param outOffset   position in {@code out} of the first result
+     */
+    void predict(FMatrix batch, int ntree_limit, double[] out, int outOffset);
+
+    /**
+     * Gets the number of values predicted for a feature vector.
+     *
+     * @return number of output groups
+     */
+    int getNumOutputGroup();
+
     /**
      * Predicts the leaf index of each tree. This is only valid in gbtree predictor.
      *
@@ -68,6 +115,49 @@ public interface GradBooster extends Serializable {
      * @return predicted leaf indexes
      */
     int[] predictLeaf(FVec feat, int ntree_limit);
+
+    /**
+     * Predicts the leaf index of each tree into given array, without allocating. This is only
+     * valid in gbtree predictor.
+     *
+     * @param feat        feature vector
+     * @param ntree_limit limit the number of trees used in prediction
+     * @param out         array to write leaf indexes to
+     * @param outOffset   position in {@code out} of the first leaf index
+     * @return number of leaf indexes written
+     */
+    int predictLeaf(FVec feat, int ntree_limit, int[] out, int outOffset);
+
+    /**
+     * Determines whether the prediction of a model outputting a single value is above the given
+     * threshold, evaluating trees only until the decision is settled. This is only valid in
+     * gbtree predictor.
+     * <p>
+     * The transform of the threshold must be monotone non-decreasing, as described in
+     * {@link MarginThreshold}; otherwise the decision may differ from the full prediction.
+     * </p>
+     *
+     * @param feat        feature vector
+     * @param ntree_limit limit the number of trees used in prediction
+     * @param baseScore   value added to the sum of leaf values to get the margin
+     * @param threshold   threshold of the prediction, mapped into margin space
+     * @return decision, exactly the same as comparing the full prediction to the threshold
+     * @throws UnsupportedOperationException if the booster has no trees to skip
+     */
+    default ThresholdPrediction predictAboveThreshold(
+            FVec feat, int ntree_limit, double baseScore, MarginThreshold threshold) {
+        throw new UnsupportedOperationException(getClass().getName() + " does not support predict above threshold");
+    }
+
+    /**
+     * Gets the indices of the features the model uses.
+     *
+     * @return indices of used features
+     * @throws UnsupportedOperationException if the model does not report its features
+     */
+    default BitSet getUsedFeatures() {
+        throw new UnsupportedOperationException(getClass().getName() + " does not report used features");
+    }
 }
 
 abstract class GBBase implements GradBooster {
@@ -3,6 +3,7 @@ package biz.k11i.xgboost.learner;
 import net.jafama.FastMath;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -13,14 +14,14 @@ public class ObjFunction implements Serializable {
     private static final Map<String, ObjFunction> FUNCTIONS = new HashMap<>();
 
     static {
-        register("rank:pairwise", new ObjFunction());
-        register("rank:ndcg", new ObjFunction());
+        register("rank:pairwise", new Identity());
+        register("rank:ndcg", new Identity());
         register("binary:logistic", new RegLossObjLogistic());
         register("reg:logistic", new RegLossObjLogistic());
-        register("binary:logitraw", new ObjFunction());
+        register("binary:logitraw", new Identity());
         register("multi:softmax", new SoftmaxMultiClassObjClassify());
         register("multi:softprob", new SoftmaxMultiClassObjProb());
-        register("reg:linear", new ObjFunction());
+        register("reg:linear", new Identity());
         register("count:poisson", new RegLossObjExpFamily());
         register("reg:tweedie", new RegLossObjExpFamily());
     }
@@ -80,6 +81,25 @@ public class ObjFunction implements Serializable {
         return preds;
     }
 
+    /**
+     * Transforms prediction values in place.
+     * <p>
+     * The default implementation delegates to {@link #predTransform(double[])} with a copy of the
+     * values; built-in objective functions override this not to allocate.
+     * </p>
+     *
+     * @param preds  array containing prediction values
+     * @param offset position of the first prediction value
+     * @param length number of prediction values
+     * @return number of transformed values written to {@code preds} from {@code offset}, which
+     * is at most {@code length}
+     */
+    public int predTransform(double[] preds, int offset, int length) {
+        double[] transformed = predTransform(Arrays.copyOfRange(preds, offset, offset + length));
+        System.arraycopy(transformed, 0, preds, offset, transformed.length);
+        return transformed.length;
+    }
+
     /**
      * Transforms a prediction value.
      *
@@ -91,6 +111,17 @@ public class ObjFunction implements Serializable {
         return pred;
     }
 
+    /**
+     * Objective functions whose predictions are margins as they are.
+     */
+    static class Identity extends ObjFunction {
+        @Override
+        public int predTransform(double[] preds, int offset, int length) {
+            // do nothing
+            return length;
+        }
+    }
+
     /**
      * Objective functions that need exp transformation.
      * E.g., poisson, gamma, tweedie
@@ -104,6 +135,13 @@ public class ObjFunction implements Serializable {
             return preds;
         }
         @Override
+        public int predTransform(double[] preds, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                preds[i] = exp(preds[i]);
+            }
+            return length;
+        }
+        @Override
         public double predTransform(double pred) {
             return exp(pred);
         }
@@ -131,6 +169,14 @@ public class ObjFunction implements Serializable {
             return preds;
         }
 
+        @Override
+        public int predTransform(double[] preds, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                preds[i] = sigmoid(preds[i]);
+            }
+            return length;
+        }
+
         @Override
         public double predTransform(double pred) {
             return sigmoid(pred);
@@ -171,6 +217,21 @@ public class ObjFunction implements Serializable {
             return new double[]{maxIndex};
         }
 
+        @Override
+        public int predTransform(double[] preds, int offset, int length) {
+            int maxIndex = 0;
+            double max = preds[offset];
+            for (int i = 1; i < length; i++) {
+                if (max < preds[offset + i]) {
+                    maxIndex = i;
+                    max = preds[offset + i];
+                }
+            }
+
+            preds[offset] = maxIndex;
+            return 1;
+        }
+
         @Override
         public double predTransform(double pred) {
             throw new UnsupportedOperationException();
@@ -183,22 +244,29 @@ public class ObjFunction implements Serializable {
     static class SoftmaxMultiClassObjProb extends ObjFunction {
         @Override
         public double[] predTransform(double[] preds) {
-            double max = preds[0];
-            for (int i = 1; i < preds.length; i++) {
+            predTransform(preds, 0, preds.length);
+            return preds;
+        }
+
+        @Override
+        public int predTransform(double[] preds, int offset, int length) {
+            int end = offset + length;
+            double max = preds[offset];
+            for (int i = offset + 1; i < end; i++) {
                 max = Math.max(preds[i], max);
             }
 
             double sum = 0;
-            for (int i = 0; i < preds.length; i++) {
+            for (int i = offset; i < end; i++) {
                 preds[i] = exp(preds[i] - max);
                 sum += preds[i];
             }
 
-            for (int i = 0; i < preds.length; i++) {
+            for (int i = offset; i < end; i++) {
                 preds[i] /= (float) sum;
             }
 
-            return preds;
+            return length;
         }
 
         @Override
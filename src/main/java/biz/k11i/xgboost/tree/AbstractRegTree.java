@@ -2,8 +2,10 @@ package biz.k11i.xgboost.tree;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.BitSet;
 
 import biz.k11i.xgboost.util.FVec;
+import biz.k11i.xgboost.util.FeatureRemap;
 import biz.k11i.xgboost.util.ModelReader;
 
 /**
@@ -43,7 +45,7 @@ abstract public class AbstractRegTree implements Serializable {
    * @param feat feature vector to evaluate tree on
    * @return leaf node index
    */
-  public final int getLeafIndex(FVec feat) {
+  public int getLeafIndex(FVec feat) {
     return getLeafIndex(getLeafNodeForFeat(feat, getRootNode()));
   }
 
@@ -66,10 +68,52 @@ abstract public class AbstractRegTree implements Serializable {
    * @param feat feature vector to evaluate tree on
    * @return leaf node index
    */
-  public final double getLeafValue(FVec feat) {
+  public double getLeafValue(FVec feat) {
     return getLeafValue(getLeafNodeForFeat(feat, getRootNode()));
   }
 
+  /**
+   * Returns the leaf node values for the given fvecs, advancing all of them through the tree in
+   * lockstep one level per step. The loads of different fvecs are independent of each other, so
+   * their cache misses overlap instead of stalling one after another. An fvec that reaches a leaf
+   * early just stays there until the others do.
+   * @param feats feature vectors to evaluate tree on
+   * @param count number of feature vectors
+   * @param nodes work array with at least {@code count} elements
+   * @param values array receiving the leaf node value of each feature vector
+   */
+  public void getLeafValues(FVec[] feats, int count, int[] nodes, double[] values) {
+    int root = getRootNode();
+    for (int i = 0; i < count; i++) {
+      nodes[i] = root;
+    }
+
+    boolean advanced;
+    do {
+      advanced = false;
+      for (int i = 0; i < count; i++) {
+        int node = nodes[i];
+        if (!isLeafNode(node)) {
+          nodes[i] = getNextNode(node, feats[i]);
+          advanced = true;
+        }
+      }
+    } while (advanced);
+
+    for (int i = 0; i < count; i++) {
+      values[i] = getLeafValue(nodes[i]);
+    }
+  }
+
+  /**
+   * Returns the number of bytes of the node data read while evaluating this tree, used to size
+   * the blocks of trees evaluated together. Returns {@code 0} if unknown.
+   * @return size of the node data in bytes
+   */
+  public long sizeInBytes() {
+    return 0;
+  }
+
   /**
    * Parameters.
    */
@@ -114,6 +158,57 @@ abstract public class AbstractRegTree implements Serializable {
         nodeInfo[i].readStats(reader);
       }
     }
+
+    /**
+     * @return minimum leaf value of this tree
+     */
+    public float minLeafValue() {
+      float result = Float.POSITIVE_INFINITY;
+      for (Node node : nodeInfo) {
+        if (node.is_leaf()) {
+          result = Math.min(result, node.leaf_value);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * @return maximum leaf value of this tree
+     */
+    public float maxLeafValue() {
+      float result = Float.NEGATIVE_INFINITY;
+      for (Node node : nodeInfo) {
+        if (node.is_leaf()) {
+          result = Math.max(result, node.leaf_value);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Adds the split feature indices of this tree to the given set
+     * @param features set of feature indices
+     */
+    public void collectSplitFeatures(BitSet features) {
+      for (Node node : nodeInfo) {
+        if (!node.is_leaf()) {
+          features.set(node.split_index());
+        }
+      }
+    }
+
+    /**
+     * Rewrites the split feature indices of this tree into compact indices. Must be called
+     * before the tree is loaded from this instance.
+     * @param remap mapping containing every split feature of this tree
+     */
+    public void remapSplitFeatures(FeatureRemap remap) {
+      for (Node node : nodeInfo) {
+        if (!node.is_leaf()) {
+          node.setSplitIndex(remap.compactIndex(node.split_index()));
+        }
+      }
+    }
   }
 
   /**
@@ -182,6 +277,11 @@ abstract public class AbstractRegTree implements Serializable {
       return (int) (sindex_ & ((1l << 31) - 1l));
     }
 
+    void setSplitIndex(int splitIndex) {
+      sindex_ = (sindex_ & 0x80000000) | splitIndex;
+      _splitIndex = splitIndex;
+    }
+
     int cdefault() {
       return default_left() ? cleft_ : cright_;
     }
@@ -191,11 +291,11 @@ abstract public class AbstractRegTree implements Serializable {
     }
 
     int next(FVec feat) {
-      Number fvalue = feat.fvalue(_splitIndex);
-      if (fvalue == null) {
+      float fvalue = feat.floatValue(_splitIndex);
+      if (FVec.isMissing(fvalue)) {
         return _defaultNext;
       }
-      return (fvalue.doubleValue() < split_cond) ? cleft_ : cright_;
+      return (fvalue < split_cond) ? cleft_ : cright_;
     }
   }
 }
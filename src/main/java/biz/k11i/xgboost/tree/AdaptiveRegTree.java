@@ -0,0 +1,275 @@
+package biz.k11i.xgboost.tree;
+
+import java.io.Serializable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+import biz.k11i.xgboost.util.FVec;
+
+/**
+ * {@link PreorderRegTree} whose layout adapts to the traffic it evaluates.
+ *
+ * The layout of {@link PreorderRegTree} places the child with the higher training cover next to
+ * its parent, which is the wrong one when live traffic is distributed differently from the
+ * training data. This tree samples a fraction of its evaluations and counts the visits of each
+ * node along their paths. Every so many samples, the tree is repacked with the most visited child
+ * of each split next to its parent, falling back to the training cover for splits not visited
+ * yet, and counts are halved so that the layout keeps following the traffic.
+ *
+ * Design Specifics / Limitations:
+ * - The layout is replaced as a whole through a volatile reference, so evaluations never block
+ * and each evaluation sees a single layout. The evaluation that takes the triggering sample only
+ * submits the repacking to an executor, the common pool by default, and {@link #relayout()} can
+ * also be called directly.
+ *
+ * - Evaluations are sampled by a countdown per thread shared by all trees, restarted at a random
+ * length averaging the sample interval, so that unsampled evaluations only decrement a counter
+ * and samples do not keep hitting the same trees of a forest.
+ *
+ * - Nodes of the loaded model are retained to repack the tree, so this takes more memory than
+ * {@link PreorderRegTree}.
+ *
+ * - Visit counts are updated atomically, which only costs on sampled evaluations.
+ */
+public class AdaptiveRegTree extends AbstractRegTree {
+  private static final int BLOCK_SIZE = 3;
+
+  // Evaluations left before the next sample on each thread
+  private static final ThreadLocal<int[]> COUNTDOWN = ThreadLocal.withInitial(() -> new int[1]);
+
+  private final int sampleInterval;
+  private final int relayoutInterval;
+  // null for the common pool, which is also used after deserialization
+  private final transient Executor relayoutExecutor;
+
+  private Param param;
+  private volatile Layout layout;
+  private AtomicLongArray visits;
+  private final AtomicLong samples = new AtomicLong();
+  private final AtomicBoolean relayingOut = new AtomicBoolean();
+
+  /**
+   * Nodes packed by {@link PreorderRegTree#pack(Param, double[])} with the original ID of each
+   * block.
+   */
+  private static class Layout implements Serializable {
+    final int[] nodes;
+    final int[] ids;
+
+    Layout(Param param, int[] nodes) {
+      this.nodes = nodes;
+      this.ids = new int[nodes.length / BLOCK_SIZE];
+      collectIds(param.nodeInfo, 0, 0);
+    }
+
+    private void collectIds(Node[] nodeInfo, int id, int index) {
+      ids[index / BLOCK_SIZE] = id;
+      if (nodes[index + 1] == 0) {
+        return;
+      }
+
+      Node node = nodeInfo[id];
+      boolean falseIsLeft = (nodes[index + 1] & 1) == 1;
+      collectIds(nodeInfo, falseIsLeft ? node.cright_ : node.cleft_, index + BLOCK_SIZE);
+      collectIds(nodeInfo, falseIsLeft ? node.cleft_ : node.cright_, index + (nodes[index + 1] >> 1));
+    }
+  }
+
+  /**
+   * Creates a tree creation strategy that uses {@link AdaptiveRegTree} for every tree, repacking
+   * trees on the common pool.
+   *
+   * @param sampleInterval   one in {@code sampleInterval} evaluations is sampled on average
+   * @param relayoutInterval number of samples between repackings
+   * @return tree creation strategy
+   */
+  public static Function<Param, AbstractRegTree> strategy(int sampleInterval, int relayoutInterval) {
+    checkIntervals(sampleInterval, relayoutInterval);
+    return (Function<Param, AbstractRegTree> & Serializable) param ->
+        new AdaptiveRegTree(sampleInterval, relayoutInterval);
+  }
+
+  /**
+   * Creates a tree creation strategy that uses {@link AdaptiveRegTree} for every tree, repacking
+   * trees on the given executor. The strategy is serializable only if the executor is.
+   *
+   * @param sampleInterval   one in {@code sampleInterval} evaluations is sampled on average
+   * @param relayoutInterval number of samples between repackings
+   * @param relayoutExecutor executor running repackings
+   * @return tree creation strategy
+   */
+  public static Function<Param, AbstractRegTree> strategy(
+      int sampleInterval, int relayoutInterval, Executor relayoutExecutor) {
+    checkIntervals(sampleInterval, relayoutInterval);
+    if (relayoutExecutor == null) {
+      throw new IllegalArgumentException("relayoutExecutor must not be null");
+    }
+    return (Function<Param, AbstractRegTree> & Serializable) param ->
+        new AdaptiveRegTree(sampleInterval, relayoutInterval, relayoutExecutor);
+  }
+
+  private static void checkIntervals(int sampleInterval, int relayoutInterval) {
+    if (sampleInterval <= 0) {
+      throw new IllegalArgumentException("sampleInterval must be positive: " + sampleInterval);
+    }
+    if (relayoutInterval <= 0) {
+      throw new IllegalArgumentException("relayoutInterval must be positive: " + relayoutInterval);
+    }
+  }
+
+  /**
+   * @param sampleInterval   one in {@code sampleInterval} evaluations is sampled on average
+   * @param relayoutInterval number of samples between repackings, which run on the common pool
+   */
+  public AdaptiveRegTree(int sampleInterval, int relayoutInterval) {
+    this(sampleInterval, relayoutInterval, null);
+  }
+
+  /**
+   * @param sampleInterval   one in {@code sampleInterval} evaluations is sampled on average
+   * @param relayoutInterval number of samples between repackings
+   * @param relayoutExecutor executor running repackings, or {@code null} for the common pool
+   */
+  public AdaptiveRegTree(int sampleInterval, int relayoutInterval, Executor relayoutExecutor) {
+    checkIntervals(sampleInterval, relayoutInterval);
+    this.sampleInterval = sampleInterval;
+    this.relayoutInterval = relayoutInterval;
+    this.relayoutExecutor = relayoutExecutor;
+  }
+
+  @Override
+  public void loadModel(Param param) {
+    this.param = param;
+    this.visits = new AtomicLongArray(param.num_nodes);
+    this.layout = new Layout(param, PreorderRegTree.pack(param));
+  }
+
+  /**
+   * Repacks the tree from the visit counts observed so far. Evaluations running meanwhile keep
+   * using the previous layout.
+   */
+  public synchronized void relayout() {
+    Node[] nodeInfo = param.nodeInfo;
+    double[] weights = new double[param.num_nodes];
+    for (Node node : nodeInfo) {
+      if (node._isLeaf) {
+        continue;
+      }
+
+      long leftVisits = visits.get(node.cleft_);
+      long rightVisits = visits.get(node.cright_);
+      if (leftVisits + rightVisits > 0) {
+        weights[node.cleft_] = leftVisits;
+        weights[node.cright_] = rightVisits;
+      } else {
+        weights[node.cleft_] = nodeInfo[node.cleft_].sum_hess;
+        weights[node.cright_] = nodeInfo[node.cright_].sum_hess;
+      }
+    }
+
+    layout = new Layout(param, PreorderRegTree.pack(param, weights));
+
+    for (int i = 0; i < visits.length(); i++) {
+      visits.set(i, visits.get(i) / 2);
+    }
+  }
+
+  private int getLeafNode(Layout layout, FVec feat) {
+    int[] nodes = layout.nodes;
+    int index = 0;
+
+    if (sampleInterval > 1) {
+      int[] countdown = COUNTDOWN.get();
+      if (--countdown[0] > 0) {
+        while (nodes[index + 1] != 0) {
+          index = PreorderRegTree.nextNode(nodes, index, feat);
+        }
+        return index;
+      }
+
+      // Restarts at a length in [1, 2 * sampleInterval - 1]
+      countdown[0] = 1 + (int) ThreadLocalRandom.current().nextLong(2L * sampleInterval - 1);
+    }
+
+    while (nodes[index + 1] != 0) {
+      index = PreorderRegTree.nextNode(nodes, index, feat);
+      visits.incrementAndGet(layout.ids[index / BLOCK_SIZE]);
+    }
+
+    if (samples.incrementAndGet() % relayoutInterval == 0 && relayingOut.compareAndSet(false, true)) {
+      submitRelayout();
+    }
+    return index;
+  }
+
+  private void submitRelayout() {
+    Runnable task = () -> {
+      try {
+        relayout();
+      } finally {
+        relayingOut.set(false);
+      }
+    };
+
+    try {
+      (relayoutExecutor != null ? relayoutExecutor : ForkJoinPool.commonPool()).execute(task);
+    } catch (RejectedExecutionException e) {
+      // Keeps the current layout and retries at the next triggering sample
+      relayingOut.set(false);
+    }
+  }
+
+  @Override
+  public int getLeafIndex(FVec feat) {
+    Layout layout = this.layout;
+    return layout.nodes[getLeafNode(layout, feat) + 2];
+  }
+
+  @Override
+  public double getLeafValue(FVec feat) {
+    Layout layout = this.layout;
+    return Float.intBitsToFloat(layout.nodes[getLeafNode(layout, feat)]);
+  }
+
+  @Override
+  public void getLeafValues(FVec[] feats, int count, int[] nodes, double[] values) {
+    for (int i = 0; i < count; i++) {
+      values[i] = getLeafValue(feats[i]);
+    }
+  }
+
+  @Override
+  public long sizeInBytes() {
+    return 4L * layout.nodes.length;
+  }
+
+  /**
+   * Node indices are only valid for the current layout, which may be replaced at any time; the
+   * public methods read the layout once per evaluation instead.
+   */
+  @Override
+  protected int getNextNode(int index, FVec feat) {
+    return PreorderRegTree.nextNode(layout.nodes, index, feat);
+  }
+
+  @Override
+  protected boolean isLeafNode(int node) {
+    return layout.nodes[node + 1] == 0;
+  }
+
+  @Override
+  protected double getLeafValue(int node) {
+    return Float.intBitsToFloat(layout.nodes[node]);
+  }
+
+  @Override
+  protected int getLeafIndex(int node) {
+    return layout.nodes[node + 2];
+  }
+}
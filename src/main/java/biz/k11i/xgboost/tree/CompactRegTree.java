@@ -0,0 +1,319 @@
+package biz.k11i.xgboost.tree;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import biz.k11i.xgboost.util.FVec;
+
+/**
+ * Regression tree packed like {@link PreorderRegTree}, but with 8 bytes per split node instead of
+ * 12. Nodes are laid out in depth first pre-order, with the child that saw the most training data
+ * immediately next to its parent. A split node is a block of 2 ints:
+ *
+ *   --------------------------------------------------------------------------------------------
+ * 1 | Right Child Offset (13 bits) | Feature Index (16 bits) | Default is right | False is left | 0 |
+ *   --------------------------------------------------------------------------------------------
+ * 2 |                                Split condition (32 bits)                                  |
+ *   --------------------------------------------------------------------------------------------
+ *
+ * where the right child offset is counted in ints. A leaf depends on the {@link LeafEncoding}:
+ *
+ *   --------------------------------------------------------------------------------------------
+ *   | {@link LeafEncoding#FLOAT}:  Original ID (31 bits) | 1, followed by Leaf Value (32 bits)   |
+ *   | Otherwise: Encoded Leaf Value (16 bits) | Original ID (15 bits) | 1                        |
+ *   --------------------------------------------------------------------------------------------
+ *
+ * Design Specifics / Limitations:
+ * - A tree fits only if it splits on features below 65536 and packs into at most 8191 ints, which
+ * holds for any tree up to depth 11. Use {@link #strategy(LeafEncoding)}
+ * to fall back to {@link PreorderRegTree} for the others.
+ *
+ * - With an encoded leaf value, the original ID of each leaf must be below 32768.
+ */
+public class CompactRegTree extends AbstractRegTree {
+  private static final int SPLIT_SIZE = 2;
+  private static final int MAX_SIZE = (1 << 13) - 1;
+  private static final int MAX_FEATURES = 1 << 16;
+  private static final int MAX_ENCODED_LEAF_ID = 1 << 15;
+
+  /**
+   * Representation of leaf values.
+   */
+  public enum LeafEncoding {
+    /**
+     * Leaf values are stored as is, in a block of 2 ints.
+     */
+    FLOAT,
+
+    /**
+     * Leaf values are stored in a single int as an index into a dictionary of the distinct leaf
+     * values of the tree. Predictions are unchanged.
+     */
+    DICTIONARY,
+
+    /**
+     * Leaf values are stored in a single int, rounded to the nearest IEEE 754 half precision
+     * value. The error of each leaf value is at most 2^-11 times its magnitude if the magnitude
+     * is at least 2^-14, and at most 2^-25 otherwise, so the error of a prediction is at most
+     * the sum of those of its leaf values. Trees having a leaf value whose magnitude exceeds
+     * 65504 do not fit.
+     */
+    FP16
+  }
+
+  private final LeafEncoding leafEncoding;
+  private int[] nodes;
+  private float[] dictionary;
+
+  /**
+   * Creates a tree creation strategy that uses {@link CompactRegTree} for trees that fit, and
+   * {@link PreorderRegTree} for the others.
+   *
+   * @param leafEncoding representation of leaf values
+   * @return tree creation strategy
+   */
+  public static Function<Param, AbstractRegTree> strategy(LeafEncoding leafEncoding) {
+    if (leafEncoding == null) {
+      throw new IllegalArgumentException("leafEncoding must not be null");
+    }
+    return (Function<Param, AbstractRegTree> & Serializable) param ->
+        fits(param, leafEncoding) ? new CompactRegTree(leafEncoding) : new PreorderRegTree();
+  }
+
+  /**
+   * Determines whether the given tree can be packed with the given leaf encoding.
+   *
+   * @param param        parameters of the tree
+   * @param leafEncoding representation of leaf values
+   * @return {@code true} if the tree fits
+   */
+  public static boolean fits(Param param, LeafEncoding leafEncoding) {
+    int size = 0;
+    for (Node node : reachableNodes(param)) {
+      if (node._isLeaf) {
+        if (leafEncoding == LeafEncoding.FLOAT) {
+          size += 2;
+        } else {
+          if (node.id >= MAX_ENCODED_LEAF_ID) {
+            return false;
+          }
+          if (leafEncoding == LeafEncoding.FP16 && toHalf(node.leaf_value) < 0) {
+            return false;
+          }
+          size += 1;
+        }
+      } else {
+        if (node._splitIndex >= MAX_FEATURES) {
+          return false;
+        }
+        size += SPLIT_SIZE;
+      }
+    }
+    return size <= MAX_SIZE;
+  }
+
+  private static List<Node> reachableNodes(Param param) {
+    List<Node> result = new ArrayList<>();
+    collect(param.nodeInfo, 0, result);
+    return result;
+  }
+
+  private static void collect(Node[] nodeInfo, int id, List<Node> result) {
+    Node node = nodeInfo[id];
+    result.add(node);
+    if (!node._isLeaf) {
+      collect(nodeInfo, node.cleft_, result);
+      collect(nodeInfo, node.cright_, result);
+    }
+  }
+
+  /**
+   * Creates a tree storing leaf values as is.
+   */
+  public CompactRegTree() {
+    this(LeafEncoding.FLOAT);
+  }
+
+  /**
+   * @param leafEncoding representation of leaf values
+   */
+  public CompactRegTree(LeafEncoding leafEncoding) {
+    if (leafEncoding == null) {
+      throw new IllegalArgumentException("leafEncoding must not be null");
+    }
+    this.leafEncoding = leafEncoding;
+  }
+
+  @Override
+  public void loadModel(Param param) {
+    if (!fits(param, leafEncoding)) {
+      throw new IllegalArgumentException("Tree does not fit in the compact layout");
+    }
+
+    int size = 0;
+    Map<Float, Integer> dictionaryIndex = new LinkedHashMap<>();
+    for (Node node : reachableNodes(param)) {
+      if (node._isLeaf) {
+        size += leafEncoding == LeafEncoding.FLOAT ? 2 : 1;
+        if (leafEncoding == LeafEncoding.DICTIONARY) {
+          dictionaryIndex.putIfAbsent(node.leaf_value, dictionaryIndex.size());
+        }
+      } else {
+        size += SPLIT_SIZE;
+      }
+    }
+
+    if (leafEncoding == LeafEncoding.DICTIONARY) {
+      dictionary = new float[dictionaryIndex.size()];
+      for (Map.Entry<Float, Integer> entry : dictionaryIndex.entrySet()) {
+        dictionary[entry.getValue()] = entry.getKey();
+      }
+    }
+
+    nodes = new int[size];
+    pack(param.nodeInfo, 0, 0, dictionaryIndex);
+  }
+
+  /**
+   * Packs the subtree of the given node in preorder from the given position.
+   *
+   * @return position next to the subtree
+   */
+  private int pack(Node[] nodeInfo, int id, int position, Map<Float, Integer> dictionaryIndex) {
+    Node node = nodeInfo[id];
+    if (node._isLeaf) {
+      switch (leafEncoding) {
+        case FLOAT:
+          nodes[position] = (node.id << 1) | 1;
+          nodes[position + 1] = Float.floatToRawIntBits(node.leaf_value);
+          return position + 2;
+
+        case DICTIONARY:
+          nodes[position] = (dictionaryIndex.get(node.leaf_value) << 16) | (node.id << 1) | 1;
+          return position + 1;
+
+        default:
+          nodes[position] = (toHalf(node.leaf_value) << 16) | (node.id << 1) | 1;
+          return position + 1;
+      }
+    }
+
+    Node left = nodeInfo[node.cleft_];
+    Node right = nodeInfo[node.cright_];
+    int defaultRight = node.default_left() ? 0 : 1;
+
+    // Places the child with the higher cover next to the parent, as PreorderRegTree does
+    Node near = left;
+    Node far = right;
+    int falseIsLeft = 0;
+    if (left.sum_hess <= right.sum_hess) {
+      near = right;
+      far = left;
+      falseIsLeft = 1;
+      defaultRight ^= 1;
+    }
+
+    int farPosition = pack(nodeInfo, near.id, position + SPLIT_SIZE, dictionaryIndex);
+    nodes[position] = ((farPosition - position) << 19)
+        | (node._splitIndex << 3) | (defaultRight << 2) | (falseIsLeft << 1);
+    nodes[position + 1] = Float.floatToRawIntBits(node.split_cond);
+    return pack(nodeInfo, far.id, farPosition, dictionaryIndex);
+  }
+
+  @Override
+  protected int getNextNode(int index, FVec feat) {
+    int word = nodes[index];
+    float fvalue = feat.floatValue((word >>> 3) & 0xFFFF);
+
+    if (FVec.isMissing(fvalue)) {
+      return (word & 0b100) == 0 ? index + SPLIT_SIZE : index + (word >>> 19);
+    }
+
+    // Same as PreorderRegTree: the near child is taken iff the condition differs from "false is left"
+    if ((fvalue < Float.intBitsToFloat(nodes[index + 1])) != ((word & 0b10) != 0)) {
+      return index + SPLIT_SIZE;
+    } else {
+      return index + (word >>> 19);
+    }
+  }
+
+  @Override
+  public long sizeInBytes() {
+    return 4L * nodes.length + (dictionary != null ? 4L * dictionary.length : 0);
+  }
+
+  @Override
+  protected boolean isLeafNode(int node) {
+    return (nodes[node] & 1) != 0;
+  }
+
+  @Override
+  protected double getLeafValue(int node) {
+    switch (leafEncoding) {
+      case FLOAT:
+        return Float.intBitsToFloat(nodes[node + 1]);
+      case DICTIONARY:
+        return dictionary[nodes[node] >>> 16];
+      default:
+        return fromHalf(nodes[node] >>> 16);
+    }
+  }
+
+  @Override
+  protected int getLeafIndex(int node) {
+    return leafEncoding == LeafEncoding.FLOAT
+        ? nodes[node] >>> 1
+        : (nodes[node] >>> 1) & (MAX_ENCODED_LEAF_ID - 1);
+  }
+
+  /**
+   * Rounds a float to the nearest half precision value, ties to even.
+   *
+   * @param value float value
+   * @return 16 bits of the half precision value, or {@code -1} if the magnitude of the value
+   * exceeds the largest half precision value or the value is NaN
+   */
+  static int toHalf(float value) {
+    int bits = Float.floatToRawIntBits(value);
+    int sign = (bits >>> 16) & 0x8000;
+    int abs = bits & 0x7FFFFFFF;
+
+    if (abs > 0x477FE000) {
+      // Greater than 65504, infinity or NaN
+      return -1;
+    }
+
+    if (abs < 0x38800000) {
+      // Subnormal in half precision: multiples of 2^-24
+      return sign | (int) Math.rint(Math.abs((double) value) * 0x1p24);
+    }
+
+    int half = (((abs >>> 23) - 112) << 10) | ((abs >>> 13) & 0x3FF);
+    int rest = abs & 0x1FFF;
+    if (rest > 0x1000 || (rest == 0x1000 && (half & 1) == 1)) {
+      // Carries into the exponent if needed
+      half++;
+    }
+    return sign | half;
+  }
+
+  /**
+   * @param half 16 bits of a finite half precision value
+   * @return the value as a float
+   */
+  static float fromHalf(int half) {
+    int sign = (half & 0x8000) << 16;
+    int exponent = (half >>> 10) & 0x1F;
+    int mantissa = half & 0x3FF;
+
+    if (exponent == 0) {
+      float magnitude = mantissa * 0x1p-24f;
+      return sign == 0 ? magnitude : -magnitude;
+    }
+    return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+  }
+}
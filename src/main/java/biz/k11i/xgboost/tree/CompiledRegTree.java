@@ -0,0 +1,129 @@
+package biz.k11i.xgboost.tree;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+
+import biz.k11i.xgboost.util.FVec;
+
+/**
+ * Regression tree compiled into JVM bytecode when it is loaded.
+ *
+ * Each split node becomes a feature lookup followed by a single float comparison against a
+ * constant threshold, and each leaf becomes a constant return of its node id, so that the JIT
+ * compiler turns the tree into straight-line compare-and-jump code without any node array loads.
+ * The comparison also routes missing values to the default child (see {@link TreeCompiler}).
+ *
+ * Design Specifics / Limitations:
+ * - Like {@link PreorderRegTree}, the child with the larger cover is laid out as the fall-through
+ * path of each branch.
+ *
+ * - HotSpot does not JIT-compile methods larger than 8000 bytes of bytecode, so trees are split
+ * into methods of at most {@link #DEFAULT_MAX_NODES_PER_METHOD} nodes, each calling the methods of
+ * its spilled subtrees.
+ *
+ * - Every tree is defined by its own class loader so that its class can be unloaded together
+ * with the tree. The tree keeps its nodes to be recompiled when it is deserialized.
+ *
+ * - Trees are compiled with ASM ({@code org.ow2.asm:asm}), which is an optional dependency of
+ * this library. Applications using this class must add it to their own runtime classpath.
+ */
+public class CompiledRegTree extends AbstractRegTree {
+  /**
+   * Evaluator generated from a tree. This is public only because generated classes are defined
+   * by another class loader.
+   */
+  public interface Evaluator {
+    /**
+     * @param feat feature vector
+     * @return id of the leaf node the feature vector reaches
+     */
+    int leafIndex(FVec feat);
+  }
+
+  public static final int DEFAULT_MAX_NODES_PER_METHOD = 256;
+
+  private final int maxNodesPerMethod;
+  private Node[] nodes;
+  private float[] leafValues;
+  private transient Evaluator evaluator;
+
+  public CompiledRegTree() {
+    this(DEFAULT_MAX_NODES_PER_METHOD);
+  }
+
+  /**
+   * @param maxNodesPerMethod maximum number of nodes compiled into a single method
+   */
+  public CompiledRegTree(int maxNodesPerMethod) {
+    if (maxNodesPerMethod <= 0) {
+      throw new IllegalArgumentException("maxNodesPerMethod must be positive: " + maxNodesPerMethod);
+    }
+    this.maxNodesPerMethod = maxNodesPerMethod;
+  }
+
+  @Override
+  public void loadModel(Param param) {
+    nodes = param.nodeInfo;
+    leafValues = new float[nodes.length];
+    for (Node node : nodes) {
+      if (node._isLeaf) {
+        leafValues[node.id] = node.leaf_value;
+      }
+    }
+    evaluator = TreeCompiler.compile(nodes, maxNodesPerMethod);
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    evaluator = TreeCompiler.compile(nodes, maxNodesPerMethod);
+  }
+
+  @Override
+  public int getLeafIndex(FVec feat) {
+    return evaluator.leafIndex(feat);
+  }
+
+  @Override
+  public double getLeafValue(FVec feat) {
+    return leafValues[evaluator.leafIndex(feat)];
+  }
+
+  /**
+   * Evaluates the feature vectors one by one with the compiled code, which has no node index to
+   * advance in lockstep.
+   */
+  @Override
+  public void getLeafValues(FVec[] feats, int count, int[] nodes, double[] values) {
+    for (int i = 0; i < count; i++) {
+      values[i] = leafValues[evaluator.leafIndex(feats[i])];
+    }
+  }
+
+  /**
+   * Counts only the leaf values, since split conditions are embedded in the compiled code.
+   */
+  @Override
+  public long sizeInBytes() {
+    return 4L * leafValues.length;
+  }
+
+  @Override
+  protected int getNextNode(int node, FVec feat) {
+    return nodes[node].next(feat);
+  }
+
+  @Override
+  protected boolean isLeafNode(int node) {
+    return nodes[node]._isLeaf;
+  }
+
+  @Override
+  protected double getLeafValue(int node) {
+    return leafValues[node];
+  }
+
+  @Override
+  protected int getLeafIndex(int node) {
+    return node;
+  }
+}
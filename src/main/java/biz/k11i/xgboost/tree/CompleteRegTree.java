@@ -0,0 +1,148 @@
+package biz.k11i.xgboost.tree;
+
+import java.io.Serializable;
+import java.util.function.Function;
+
+import biz.k11i.xgboost.util.FVec;
+
+/**
+ * Regression tree padded into a complete binary tree, evaluated by a fixed number of branch-free
+ * steps. Internal nodes are stored in breadth first order as blocks of 2 ints:
+ *
+ *   --------------------------------------------------------
+ * 1 |               Split condition (32 bits)              |
+ *   --------------------------------------------------------
+ * 2 |  Feature Index (31 bits) | Default is right (1 bit)  |
+ *   --------------------------------------------------------
+ *
+ * The children of internal node {@code i} are {@code 2i + 1} (left) and {@code 2i + 2} (right),
+ * so each step computes the next node as {@code 2i + 1 + bit} where
+ * {@code bit = (fvalue >= split_cond) | (default_right & is_missing)}: the comparison is false
+ * for a missing value, so the precomputed default bit alone decides its direction. After
+ * {@code depth} steps the node is a leaf, whose value and original id are looked up by its
+ * position among the {@code 2^depth} leaves.
+ *
+ * Design Specifics / Limitations:
+ * - A leaf shallower than the tree depth is padded with dummy splits whose both children are
+ * copies of the leaf, so the direction taken there does not matter.
+ *
+ * - Storage grows as {@code 2^depth}, so this layout only suits shallow trees. Use
+ * {@link #strategy(int)} to fall back to {@link PreorderRegTree} for deeper trees.
+ *
+ * - Uniform traffic, for which branch prediction of {@link PreorderRegTree} fails half of the
+ * time at each level, benefits the most.
+ */
+public class CompleteRegTree extends AbstractRegTree {
+  private static final int BLOCK_SIZE = 2;
+
+  private int depth;
+  private int numInternalNodes;
+  private int[] nodes;
+  private float[] leafValues;
+  private int[] leafIds;
+
+  /**
+   * Creates a tree creation strategy that uses {@link CompleteRegTree} for trees not deeper than
+   * {@code maxDepth}, and {@link PreorderRegTree} for the others.
+   *
+   * @param maxDepth maximum depth of trees laid out as complete trees
+   * @return tree creation strategy
+   */
+  public static Function<Param, AbstractRegTree> strategy(int maxDepth) {
+    if (maxDepth < 0 || maxDepth > 30) {
+      throw new IllegalArgumentException("maxDepth must be in [0, 30]: " + maxDepth);
+    }
+    return (Function<Param, AbstractRegTree> & Serializable) param ->
+        depth(param.nodeInfo, 0) <= maxDepth ? new CompleteRegTree() : new PreorderRegTree();
+  }
+
+  static int depth(Node[] nodes, int id) {
+    Node node = nodes[id];
+    if (node._isLeaf) {
+      return 0;
+    }
+    return 1 + Math.max(depth(nodes, node.cleft_), depth(nodes, node.cright_));
+  }
+
+  @Override
+  public void loadModel(Param param) {
+    depth = depth(param.nodeInfo, 0);
+    numInternalNodes = (1 << depth) - 1;
+    nodes = new int[BLOCK_SIZE * numInternalNodes];
+    leafValues = new float[1 << depth];
+    leafIds = new int[1 << depth];
+    fill(param.nodeInfo, param.nodeInfo[0], 0, 0);
+  }
+
+  /**
+   * Stores the subtree of the given node at the given position of the complete tree.
+   */
+  private void fill(Node[] nodeInfo, Node node, int position, int level) {
+    if (level == depth) {
+      leafValues[position - numInternalNodes] = node.leaf_value;
+      leafIds[position - numInternalNodes] = node.id;
+      return;
+    }
+
+    if (node._isLeaf) {
+      // Pads with a dummy split, whose children are both copies of the leaf
+      nodes[BLOCK_SIZE * position] = Float.floatToRawIntBits(Float.POSITIVE_INFINITY);
+      nodes[BLOCK_SIZE * position + 1] = 0;
+      fill(nodeInfo, node, 2 * position + 1, level + 1);
+      fill(nodeInfo, node, 2 * position + 2, level + 1);
+      return;
+    }
+
+    nodes[BLOCK_SIZE * position] = Float.floatToRawIntBits(node.split_cond);
+    nodes[BLOCK_SIZE * position + 1] = (node._splitIndex << 1) | (node.default_left() ? 0 : 1);
+    fill(nodeInfo, nodeInfo[node.cleft_], 2 * position + 1, level + 1);
+    fill(nodeInfo, nodeInfo[node.cright_], 2 * position + 2, level + 1);
+  }
+
+  private int getLeafPosition(FVec feat) {
+    int position = 0;
+    for (int level = 0; level < depth; level++) {
+      position = getNextNode(position, feat);
+    }
+    return position - numInternalNodes;
+  }
+
+  @Override
+  public int getLeafIndex(FVec feat) {
+    return leafIds[getLeafPosition(feat)];
+  }
+
+  @Override
+  public double getLeafValue(FVec feat) {
+    return leafValues[getLeafPosition(feat)];
+  }
+
+  @Override
+  protected int getNextNode(int node, FVec feat) {
+    int featureAndDefault = nodes[BLOCK_SIZE * node + 1];
+    float fvalue = feat.floatValue(featureAndDefault >>> 1);
+    int bit = (fvalue >= Float.intBitsToFloat(nodes[BLOCK_SIZE * node]) ? 1 : 0)
+        | (featureAndDefault & (fvalue != fvalue ? 1 : 0));
+    return 2 * node + 1 + bit;
+  }
+
+  @Override
+  public long sizeInBytes() {
+    return 4L * (nodes.length + leafValues.length + leafIds.length);
+  }
+
+  @Override
+  protected boolean isLeafNode(int node) {
+    return node >= numInternalNodes;
+  }
+
+  @Override
+  protected double getLeafValue(int node) {
+    return leafValues[node - numInternalNodes];
+  }
+
+  @Override
+  protected int getLeafIndex(int node) {
+    return leafIds[node - numInternalNodes];
+  }
+}
@@ -0,0 +1,470 @@
+package biz.k11i.xgboost.tree;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import biz.k11i.xgboost.util.FVec;
+
+/**
+ * Whole forest packed into a single int array, instead of an array per tree.
+ *
+ * Each tree is packed in the layout of {@link PreorderRegTree}, and the trees of all output
+ * groups are laid out one after another in boosting order. Since children are addressed relative
+ * to their parent, a tree is just a root offset into the arena, so evaluating a group is a loop
+ * over its root offsets without chasing a pointer per tree.
+ *
+ * The arena replaces the trees of the model: the {@link ForestEngine} of each output group
+ * provides its trees as views holding a root offset into the arena, which are used for leaf index
+ * prediction, parallel tree evaluation, batch prediction and early exit. The node arrays of the
+ * tree creation strategy are never built, and the arena is shared by all groups and serialized as
+ * a single block.
+ *
+ * Design Specifics / Limitations:
+ * - With deduplication, subtrees are hashed bottom-up by their features, split conditions,
+ * default directions and leaf values, and a right child (or a root) identical to a subtree
+ * already in the arena points to it instead of being copied, turning the forest into a DAG.
+ * Traversal is unchanged, as right child offsets may be negative. Left children still have to
+ * follow their parent, so they are always copied.
+ *
+ * - A shared leaf stores the leaf ID of the tree it was first emitted for. Each other tree
+ * reaching it keeps its own leaf ID in a small sorted table of its view, only read by leaf index
+ * prediction. A tree never shares a subtree whose leaves it already reaches, so that a leaf
+ * position stands for a single leaf ID of each tree.
+ */
+public class ForestArena implements Serializable {
+  private static final int BLOCK_SIZE = 3;
+
+  private final int[] nodes;
+  private final Tree[][] groupTrees;
+  private final int undeduplicatedSize;
+  private final int sharedSubtrees;
+  // number of leaf IDs kept by tree views for shared leaves
+  private final int leafIdOverrides;
+
+  /**
+   * Creates a factory of {@link ForestEngine}s sharing a {@link ForestArena} among all output
+   * groups, without deduplication.
+   *
+   * @return factory
+   */
+  public static ForestEngine.Factory factory() {
+    return factory(false);
+  }
+
+  /**
+   * Creates a factory of {@link ForestEngine}s sharing a {@link ForestArena} among all output
+   * groups.
+   *
+   * @param deduplicate whether to store identical subtrees once
+   * @return factory
+   */
+  public static ForestEngine.Factory factory(boolean deduplicate) {
+    return new Factory(deduplicate);
+  }
+
+  /**
+   * Gets the arena the given engine is a view of.
+   *
+   * @param engine forest engine
+   * @return arena, or {@code null} if the engine is not created by {@link #factory(boolean)}
+   */
+  public static ForestArena of(ForestEngine engine) {
+    return engine instanceof Group ? ((Group) engine).arena : null;
+  }
+
+  private static class Factory implements ForestEngine.Factory {
+    private final boolean deduplicate;
+
+    Factory(boolean deduplicate) {
+      this.deduplicate = deduplicate;
+    }
+
+    @Override
+    public boolean providesTrees() {
+      return true;
+    }
+
+    @Override
+    public ForestEngine create(AbstractRegTree.Param[] params, AbstractRegTree[] trees) {
+      return new ForestArena(new AbstractRegTree.Param[][]{params}, deduplicate).group(0);
+    }
+
+    @Override
+    public ForestEngine[] create(AbstractRegTree.Param[][] groupParams, AbstractRegTree[][] groupTrees) {
+      ForestArena arena = new ForestArena(groupParams, deduplicate);
+      ForestEngine[] engines = new ForestEngine[groupParams.length];
+      for (int i = 0; i < groupParams.length; i++) {
+        engines[i] = arena.group(i);
+      }
+      return engines;
+    }
+  }
+
+  ForestArena(AbstractRegTree.Param[][] groupParams, boolean deduplicate) {
+    int size = 0;
+    for (AbstractRegTree.Param[] params : groupParams) {
+      for (AbstractRegTree.Param param : params) {
+        size += BLOCK_SIZE * param.num_nodes;
+      }
+    }
+    undeduplicatedSize = size;
+
+    Builder builder = new Builder(size, deduplicate);
+    int overrides = 0;
+    groupTrees = new Tree[groupParams.length][];
+    for (int g = 0; g < groupParams.length; g++) {
+      groupTrees[g] = new Tree[groupParams[g].length];
+      for (int t = 0; t < groupParams[g].length; t++) {
+        AbstractRegTree.Param param = groupParams[g][t];
+        int root = builder.add(PreorderRegTree.pack(param));
+        overrides += builder.overrides.size();
+        groupTrees[g][t] = new Tree(this, root, BLOCK_SIZE * param.num_nodes,
+            builder.overridePositions(), builder.overrideIds());
+      }
+    }
+
+    nodes = Arrays.copyOf(builder.nodes, builder.size);
+    sharedSubtrees = builder.sharedSubtrees;
+    leafIdOverrides = overrides;
+  }
+
+  /**
+   * Appends packed trees to the arena, sharing identical subtrees if requested.
+   */
+  private static class Builder {
+    final int[] nodes;
+    final boolean deduplicate;
+    // canonical id of each distinct subtree
+    final Map<SubtreeKey, Integer> canonicalIds = new HashMap<>();
+    // position in the arena of each canonical id
+    final Map<Integer, Integer> positions = new HashMap<>();
+    // positions of the leaves the current tree reaches, and the leaf IDs of the current tree
+    // differing from those stored at shared leaves
+    final Set<Integer> usedLeaves = new HashSet<>();
+    final TreeMap<Integer, Integer> overrides = new TreeMap<>();
+    int size;
+    int sharedSubtrees;
+
+    Builder(int capacity, boolean deduplicate) {
+      this.nodes = new int[capacity];
+      this.deduplicate = deduplicate;
+    }
+
+    /**
+     * @return position of the root of the tree
+     */
+    int add(int[] tree) {
+      usedLeaves.clear();
+      overrides.clear();
+      if (!deduplicate) {
+        System.arraycopy(tree, 0, nodes, size, tree.length);
+        size += tree.length;
+        return size - tree.length;
+      }
+
+      int[] canonical = new int[tree.length / BLOCK_SIZE];
+      canonicalize(tree, 0, canonical);
+      return emit(tree, 0, canonical, true);
+    }
+
+    /**
+     * @return arena positions of the leaves of the last added tree whose leaf ID differs from
+     *         the one stored in the arena, in ascending order, or {@code null} if none
+     */
+    int[] overridePositions() {
+      return overrides.isEmpty() ? null : overrides.keySet().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @return leaf IDs corresponding to {@link #overridePositions()}
+     */
+    int[] overrideIds() {
+      return overrides.isEmpty() ? null : overrides.values().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private int canonicalize(int[] tree, int index, int[] canonical) {
+      SubtreeKey key;
+      if (tree[index + 1] == 0) {
+        // Leaf IDs are left out, so that subtrees at different positions of their trees match
+        key = new SubtreeKey(tree[index], 0, 0, -1, -1);
+      } else {
+        int near = canonicalize(tree, index + BLOCK_SIZE, canonical);
+        int far = canonicalize(tree, index + (tree[index + 1] >> 1), canonical);
+        key = new SubtreeKey(tree[index], tree[index + 1] & 1, tree[index + 2], near, far);
+      }
+
+      Integer id = canonicalIds.get(key);
+      if (id == null) {
+        id = canonicalIds.size();
+        canonicalIds.put(key, id);
+      }
+      canonical[index / BLOCK_SIZE] = id;
+      return id;
+    }
+
+    /**
+     * Emits the subtree at the given index of the packed tree.
+     *
+     * @param shareable whether the subtree may point to an identical one already emitted
+     * @return position of the subtree in the arena
+     */
+    private int emit(int[] tree, int index, int[] canonical, boolean shareable) {
+      int id = canonical[index / BLOCK_SIZE];
+      Integer existing = positions.get(id);
+      if (shareable && existing != null && share(tree, index, existing)) {
+        sharedSubtrees++;
+        return existing;
+      }
+
+      int position = size;
+      if (existing == null) {
+        positions.put(id, position);
+      }
+      nodes[position] = tree[index];
+      nodes[position + 1] = tree[index + 1];
+      nodes[position + 2] = tree[index + 2];
+      size += BLOCK_SIZE;
+
+      if (tree[index + 1] != 0) {
+        // The left child is emitted right next to its parent
+        emit(tree, index + BLOCK_SIZE, canonical, false);
+        int farPosition = emit(tree, index + (tree[index + 1] >> 1), canonical, true);
+        nodes[position + 1] = ((farPosition - position) << 1) | (tree[index + 1] & 1);
+      } else {
+        usedLeaves.add(position);
+      }
+      return position;
+    }
+
+    /**
+     * Lets the current tree point to an identical subtree in the arena, unless the tree already
+     * reaches one of its leaves, in which case a leaf position would stand for two leaf IDs of
+     * the same tree. Records the leaf IDs differing from those stored in the arena.
+     *
+     * @return whether the subtree is shared
+     */
+    private boolean share(int[] tree, int index, int position) {
+      Map<Integer, Integer> leafIds = new HashMap<>();
+      collectLeafIds(tree, index, position, leafIds);
+      for (int leaf : leafIds.keySet()) {
+        if (usedLeaves.contains(leaf)) {
+          return false;
+        }
+      }
+
+      for (Map.Entry<Integer, Integer> entry : leafIds.entrySet()) {
+        int leaf = entry.getKey();
+        usedLeaves.add(leaf);
+        if (nodes[leaf + 2] != entry.getValue()) {
+          overrides.put(leaf, entry.getValue());
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Walks an arena subtree and the identical subtree of the packed tree together, mapping each
+     * leaf position in the arena to the leaf ID of the packed tree.
+     */
+    private void collectLeafIds(int[] tree, int index, int position, Map<Integer, Integer> leafIds) {
+      if (tree[index + 1] == 0) {
+        leafIds.put(position, tree[index + 2]);
+        return;
+      }
+      collectLeafIds(tree, index + BLOCK_SIZE, position + BLOCK_SIZE, leafIds);
+      collectLeafIds(tree, index + (tree[index + 1] >> 1), position + (nodes[position + 1] >> 1), leafIds);
+    }
+  }
+
+  /**
+   * Structure of a subtree, whose children are identified by canonical ids.
+   */
+  private static class SubtreeKey {
+    final int value;
+    final int falseIsLeft;
+    final int featureAndDefault;
+    final int near;
+    final int far;
+
+    SubtreeKey(int value, int falseIsLeft, int featureAndDefault, int near, int far) {
+      this.value = value;
+      this.falseIsLeft = falseIsLeft;
+      this.featureAndDefault = featureAndDefault;
+      this.near = near;
+      this.far = far;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof SubtreeKey)) {
+        return false;
+      }
+      SubtreeKey other = (SubtreeKey) o;
+      return value == other.value && falseIsLeft == other.falseIsLeft
+          && featureAndDefault == other.featureAndDefault
+          && near == other.near && far == other.far;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = value;
+      result = 31 * result + falseIsLeft;
+      result = 31 * result + featureAndDefault;
+      result = 31 * result + near;
+      result = 31 * result + far;
+      return result;
+    }
+  }
+
+  /**
+   * @param group output group
+   * @return forest engine evaluating the trees of the given output group
+   */
+  ForestEngine group(int group) {
+    return new Group(this, groupTrees[group]);
+  }
+
+  /**
+   * Gets the number of bytes the model retains for its nodes, which are the nodes in the arena
+   * and the leaf IDs the trees keep for shared leaves. Since the arena replaces the node arrays
+   * of the trees, this is the whole node data of the model.
+   *
+   * @return number of bytes of node data
+   */
+  public long sizeInBytes() {
+    return 4L * nodes.length + 8L * leafIdOverrides;
+  }
+
+  /**
+   * Gets the number of bytes the model would retain for its nodes without deduplication, to be
+   * compared with {@link #sizeInBytes()}.
+   *
+   * @return number of bytes of node data without deduplication
+   */
+  public long undeduplicatedSizeInBytes() {
+    return 4L * undeduplicatedSize;
+  }
+
+  /**
+   * @return number of references to subtrees shared by deduplication
+   */
+  public int getSharedSubtrees() {
+    return sharedSubtrees;
+  }
+
+  /**
+   * Reports the node data the model retains with and without deduplication.
+   */
+  @Override
+  public String toString() {
+    return String.format(
+        "ForestArena[retained node bytes=%d, without deduplication=%d, shared subtrees=%d]",
+        sizeInBytes(), undeduplicatedSizeInBytes(), sharedSubtrees);
+  }
+
+  /**
+   * Tree of the arena, which is a root offset into the nodes of the arena.
+   */
+  private static class Tree extends AbstractRegTree {
+    private final ForestArena arena;
+    private final int root;
+    private final int size;
+    // Leaf IDs of this tree at shared leaves storing the ID of another tree, by arena position
+    private final int[] overridePositions;
+    private final int[] overrideIds;
+
+    Tree(ForestArena arena, int root, int size, int[] overridePositions, int[] overrideIds) {
+      this.arena = arena;
+      this.root = root;
+      this.size = size;
+      this.overridePositions = overridePositions;
+      this.overrideIds = overrideIds;
+    }
+
+    @Override
+    public void loadModel(Param param) {
+      throw new UnsupportedOperationException("Trees of a ForestArena are packed by the arena");
+    }
+
+    @Override
+    protected int getRootNode() {
+      return root;
+    }
+
+    @Override
+    protected int getNextNode(int node, FVec feat) {
+      return PreorderRegTree.nextNode(arena.nodes, node, feat);
+    }
+
+    @Override
+    protected boolean isLeafNode(int node) {
+      return arena.nodes[node + 1] == 0;
+    }
+
+    @Override
+    protected double getLeafValue(int node) {
+      return Float.intBitsToFloat(arena.nodes[node]);
+    }
+
+    @Override
+    protected int getLeafIndex(int node) {
+      if (overridePositions != null) {
+        int i = Arrays.binarySearch(overridePositions, node);
+        if (i >= 0) {
+          return overrideIds[i];
+        }
+      }
+      return arena.nodes[node + 2];
+    }
+
+    /**
+     * Returns the size of the tree before deduplication, which bounds the nodes read while
+     * evaluating it.
+     */
+    @Override
+    public long sizeInBytes() {
+      return 4L * size;
+    }
+  }
+
+  private static class Group implements ForestEngine {
+    private final ForestArena arena;
+    private final Tree[] trees;
+    private final int[] roots;
+
+    Group(ForestArena arena, Tree[] trees) {
+      this.arena = arena;
+      this.trees = trees;
+      this.roots = new int[trees.length];
+      for (int t = 0; t < trees.length; t++) {
+        roots[t] = trees[t].root;
+      }
+    }
+
+    @Override
+    public AbstractRegTree[] getTrees() {
+      return trees;
+    }
+
+    @Override
+    public double predict(FVec feat, int ntree) {
+      int[] nodes = arena.nodes;
+      int[] roots = this.roots;
+
+      float psum = 0;
+      for (int t = 0; t < ntree; t++) {
+        int index = roots[t];
+        while (nodes[index + 1] != 0) {
+          index = PreorderRegTree.nextNode(nodes, index, feat);
+        }
+        psum += Float.intBitsToFloat(nodes[index]);
+      }
+      return psum;
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package biz.k11i.xgboost.tree;
+
+import java.io.Serializable;
+
+import biz.k11i.xgboost.util.FVec;
+
+/**
+ * Evaluates the trees of an output group all at once, as an alternative to evaluating each
+ * {@link AbstractRegTree} on its own.
+ */
+public interface ForestEngine extends Serializable {
+  /**
+   * Creates a {@link ForestEngine} for the trees of an output group.
+   */
+  interface Factory extends Serializable {
+    /**
+     * Whether the engines created by this factory hold the trees themselves and provide them
+     * through {@link ForestEngine#getTrees()}. If so, the trees are not created by the tree
+     * creation strategy, and {@code null} is passed as the loaded trees.
+     *
+     * @return {@code true} if engines provide the trees of their output groups
+     */
+    default boolean providesTrees() {
+      return false;
+    }
+
+    /**
+     * @param params parameters of the trees, in boosting order
+     * @param trees  loaded trees corresponding to {@code params}, which engines may use for
+     *               trees they cannot handle, or {@code null} if {@link #providesTrees()}
+     * @return forest engine, or {@code null} to evaluate the trees one by one
+     */
+    ForestEngine create(AbstractRegTree.Param[] params, AbstractRegTree[] trees);
+
+    /**
+     * Creates forest engines for all output groups at once, so that they can share data. By
+     * default, engines are created group by group with {@link #create}.
+     *
+     * @param groupParams parameters of the trees of each output group, in boosting order
+     * @param groupTrees  loaded trees corresponding to {@code groupParams}, or {@code null} if
+     *                    {@link #providesTrees()}
+     * @return forest engine of each output group, whose elements may be {@code null} unless
+     *         {@link #providesTrees()}
+     */
+    default ForestEngine[] create(AbstractRegTree.Param[][] groupParams, AbstractRegTree[][] groupTrees) {
+      ForestEngine[] engines = new ForestEngine[groupParams.length];
+      for (int i = 0; i < groupParams.length; i++) {
+        engines[i] = create(groupParams[i], groupTrees == null ? null : groupTrees[i]);
+      }
+      return engines;
+    }
+  }
+
+  /**
+   * Sums up the leaf values of the first {@code ntree} trees for the given feature vector.
+   * <p>
+   * Leaf values must be accumulated in float precision in tree order, so that the result is
+   * identical to evaluating trees one by one.
+   * </p>
+   *
+   * @param feat  feature vector
+   * @param ntree number of trees to evaluate
+   * @return sum of leaf values
+   */
+  double predict(FVec feat, int ntree);
+
+  /**
+   * Gets the trees of the output group held by this engine, which replace the trees of the
+   * model when the factory {@link Factory#providesTrees() provides trees}.
+   *
+   * @return trees in boosting order, or {@code null} if the engine does not provide them
+   */
+  default AbstractRegTree[] getTrees() {
+    return null;
+  }
+}
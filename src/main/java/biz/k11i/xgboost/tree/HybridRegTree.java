@@ -0,0 +1,189 @@
+package biz.k11i.xgboost.tree;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+import biz.k11i.xgboost.util.FVec;
+
+/**
+ * Regression tree laid out in two regions: the top levels in breadth first order, followed by the
+ * deeper nodes in cache line sized blocks. Each node is a block of 4 ints:
+ *
+ *   --------------------------------------------------------
+ * 1 |        Split condition / Leaf Value (32 bits)        |
+ *   --------------------------------------------------------
+ * 2 |  Feature Index (31 bits) | Default is right (1 bit)  | (Original ID iff node is leaf)
+ *   --------------------------------------------------------
+ * 3 |            Left Child Index (32 bits)                | (Zero iff node is leaf)
+ *   --------------------------------------------------------
+ * 4 |            Right Child Index (32 bits)               |
+ *   --------------------------------------------------------
+ *
+ * The top {@code topLevels} levels, which every evaluation goes through, are packed together at
+ * the head of the array so that they stay in cache. Below them, nodes are grouped into lines of 4
+ * nodes (64 bytes): a line starts from a node and greedily takes the reachable node with the
+ * highest cover until it is full, and the nodes left out start lines of their own. Lines are laid
+ * out in decreasing order of the cover of their first node, each starting at a multiple of 16
+ * ints. A rare branch therefore costs at most a miss per line rather than one per node as in
+ * {@link PreorderRegTree}, while deep nodes stay close to their ancestors unlike in
+ * {@link RegTree}.
+ *
+ * Design Specifics / Limitations:
+ * - Lines are aligned relative to the start of the array. Whether they are aligned to actual
+ * cache lines depends on the JVM's array header and object alignment.
+ *
+ * - Partially filled lines are padded, so this takes more memory than {@link PreorderRegTree}.
+ */
+public class HybridRegTree extends AbstractRegTree {
+  public static final int DEFAULT_TOP_LEVELS = 3;
+
+  private static final int BLOCK_SIZE = 4;
+  private static final int NODES_PER_LINE = 4;
+  private static final int LINE_SIZE = BLOCK_SIZE * NODES_PER_LINE;
+
+  private static final Comparator<Node> BY_COVER = Comparator
+      .comparingDouble((Node node) -> -node.sum_hess)
+      .thenComparingInt(node -> node.id);
+
+  private final int topLevels;
+  private int[] nodes;
+
+  /**
+   * Creates a tree creation strategy that uses {@link HybridRegTree} for every tree.
+   *
+   * @param topLevels number of levels laid out in breadth first order
+   * @return tree creation strategy
+   */
+  public static Function<Param, AbstractRegTree> strategy(int topLevels) {
+    checkTopLevels(topLevels);
+    return (Function<Param, AbstractRegTree> & Serializable) param -> new HybridRegTree(topLevels);
+  }
+
+  private static void checkTopLevels(int topLevels) {
+    if (topLevels < 0) {
+      throw new IllegalArgumentException("topLevels must not be negative: " + topLevels);
+    }
+  }
+
+  /**
+   * Creates a tree with {@link #DEFAULT_TOP_LEVELS} levels in breadth first order.
+   */
+  public HybridRegTree() {
+    this(DEFAULT_TOP_LEVELS);
+  }
+
+  /**
+   * @param topLevels number of levels laid out in breadth first order
+   */
+  public HybridRegTree(int topLevels) {
+    checkTopLevels(topLevels);
+    this.topLevels = topLevels;
+  }
+
+  @Override
+  public void loadModel(Param param) {
+    Node[] nodeInfo = param.nodeInfo;
+    int[] positions = new int[param.num_nodes];
+    int position = 0;
+
+    // Top levels in breadth first order
+    PriorityQueue<Node> lineStarts = new PriorityQueue<>(BY_COVER);
+    ArrayDeque<Node> level = new ArrayDeque<>();
+    level.add(nodeInfo[0]);
+    for (int depth = 0; !level.isEmpty(); depth++) {
+      if (depth == topLevels) {
+        lineStarts.addAll(level);
+        break;
+      }
+
+      ArrayDeque<Node> nextLevel = new ArrayDeque<>();
+      for (Node node : level) {
+        positions[node.id] = position;
+        position += BLOCK_SIZE;
+        if (!node._isLeaf) {
+          nextLevel.add(nodeInfo[node.cleft_]);
+          nextLevel.add(nodeInfo[node.cright_]);
+        }
+      }
+      level = nextLevel;
+    }
+
+    // Deeper nodes in lines, hottest first
+    while (!lineStarts.isEmpty()) {
+      position = align(position);
+
+      PriorityQueue<Node> reachable = new PriorityQueue<>(BY_COVER);
+      reachable.add(lineStarts.poll());
+      for (int n = 0; n < NODES_PER_LINE && !reachable.isEmpty(); n++) {
+        Node node = reachable.poll();
+        positions[node.id] = position;
+        position += BLOCK_SIZE;
+        if (!node._isLeaf) {
+          reachable.add(nodeInfo[node.cleft_]);
+          reachable.add(nodeInfo[node.cright_]);
+        }
+      }
+      lineStarts.addAll(reachable);
+    }
+
+    nodes = new int[align(position)];
+    fill(nodeInfo, 0, positions);
+  }
+
+  private static int align(int position) {
+    return (position + LINE_SIZE - 1) / LINE_SIZE * LINE_SIZE;
+  }
+
+  private void fill(Node[] nodeInfo, int id, int[] positions) {
+    Node node = nodeInfo[id];
+    int position = positions[id];
+
+    if (node._isLeaf) {
+      nodes[position] = Float.floatToRawIntBits(node.leaf_value);
+      nodes[position + 1] = node.id;
+      return;
+    }
+
+    nodes[position] = Float.floatToRawIntBits(node.split_cond);
+    nodes[position + 1] = (node._splitIndex << 1) | (node.default_left() ? 0 : 1);
+    nodes[position + 2] = positions[node.cleft_];
+    nodes[position + 3] = positions[node.cright_];
+    fill(nodeInfo, node.cleft_, positions);
+    fill(nodeInfo, node.cright_, positions);
+  }
+
+  @Override
+  protected int getNextNode(int index, FVec feat) {
+    int featureAndDefault = nodes[index + 1];
+    float fvalue = feat.floatValue(featureAndDefault >>> 1);
+
+    if (FVec.isMissing(fvalue)) {
+      return nodes[index + 2 + (featureAndDefault & 1)];
+    }
+    return fvalue < Float.intBitsToFloat(nodes[index]) ? nodes[index + 2] : nodes[index + 3];
+  }
+
+  @Override
+  protected boolean isLeafNode(int node) {
+    // Only the root is at index 0, so a child index is never zero
+    return nodes[node + 2] == 0;
+  }
+
+  @Override
+  protected double getLeafValue(int node) {
+    return Float.intBitsToFloat(nodes[node]);
+  }
+
+  @Override
+  protected int getLeafIndex(int node) {
+    return nodes[node + 1];
+  }
+
+  @Override
+  public long sizeInBytes() {
+    return 4L * nodes.length;
+  }
+}
@@ -60,8 +60,35 @@ public class PreorderRegTree extends AbstractRegTree {
 
   @Override
   public void loadModel(Param param) {
+    nodes = pack(param);
+  }
+
+  /**
+   * Packs the nodes of a tree into the layout described above. Since children are addressed
+   * relative to their parent, the result can be copied to anywhere in a larger array.
+   *
+   * @param param parameters of the tree
+   * @return packed nodes, whose root is at index 0
+   */
+  static int[] pack(Param param) {
+    double[] weights = new double[param.num_nodes];
+    for (Node node : param.nodeInfo) {
+      weights[node.id] = node.sum_hess;
+    }
+    return pack(param, weights);
+  }
+
+  /**
+   * Packs the nodes of a tree into the layout described above, placing the child with the higher
+   * weight next to its parent instead of the one with the higher cover.
+   *
+   * @param param   parameters of the tree
+   * @param weights weight of each node, indexed by the original node ID
+   * @return packed nodes, whose root is at index 0
+   */
+  static int[] pack(Param param, double[] weights) {
     int nodeOffset = 0;
-    nodes = new int[BLOCK_SIZE * param.num_nodes];
+    int[] nodes = new int[BLOCK_SIZE * param.num_nodes];
 
     ArrayDeque<Node> boundaryNodeStack = new ArrayDeque<>();
     Map<Integer, Integer> newIndexMap = new HashMap<>(param.num_nodes);
@@ -88,7 +115,7 @@ public class PreorderRegTree extends AbstractRegTree {
          * Note: stores a 1 in right child offset as a placeholder to distinguish from a the 0x0
          * stored by a leaf in the case that the original left is still left.
          */
-        if (left.sum_hess > right.sum_hess) {
+        if (weights[left.id] > weights[right.id]) {
           /*
            * Note: since this uses a stack, the child added second (in this case the left child)
            * has its entire subtree expanded before the other child
@@ -126,23 +153,38 @@ public class PreorderRegTree extends AbstractRegTree {
         nodes[parentId + 1] = ((newChildId - parentId) << 1) | (nodes[parentId + 1] & 0x1);
       }
     }
+
+    return nodes;
   }
 
   @Override
   protected int getNextNode(int index, FVec feat) {
-    Number fvalue = feat.fvalue(nodes[index + 2] >>> 1);
+    return nextNode(nodes, index, feat);
+  }
+
+  /**
+   * Gets the next node of a node packed by {@link #pack(Param)}. The right child offset is read as
+   * a signed value, so that {@link ForestArena} can point to a subtree shared with an earlier tree.
+   *
+   * @param nodes packed nodes
+   * @param index index of a split node
+   * @param feat  feature vector
+   * @return index of the next node
+   */
+  static int nextNode(int[] nodes, int index, FVec feat) {
+    float fvalue = feat.floatValue(nodes[index + 2] >>> 1);
 
     // Todo: look into changing `getNextNode` into `getNextNodeOffset` for potential perf gain
-    if (null == fvalue) {
+    if (FVec.isMissing(fvalue)) {
       if ((nodes[index + 2] & 1) == 0) {
         return index + BLOCK_SIZE;
       } else {
-        return index + (nodes[index + 1] >>> 1);
+        return index + (nodes[index + 1] >> 1);
       }
     }
 
     if (
-        (fvalue.doubleValue() < Float.intBitsToFloat(nodes[index])) !=
+        (fvalue < Float.intBitsToFloat(nodes[index])) !=
             ((nodes[index + 1] & 0x1) == 1)
         ) {
       /*
@@ -154,10 +196,54 @@ public class PreorderRegTree extends AbstractRegTree {
       return index + BLOCK_SIZE;
     } else {
       // Otherwise, increment by the stored child offset
-      return index + (nodes[index + 1] >>> 1);
+      return index + (nodes[index + 1] >> 1);
     }
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Unlike {@link #nextNode(int[], int, FVec)}, each step selects the next node without a branch
+   * on the split outcome, since a mispredicted branch would discard the loads already issued for
+   * the other fvecs.
+   * </p>
+   */
+  @Override
+  public void getLeafValues(FVec[] feats, int count, int[] nodes, double[] values) {
+    int[] packed = this.nodes;
+    for (int i = 0; i < count; i++) {
+      nodes[i] = 0;
+    }
+
+    boolean advanced;
+    do {
+      advanced = false;
+      for (int i = 0; i < count; i++) {
+        int node = nodes[i];
+        int offset = packed[node + 1];
+        if (offset != 0) {
+          int split = packed[node + 2];
+          float fvalue = feats[i].floatValue(split >>> 1);
+          // Missing values go the default way; the comparison with NaN is then false anyway
+          boolean adjacent = FVec.isMissing(fvalue)
+              ? (split & 1) == 0
+              : (fvalue < Float.intBitsToFloat(packed[node])) != ((offset & 1) == 1);
+          nodes[i] = node + (adjacent ? BLOCK_SIZE : offset >> 1);
+          advanced = true;
+        }
+      }
+    } while (advanced);
+
+    for (int i = 0; i < count; i++) {
+      values[i] = Float.intBitsToFloat(packed[nodes[i]]);
+    }
+  }
+
+  @Override
+  public long sizeInBytes() {
+    return 4L * nodes.length;
+  }
+
   @Override
   protected boolean isLeafNode(int node) {
     return nodes[node + 1] == 0;
@@ -173,14 +259,14 @@ public class PreorderRegTree extends AbstractRegTree {
     return nodes[node + 2];
   }
 
-  private int createNodeValue(Node node) {
+  private static int createNodeValue(Node node) {
     if (node._isLeaf) {
       return Float.floatToRawIntBits(node.leaf_value);
     }
     return Float.floatToRawIntBits(node.split_cond);
   }
 
-  public int createNodeDefaultAndValue(Node node) {
+  public static int createNodeDefaultAndValue(Node node) {
     return (node.split_index() << 1) | (node.default_left() ? 0 : 1);
   }
 }
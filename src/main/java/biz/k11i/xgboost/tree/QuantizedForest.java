@@ -0,0 +1,231 @@
+package biz.k11i.xgboost.tree;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import biz.k11i.xgboost.util.FVec;
+
+/**
+ * {@link ForestEngine} comparing small integer bin ids instead of float thresholds, like
+ * treelite's threshold quantization.
+ *
+ * At load time, the distinct thresholds of each feature across the trees of the group are
+ * collected and sorted. At prediction time, each feature value is binary searched once into a
+ * 16-bit bin id, and trees compare bin ids with integer comparisons only.
+ *
+ * Bin ids are 1 + the number of thresholds not greater than the value, and 0 for a missing
+ * value. A node whose threshold is the k-th (0-based) of its feature takes the left child iff
+ * {@code bin < k + 2} if its default is left, or {@code 1 <= bin < k + 2} if its default is
+ * right. Both cases are checked at once as {@code ((bin - dr) & 0x1FFFF) < k + 2 - dr}, where
+ * {@code dr} is 1 iff the default is right, since a missing value wraps around to a large number.
+ *
+ * Nodes of all trees are packed in preorder in a single int array as blocks of 2 ints:
+ *
+ *   -----------------------------------------------------------------------------
+ * 1 | Feature Slot (15 bits) | Bin Limit k + 2 - dr (16 bits) | Default is right |
+ *   |                    or Leaf Value (32 bits)                                  |
+ *   -----------------------------------------------------------------------------
+ * 2 | Right Child Position (31 bits, non-negative) or ~(Leaf ID) (negative)       |
+ *   -----------------------------------------------------------------------------
+ *
+ * where the left child immediately follows its parent.
+ *
+ * Design Specifics / Limitations:
+ * - A group splitting on more than {@link #MAX_FEATURES} features or with more than
+ * {@link #MAX_THRESHOLDS} distinct thresholds on a feature cannot be quantized, in which case
+ * {@link #factory()} makes the group evaluated tree by tree.
+ *
+ * - Every feature used by the group is quantized for each prediction, so this pays off when
+ * features are shared by many nodes, i.e. for large forests over a moderate number of features.
+ */
+public class QuantizedForest implements ForestEngine {
+  public static final int MAX_FEATURES = 1 << 15;
+  public static final int MAX_THRESHOLDS = (1 << 16) - 2;
+
+  private static final int BLOCK_SIZE = 2;
+
+  // feature index of each slot
+  private final int[] features;
+  // sorted distinct thresholds of features[slot] are [thresholdOffsets[slot], thresholdOffsets[slot + 1])
+  private final int[] thresholdOffsets;
+  private final float[] thresholds;
+  private final int[] nodes;
+  private final int[] roots;
+  private transient ThreadLocal<char[]> bins;
+
+  /**
+   * Creates a factory of {@link QuantizedForest}, which evaluates groups that cannot be quantized
+   * tree by tree.
+   *
+   * @return factory
+   */
+  public static ForestEngine.Factory factory() {
+    return (params, trees) -> canQuantize(params) ? new QuantizedForest(params) : null;
+  }
+
+  static boolean canQuantize(AbstractRegTree.Param[] params) {
+    TreeMap<Integer, TreeSet<Float>> thresholdsByFeature = collectThresholds(params);
+    if (thresholdsByFeature.size() > MAX_FEATURES) {
+      return false;
+    }
+    for (TreeSet<Float> featureThresholds : thresholdsByFeature.values()) {
+      if (featureThresholds.size() > MAX_THRESHOLDS) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static TreeMap<Integer, TreeSet<Float>> collectThresholds(AbstractRegTree.Param[] params) {
+    TreeMap<Integer, TreeSet<Float>> result = new TreeMap<>();
+    for (AbstractRegTree.Param param : params) {
+      for (AbstractRegTree.Node node : param.nodeInfo) {
+        if (!node._isLeaf) {
+          result.computeIfAbsent(node._splitIndex, k -> new TreeSet<>()).add(node.split_cond);
+        }
+      }
+    }
+    return result;
+  }
+
+  QuantizedForest(AbstractRegTree.Param[] params) {
+    TreeMap<Integer, TreeSet<Float>> thresholdsByFeature = collectThresholds(params);
+
+    features = new int[thresholdsByFeature.size()];
+    thresholdOffsets = new int[features.length + 1];
+    int numThresholds = 0;
+    for (TreeSet<Float> featureThresholds : thresholdsByFeature.values()) {
+      numThresholds += featureThresholds.size();
+    }
+    thresholds = new float[numThresholds];
+
+    int slot = 0;
+    int offset = 0;
+    for (Map.Entry<Integer, TreeSet<Float>> entry : thresholdsByFeature.entrySet()) {
+      features[slot] = entry.getKey();
+      thresholdOffsets[slot] = offset;
+      for (float threshold : entry.getValue()) {
+        thresholds[offset++] = threshold;
+      }
+      slot++;
+    }
+    thresholdOffsets[features.length] = offset;
+
+    int numNodes = 0;
+    for (AbstractRegTree.Param param : params) {
+      numNodes += countNodes(param.nodeInfo, 0);
+    }
+    nodes = new int[BLOCK_SIZE * numNodes];
+    roots = new int[params.length];
+
+    int position = 0;
+    for (int t = 0; t < params.length; t++) {
+      roots[t] = position;
+      position = pack(params[t].nodeInfo, 0, position);
+    }
+
+    initBins();
+  }
+
+  private void initBins() {
+    final int size = features.length;
+    bins = ThreadLocal.withInitial(() -> new char[size]);
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    initBins();
+  }
+
+  private static int countNodes(AbstractRegTree.Node[] nodeInfo, int id) {
+    AbstractRegTree.Node node = nodeInfo[id];
+    if (node._isLeaf) {
+      return 1;
+    }
+    return 1 + countNodes(nodeInfo, node.cleft_) + countNodes(nodeInfo, node.cright_);
+  }
+
+  /**
+   * Packs the subtree of the given node in preorder from the given position.
+   *
+   * @return position next to the subtree
+   */
+  private int pack(AbstractRegTree.Node[] nodeInfo, int id, int position) {
+    AbstractRegTree.Node node = nodeInfo[id];
+    if (node._isLeaf) {
+      nodes[position] = Float.floatToRawIntBits(node.leaf_value);
+      nodes[position + 1] = ~node.id;
+      return position + BLOCK_SIZE;
+    }
+
+    int slot = Arrays.binarySearch(features, node._splitIndex);
+    int k = Arrays.binarySearch(
+        thresholds, thresholdOffsets[slot], thresholdOffsets[slot + 1], node.split_cond)
+        - thresholdOffsets[slot];
+    int defaultRight = node.default_left() ? 0 : 1;
+    nodes[position] = (slot << 17) | ((k + 2 - defaultRight) << 1) | defaultRight;
+
+    int rightPosition = pack(nodeInfo, node.cleft_, position + BLOCK_SIZE);
+    nodes[position + 1] = rightPosition;
+    return pack(nodeInfo, node.cright_, rightPosition);
+  }
+
+  /**
+   * Quantizes the used features of the given feature vector into bin ids.
+   */
+  private void quantize(FVec feat, char[] bins) {
+    for (int slot = 0; slot < features.length; slot++) {
+      float fvalue = feat.floatValue(features[slot]);
+      if (FVec.isMissing(fvalue)) {
+        bins[slot] = 0;
+        continue;
+      }
+
+      // Counts thresholds not greater than the value
+      int low = thresholdOffsets[slot];
+      int high = thresholdOffsets[slot + 1];
+      int begin = low;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (thresholds[mid] <= fvalue) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      bins[slot] = (char) (1 + low - begin);
+    }
+  }
+
+  private int getLeafPosition(char[] bins, int position) {
+    int[] nodes = this.nodes;
+    int next;
+    while ((next = nodes[position + 1]) >= 0) {
+      int split = nodes[position];
+      int defaultRight = split & 1;
+      int limit = (split >>> 1) & 0xFFFF;
+      if (((bins[split >>> 17] - defaultRight) & 0x1FFFF) < limit) {
+        position += BLOCK_SIZE;
+      } else {
+        position = next;
+      }
+    }
+    return position;
+  }
+
+  @Override
+  public double predict(FVec feat, int ntree) {
+    char[] bins = this.bins.get();
+    quantize(feat, bins);
+
+    float psum = 0;
+    for (int t = 0; t < ntree; t++) {
+      psum += Float.intBitsToFloat(nodes[getLeafPosition(bins, roots[t])]);
+    }
+    return psum;
+  }
+}
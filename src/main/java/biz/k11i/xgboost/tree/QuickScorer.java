@@ -0,0 +1,281 @@
+package biz.k11i.xgboost.tree;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import biz.k11i.xgboost.util.FVec;
+
+/**
+ * {@link ForestEngine} based on QuickScorer (Lucchese et al., SIGIR 2015), which evaluates a
+ * forest feature by feature instead of tree by tree.
+ *
+ * Leaves of each tree are numbered from left to right and each tree holds a 64-bit vector of
+ * the leaves still reachable, initially all of them. A split node whose test is false (that is,
+ * {@code fvalue >= split_cond}) makes its left subtree unreachable, which is applied by ANDing a
+ * precomputed mask into the vector of its tree. The exit leaf is then the leftmost reachable
+ * leaf, i.e. the lowest set bit.
+ *
+ * Split nodes are grouped by feature and sorted by threshold, so for each feature the false nodes
+ * across all trees are exactly a prefix of its list, which is scanned without any unpredictable
+ * branch per node. A missing value takes the default direction of each node, so it applies the
+ * masks of the feature's nodes whose default is right, kept in a separate list.
+ *
+ * Design Specifics / Limitations:
+ * - Trees with more than {@link #MAX_LEAVES} leaves are evaluated by their {@link AbstractRegTree}
+ * instead, in tree order along with the others.
+ *
+ * - With a block size, trees are split into blocks evaluated one after another (BlockWise-QS),
+ * so that the bitvectors and node lists of a block fit in cache for large forests.
+ *
+ * - Leaf values are summed up in tree order in float precision, so predictions are identical to
+ * evaluating trees one by one.
+ */
+public class QuickScorer implements ForestEngine {
+  public static final int MAX_LEAVES = 64;
+
+  private final int numTrees;
+  private final AbstractRegTree[] fallbackTrees;
+  private final float[] leafValues;
+  private final int[] leafOffsets;
+  private final Block[] blocks;
+  private final int maxBlockSize;
+  private transient ThreadLocal<long[]> bitvectors;
+
+  /**
+   * Creates a factory of {@link QuickScorer} evaluating all trees of a group as a single block.
+   *
+   * @return factory
+   */
+  public static ForestEngine.Factory factory() {
+    return factory(0);
+  }
+
+  /**
+   * Creates a factory of {@link QuickScorer}.
+   *
+   * @param blockSize number of trees per block (BlockWise-QS), or {@code 0} not to split trees
+   *                  into blocks
+   * @return factory
+   */
+  public static ForestEngine.Factory factory(int blockSize) {
+    if (blockSize < 0) {
+      throw new IllegalArgumentException("blockSize must not be negative: " + blockSize);
+    }
+    return (params, trees) -> new QuickScorer(params, trees, blockSize);
+  }
+
+  QuickScorer(AbstractRegTree.Param[] params, AbstractRegTree[] trees, int blockSize) {
+    numTrees = params.length;
+    fallbackTrees = new AbstractRegTree[numTrees];
+    leafOffsets = new int[numTrees];
+
+    int numLeaves = 0;
+    for (int t = 0; t < numTrees; t++) {
+      leafOffsets[t] = numLeaves;
+      int treeLeaves = countLeaves(params[t].nodeInfo, 0);
+      if (treeLeaves > MAX_LEAVES) {
+        fallbackTrees[t] = trees[t];
+      } else {
+        numLeaves += treeLeaves;
+      }
+    }
+    leafValues = new float[numLeaves];
+
+    int size = blockSize == 0 ? Math.max(numTrees, 1) : blockSize;
+    List<Block> blockList = new ArrayList<>();
+    for (int begin = 0; begin < numTrees; begin += size) {
+      blockList.add(new Block(
+          params, fallbackTrees, leafValues, leafOffsets, begin, Math.min(numTrees, begin + size)));
+    }
+    blocks = blockList.toArray(new Block[0]);
+    maxBlockSize = size;
+    initBitvectors();
+  }
+
+  private void initBitvectors() {
+    final int size = maxBlockSize;
+    bitvectors = ThreadLocal.withInitial(() -> new long[size]);
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    initBitvectors();
+  }
+
+  private static int countLeaves(AbstractRegTree.Node[] nodes, int id) {
+    AbstractRegTree.Node node = nodes[id];
+    if (node._isLeaf) {
+      return 1;
+    }
+    return countLeaves(nodes, node.cleft_) + countLeaves(nodes, node.cright_);
+  }
+
+  @Override
+  public double predict(FVec feat, int ntree) {
+    long[] v = bitvectors.get();
+
+    float psum = 0;
+    for (Block block : blocks) {
+      if (block.treeBegin >= ntree) {
+        break;
+      }
+
+      Arrays.fill(v, 0, block.treeEnd - block.treeBegin, -1L);
+      block.apply(feat, v);
+
+      int end = Math.min(block.treeEnd, ntree);
+      for (int t = block.treeBegin; t < end; t++) {
+        if (fallbackTrees[t] != null) {
+          psum += fallbackTrees[t].getLeafValue(feat);
+        } else {
+          psum += leafValues[leafOffsets[t] + Long.numberOfTrailingZeros(v[t - block.treeBegin])];
+        }
+      }
+    }
+
+    return psum;
+  }
+
+  /**
+   * Split node of a tree to be grouped by feature.
+   */
+  private static class SplitEntry {
+    final int feature;
+    final float threshold;
+    final int tree;
+    final long mask;
+    final boolean defaultRight;
+
+    SplitEntry(int feature, float threshold, int tree, long mask, boolean defaultRight) {
+      this.feature = feature;
+      this.threshold = threshold;
+      this.tree = tree;
+      this.mask = mask;
+      this.defaultRight = defaultRight;
+    }
+  }
+
+  /**
+   * Node lists of a contiguous range of trees.
+   */
+  private static class Block implements Serializable {
+    final int treeBegin;
+    final int treeEnd;
+
+    // features split on by the trees of this block
+    final int[] features;
+    // node list of features[i] is [offsets[i], offsets[i + 1]), sorted by threshold
+    final int[] offsets;
+    final float[] thresholds;
+    final int[] trees;
+    final long[] masks;
+    // nodes of features[i] whose default is right: [missingOffsets[i], missingOffsets[i + 1])
+    final int[] missingOffsets;
+    final int[] missingTrees;
+    final long[] missingMasks;
+
+    Block(AbstractRegTree.Param[] params, AbstractRegTree[] fallbackTrees,
+          float[] leafValues, int[] leafOffsets, int treeBegin, int treeEnd) {
+      this.treeBegin = treeBegin;
+      this.treeEnd = treeEnd;
+
+      List<SplitEntry> entries = new ArrayList<>();
+      for (int t = treeBegin; t < treeEnd; t++) {
+        if (fallbackTrees[t] == null) {
+          collect(params[t].nodeInfo, 0, t, 0, leafValues, leafOffsets[t], entries);
+        }
+      }
+      entries.sort(Comparator
+          .comparingInt((SplitEntry e) -> e.feature)
+          .thenComparing(e -> e.threshold));
+
+      int numFeatures = 0;
+      int numMissing = 0;
+      for (int i = 0; i < entries.size(); i++) {
+        if (i == 0 || entries.get(i - 1).feature != entries.get(i).feature) {
+          numFeatures++;
+        }
+        if (entries.get(i).defaultRight) {
+          numMissing++;
+        }
+      }
+
+      features = new int[numFeatures];
+      offsets = new int[numFeatures + 1];
+      thresholds = new float[entries.size()];
+      trees = new int[entries.size()];
+      masks = new long[entries.size()];
+      missingOffsets = new int[numFeatures + 1];
+      missingTrees = new int[numMissing];
+      missingMasks = new long[numMissing];
+
+      int f = -1;
+      int m = 0;
+      for (int i = 0; i < entries.size(); i++) {
+        SplitEntry entry = entries.get(i);
+        if (i == 0 || entries.get(i - 1).feature != entry.feature) {
+          f++;
+          features[f] = entry.feature;
+          offsets[f] = i;
+          missingOffsets[f] = m;
+        }
+
+        thresholds[i] = entry.threshold;
+        trees[i] = entry.tree - treeBegin;
+        masks[i] = entry.mask;
+        if (entry.defaultRight) {
+          missingTrees[m] = entry.tree - treeBegin;
+          missingMasks[m] = entry.mask;
+          m++;
+        }
+      }
+      offsets[numFeatures] = entries.size();
+      missingOffsets[numFeatures] = m;
+    }
+
+    /**
+     * Numbers the leaves of the subtree from {@code firstLeaf} in left-to-right order and
+     * collects its split nodes.
+     *
+     * @return number of leaves of the subtree
+     */
+    private static int collect(
+        AbstractRegTree.Node[] nodes, int id, int tree, int firstLeaf,
+        float[] leafValues, int leafOffset, List<SplitEntry> entries) {
+      AbstractRegTree.Node node = nodes[id];
+      if (node._isLeaf) {
+        leafValues[leafOffset + firstLeaf] = node.leaf_value;
+        return 1;
+      }
+
+      int leftLeaves = collect(nodes, node.cleft_, tree, firstLeaf, leafValues, leafOffset, entries);
+      int rightLeaves = collect(
+          nodes, node.cright_, tree, firstLeaf + leftLeaves, leafValues, leafOffset, entries);
+
+      long mask = ~(((1L << leftLeaves) - 1) << firstLeaf);
+      entries.add(new SplitEntry(node._splitIndex, node.split_cond, tree, mask, !node.default_left()));
+
+      return leftLeaves + rightLeaves;
+    }
+
+    void apply(FVec feat, long[] v) {
+      for (int i = 0; i < features.length; i++) {
+        float fvalue = feat.floatValue(features[i]);
+        if (FVec.isMissing(fvalue)) {
+          for (int k = missingOffsets[i], end = missingOffsets[i + 1]; k < end; k++) {
+            v[missingTrees[k]] &= missingMasks[k];
+          }
+        } else {
+          for (int k = offsets[i], end = offsets[i + 1]; k < end && thresholds[k] <= fvalue; k++) {
+            v[trees[k]] &= masks[k];
+          }
+        }
+      }
+    }
+  }
+}
@@ -66,9 +66,9 @@ public class RegTree extends AbstractRegTree {
 
   @Override
   public int getNextNode(int index, FVec feat) {
-    Number fvalue = feat.fvalue(getFeatureIndex(nodes[index + 2]));
+    float fvalue = feat.floatValue(getFeatureIndex(nodes[index + 2]));
 
-    if (null == fvalue) {
+    if (FVec.isMissing(fvalue)) {
       if (isDefaultLeft(nodes[index + 2])) {
         return nodes[index + 1];
       } else {
@@ -76,7 +76,7 @@ public class RegTree extends AbstractRegTree {
       }
     }
 
-    if (fvalue.doubleValue() < Float.intBitsToFloat(nodes[index])) {
+    if (fvalue < Float.intBitsToFloat(nodes[index])) {
       return nodes[index + 1];
     } else {
       return nodes[index + 1] + BLOCK_SIZE;
@@ -93,6 +93,11 @@ public class RegTree extends AbstractRegTree {
     return node / BLOCK_SIZE;
   }
 
+  @Override
+  public long sizeInBytes() {
+    return 4L * nodes.length;
+  }
+
   @Override
   public boolean isLeafNode(int node) {
     return nodes[node + 1] == 0;
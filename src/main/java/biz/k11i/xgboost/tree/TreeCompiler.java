@@ -0,0 +1,179 @@
+package biz.k11i.xgboost.tree;
+
+import java.util.ArrayDeque;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import biz.k11i.xgboost.tree.AbstractRegTree.Node;
+import biz.k11i.xgboost.util.FVec;
+
+/**
+ * Generates the bytecode of {@link CompiledRegTree.Evaluator} from tree nodes.
+ *
+ * A split node is compiled into:
+ *
+ * <pre>
+ *   aload_0                          // feature vector
+ *   push split_index
+ *   invokeinterface FVec.floatValue(I)F
+ *   ldc split_cond
+ *   fcmpl (default is left) / fcmpg (default is right)
+ *   ifge far_child (or iflt if the near child is the right one)
+ *   [near child]
+ * far_child:
+ *   [far child]
+ * </pre>
+ *
+ * Since fcmpl pushes -1 and fcmpg pushes 1 when either operand is NaN, a missing value takes the
+ * same branch as {@code fvalue < split_cond} if the default direction is left, and the opposite
+ * branch otherwise. This way missing values need no separate check.
+ */
+final class TreeCompiler implements Opcodes {
+  private static final String CLASS_NAME = "biz/k11i/xgboost/tree/CompiledRegTree$Generated";
+  private static final String FVEC = Type.getInternalName(FVec.class);
+  private static final String EVALUATOR = Type.getInternalName(CompiledRegTree.Evaluator.class);
+  private static final String NODE_METHOD_DESC = "(L" + FVEC + ";)I";
+
+  private final Node[] nodes;
+  private final int[] subtreeSizes;
+  private final int maxNodesPerMethod;
+  private final ArrayDeque<Integer> pendingMethods = new ArrayDeque<>();
+  private ClassWriter cw;
+  private int methodNodes;
+
+  private TreeCompiler(Node[] nodes, int maxNodesPerMethod) {
+    this.nodes = nodes;
+    this.maxNodesPerMethod = maxNodesPerMethod;
+    this.subtreeSizes = new int[nodes.length];
+    countSubtree(0);
+  }
+
+  static CompiledRegTree.Evaluator compile(Node[] nodes, int maxNodesPerMethod) {
+    byte[] bytecode = new TreeCompiler(nodes, maxNodesPerMethod).generate();
+    Class<?> clazz = new Loader(CompiledRegTree.class.getClassLoader()).define(bytecode);
+    try {
+      return (CompiledRegTree.Evaluator) clazz.getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Failed to instantiate compiled tree", e);
+    }
+  }
+
+  private int countSubtree(int id) {
+    Node node = nodes[id];
+    int size = 1;
+    if (!node._isLeaf) {
+      size += countSubtree(node.cleft_) + countSubtree(node.cright_);
+    }
+    subtreeSizes[id] = size;
+    return size;
+  }
+
+  private byte[] generate() {
+    cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+    cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, CLASS_NAME, null,
+        "java/lang/Object", new String[]{EVALUATOR});
+
+    MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+    mv.visitCode();
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+    mv.visitInsn(RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+
+    mv = cw.visitMethod(ACC_PUBLIC, "leafIndex", NODE_METHOD_DESC, null, null);
+    mv.visitCode();
+    mv.visitVarInsn(ALOAD, 1);
+    mv.visitMethodInsn(INVOKESTATIC, CLASS_NAME, methodName(0), NODE_METHOD_DESC, false);
+    mv.visitInsn(IRETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+
+    pendingMethods.add(0);
+    while (!pendingMethods.isEmpty()) {
+      generateNodeMethod(pendingMethods.removeFirst());
+    }
+
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  private static String methodName(int id) {
+    return "node" + id;
+  }
+
+  private void generateNodeMethod(int root) {
+    MethodVisitor mv = cw.visitMethod(
+        ACC_PRIVATE | ACC_STATIC, methodName(root), NODE_METHOD_DESC, null, null);
+    mv.visitCode();
+    methodNodes = 0;
+    generateNode(mv, root, true);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+  }
+
+  private void generateNode(MethodVisitor mv, int id, boolean isMethodRoot) {
+    if (!isMethodRoot && methodNodes + subtreeSizes[id] > maxNodesPerMethod) {
+      // Spills the subtree into its own method
+      methodNodes++;
+      mv.visitVarInsn(ALOAD, 0);
+      mv.visitMethodInsn(INVOKESTATIC, CLASS_NAME, methodName(id), NODE_METHOD_DESC, false);
+      mv.visitInsn(IRETURN);
+      pendingMethods.add(id);
+      return;
+    }
+
+    methodNodes++;
+    Node node = nodes[id];
+    if (node._isLeaf) {
+      pushInt(mv, id);
+      mv.visitInsn(IRETURN);
+      return;
+    }
+
+    mv.visitVarInsn(ALOAD, 0);
+    pushInt(mv, node._splitIndex);
+    mv.visitMethodInsn(INVOKEINTERFACE, FVEC, "floatValue", "(I)F", true);
+    mv.visitLdcInsn(node.split_cond);
+    mv.visitInsn(node.default_left() ? FCMPL : FCMPG);
+
+    Label farChild = new Label();
+    if (nodes[node.cleft_].sum_hess > nodes[node.cright_].sum_hess) {
+      mv.visitJumpInsn(IFGE, farChild);
+      generateNode(mv, node.cleft_, false);
+      mv.visitLabel(farChild);
+      generateNode(mv, node.cright_, false);
+    } else {
+      mv.visitJumpInsn(IFLT, farChild);
+      generateNode(mv, node.cright_, false);
+      mv.visitLabel(farChild);
+      generateNode(mv, node.cleft_, false);
+    }
+  }
+
+  private static void pushInt(MethodVisitor mv, int value) {
+    if (value >= -1 && value <= 5) {
+      mv.visitInsn(ICONST_0 + value);
+    } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+      mv.visitIntInsn(BIPUSH, value);
+    } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+      mv.visitIntInsn(SIPUSH, value);
+    } else {
+      mv.visitLdcInsn(value);
+    }
+  }
+
+  private static final class Loader extends ClassLoader {
+    Loader(ClassLoader parent) {
+      super(parent);
+    }
+
+    Class<?> define(byte[] bytecode) {
+      return defineClass(CLASS_NAME.replace('/', '.'), bytecode, 0, bytecode.length);
+    }
+  }
+}
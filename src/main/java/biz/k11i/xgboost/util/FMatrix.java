@@ -0,0 +1,385 @@
+package biz.k11i.xgboost.util;
+
+/**
+ * Interface of feature matrix, i.e. a batch of feature vectors (rows) to be predicted at once.
+ * <p>
+ * Rows are accessed through a reusable {@link Row} view, so that a batch can be evaluated tree by
+ * tree without creating a feature vector per row.
+ * </p>
+ */
+public interface FMatrix {
+    /**
+     * @return number of rows
+     */
+    int numRows();
+
+    /**
+     * Creates a view to access rows of this matrix.
+     *
+     * @return row view, initially positioned at row 0
+     */
+    Row newRow();
+
+    /**
+     * Gets a view of a range of rows of this matrix, without copying.
+     *
+     * @param rowBegin first row (inclusive)
+     * @param rowEnd   last row (exclusive)
+     * @return FMatrix whose row {@code i} is row {@code rowBegin + i} of this matrix
+     */
+    FMatrix slice(int rowBegin, int rowEnd);
+
+    /**
+     * Reusable view of a row of {@link FMatrix}. Views are not thread-safe, but a matrix can have
+     * any number of views.
+     */
+    interface Row extends FVec {
+        /**
+         * Moves this view to the given row.
+         *
+         * @param row row number
+         * @return this view
+         */
+        Row at(int row);
+    }
+
+    /**
+     * Row view that can also enumerate its non-missing entries, in ascending index order.
+     */
+    interface SparseRow extends Row {
+        /**
+         * @return number of stored entries of the current row
+         */
+        int numEntries();
+
+        /**
+         * @param k entry number, in {@code 0..numEntries()-1}
+         * @return feature index of the k-th entry
+         */
+        int entryIndex(int k);
+
+        /**
+         * @param k entry number, in {@code 0..numEntries()-1}
+         * @return feature value of the k-th entry
+         */
+        float entryValue(int k);
+    }
+
+    class Transformer {
+        private Transformer() {
+            // do nothing
+        }
+
+        /**
+         * Builds FMatrix from dense row-major matrix, without copying.
+         * <p>
+         * The value of feature {@code j} in row {@code i} is {@code data[i * stride + j]}.
+         * {@link Float#NaN} is always treated as missing; values equal to {@code missing} are
+         * treated as missing too, like XGBoost's {@code DMatrix}.
+         * </p>
+         *
+         * @param data    matrix values
+         * @param numRows number of rows
+         * @param numCols number of columns (features)
+         * @param stride  distance in floats between the starts of consecutive rows
+         * @param missing value treated as missing, e.g. {@link Float#NaN} or {@code 0}
+         * @return FMatrix
+         */
+        public static FMatrix fromDense(float[] data, int numRows, int numCols, int stride, float missing) {
+            return new FMatrixDenseImpl(data, 0, numRows, numCols, stride, missing);
+        }
+
+        /**
+         * Builds FMatrix from sparse matrix in CSR (compressed sparse row) format, without
+         * copying.
+         * <p>
+         * Row {@code i} of the result is row {@code rowBegin + i} of the CSR matrix, which spans
+         * {@code [indptr[rowBegin + i], indptr[rowBegin + i + 1])} of {@code indices} and
+         * {@code values}. Row pointers are validated, but the order of indices is not, since that
+         * would take a pass over every entry; use
+         * {@link #fromCSR(int[], int[], float[], int, int, boolean)} to check it.
+         * </p>
+         *
+         * @param indptr   row pointers
+         * @param indices  feature indices, in strictly ascending order within each row
+         * @param values   feature values corresponding to {@code indices}
+         * @param rowBegin first row (inclusive)
+         * @param rowEnd   last row (exclusive)
+         * @return FMatrix
+         */
+        public static FMatrix fromCSR(int[] indptr, int[] indices, float[] values, int rowBegin, int rowEnd) {
+            return fromCSR(indptr, indices, values, rowBegin, rowEnd, false);
+        }
+
+        /**
+         * Builds FMatrix from sparse matrix in CSR (compressed sparse row) format, without
+         * copying.
+         *
+         * @param indptr       row pointers
+         * @param indices      feature indices, in strictly ascending order within each row
+         * @param values       feature values corresponding to {@code indices}
+         * @param rowBegin     first row (inclusive)
+         * @param rowEnd       last row (exclusive)
+         * @param checkIndices whether to verify that indices are strictly ascending within each
+         *                     row, which takes a pass over every entry of the rows
+         * @return FMatrix
+         * @see #fromCSR(int[], int[], float[], int, int)
+         */
+        public static FMatrix fromCSR(
+                int[] indptr, int[] indices, float[] values, int rowBegin, int rowEnd, boolean checkIndices) {
+            return new FMatrixCSRImpl(indptr, indices, values, rowBegin, rowEnd, checkIndices);
+        }
+
+        /**
+         * Builds FMatrix from all rows of sparse matrix in CSR format, without copying.
+         *
+         * @param indptr  row pointers, whose length is the number of rows plus one
+         * @param indices feature indices, in strictly ascending order within each row
+         * @param values  feature values corresponding to {@code indices}
+         * @return FMatrix
+         */
+        public static FMatrix fromCSR(int[] indptr, int[] indices, float[] values) {
+            return fromCSR(indptr, indices, values, 0, indptr.length - 1);
+        }
+
+        /**
+         * Builds FMatrix whose rows are the given feature vectors, without copying.
+         *
+         * @param rows    feature vectors
+         * @param numRows number of rows, taken from the head of {@code rows}
+         * @return FMatrix
+         */
+        public static FMatrix fromRows(FVec[] rows, int numRows) {
+            return new FMatrixRowsImpl(rows, 0, numRows);
+        }
+    }
+
+    static void checkSliceRange(int rowBegin, int rowEnd, int numRows) {
+        if (rowBegin < 0 || rowEnd < rowBegin || rowEnd > numRows) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid row range: [%d, %d), number of rows = %d", rowBegin, rowEnd, numRows));
+        }
+    }
+
+    class FMatrixDenseImpl implements FMatrix {
+        private final float[] data;
+        private final int offset;
+        private final int numRows;
+        private final int numCols;
+        private final int stride;
+        private final float missing;
+
+        FMatrixDenseImpl(float[] data, int offset, int numRows, int numCols, int stride, float missing) {
+            if (offset < 0 || numRows < 0 || numCols < 0 || stride < numCols
+                    || (numRows > 0 && offset + (long) (numRows - 1) * stride + numCols > data.length)) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid dense matrix: offset = %d, rows = %d, cols = %d, stride = %d, length = %d",
+                        offset, numRows, numCols, stride, data.length));
+            }
+
+            this.data = data;
+            this.offset = offset;
+            this.numRows = numRows;
+            this.numCols = numCols;
+            this.stride = stride;
+            this.missing = missing;
+        }
+
+        @Override
+        public int numRows() {
+            return numRows;
+        }
+
+        @Override
+        public Row newRow() {
+            return new DenseRow();
+        }
+
+        @Override
+        public FMatrix slice(int rowBegin, int rowEnd) {
+            checkSliceRange(rowBegin, rowEnd, numRows);
+            return new FMatrixDenseImpl(data, offset + rowBegin * stride, rowEnd - rowBegin, numCols, stride, missing);
+        }
+
+        class DenseRow implements Row {
+            private int base = offset;
+
+            @Override
+            public Row at(int row) {
+                base = offset + row * stride;
+                return this;
+            }
+
+            @Override
+            public Float fvalue(int index) {
+                float result = floatValue(index);
+                return FVec.isMissing(result) ? null : result;
+            }
+
+            @Override
+            public float floatValue(int index) {
+                if (numCols <= index) {
+                    return Float.NaN;
+                }
+
+                float result = data[base + index];
+                return result == missing ? Float.NaN : result;
+            }
+        }
+    }
+
+    class FMatrixCSRImpl implements FMatrix {
+        private final int[] indptr;
+        private final int[] indices;
+        private final float[] values;
+        private final int rowBegin;
+        private final int numRows;
+
+        FMatrixCSRImpl(int[] indptr, int[] indices, float[] values, int rowBegin, int rowEnd, boolean checkIndices) {
+            if (rowBegin < 0 || rowEnd < rowBegin || rowEnd >= indptr.length) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid row range: [%d, %d), number of rows = %d", rowBegin, rowEnd, indptr.length - 1));
+            }
+            for (int row = rowBegin; row < rowEnd; row++) {
+                int begin = indptr[row];
+                int end = indptr[row + 1];
+                if (begin < 0 || end < begin || end > indices.length || end > values.length) {
+                    throw new IllegalArgumentException(
+                            String.format("Invalid row pointers for row %d: [%d, %d)", row, begin, end));
+                }
+            }
+
+            this.indptr = indptr;
+            this.indices = indices;
+            this.values = values;
+            if (checkIndices) {
+                for (int row = rowBegin; row < rowEnd; row++) {
+                    FVec.FVecSparseArrayImpl.checkAscending(indices, indptr[row], indptr[row + 1] - indptr[row]);
+                }
+            }
+            this.rowBegin = rowBegin;
+            this.numRows = rowEnd - rowBegin;
+        }
+
+        private FMatrixCSRImpl(FMatrixCSRImpl parent, int rowBegin, int rowEnd) {
+            // rows of the parent matrix are already validated
+            this.indptr = parent.indptr;
+            this.indices = parent.indices;
+            this.values = parent.values;
+            this.rowBegin = parent.rowBegin + rowBegin;
+            this.numRows = rowEnd - rowBegin;
+        }
+
+        @Override
+        public int numRows() {
+            return numRows;
+        }
+
+        @Override
+        public SparseRow newRow() {
+            return new CSRRow().at(0);
+        }
+
+        @Override
+        public FMatrix slice(int rowBegin, int rowEnd) {
+            checkSliceRange(rowBegin, rowEnd, numRows);
+            return new FMatrixCSRImpl(this, rowBegin, rowEnd);
+        }
+
+        class CSRRow implements SparseRow {
+            private int begin;
+            private int length;
+
+            @Override
+            public CSRRow at(int row) {
+                if (row < numRows) {
+                    begin = indptr[rowBegin + row];
+                    length = indptr[rowBegin + row + 1] - begin;
+                }
+                return this;
+            }
+
+            @Override
+            public int numEntries() {
+                return length;
+            }
+
+            @Override
+            public int entryIndex(int k) {
+                return indices[begin + k];
+            }
+
+            @Override
+            public float entryValue(int k) {
+                return values[begin + k];
+            }
+
+            @Override
+            public Float fvalue(int index) {
+                float result = floatValue(index);
+                return FVec.isMissing(result) ? null : result;
+            }
+
+            @Override
+            public float floatValue(int index) {
+                return FVec.FVecSparseArrayImpl.lookup(indices, values, begin, length, index);
+            }
+        }
+    }
+
+    class FMatrixRowsImpl implements FMatrix {
+        private final FVec[] rows;
+        private final int offset;
+        private final int numRows;
+
+        FMatrixRowsImpl(FVec[] rows, int offset, int numRows) {
+            if (offset < 0 || numRows < 0 || offset + numRows > rows.length) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid row range: offset = %d, number of rows = %d, array length = %d",
+                        offset, numRows, rows.length));
+            }
+
+            this.rows = rows;
+            this.offset = offset;
+            this.numRows = numRows;
+        }
+
+        @Override
+        public int numRows() {
+            return numRows;
+        }
+
+        @Override
+        public Row newRow() {
+            return new RowView().at(0);
+        }
+
+        @Override
+        public FMatrix slice(int rowBegin, int rowEnd) {
+            checkSliceRange(rowBegin, rowEnd, numRows);
+            return new FMatrixRowsImpl(rows, offset + rowBegin, rowEnd - rowBegin);
+        }
+
+        class RowView implements Row {
+            private FVec current;
+
+            @Override
+            public Row at(int row) {
+                if (row < numRows) {
+                    current = rows[offset + row];
+                }
+                return this;
+            }
+
+            @Override
+            public Float fvalue(int index) {
+                return current.fvalue(index);
+            }
+
+            @Override
+            public float floatValue(int index) {
+                return current.floatValue(index);
+            }
+        }
+    }
+}
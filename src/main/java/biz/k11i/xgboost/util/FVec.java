@@ -1,6 +1,11 @@
 package biz.k11i.xgboost.util;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -10,16 +15,68 @@ import java.util.Map;
  * This class was modified from the open source version it was forked from
  * to always store feature values as floats to resolve
  * https://github.com/komiya-atsushi/xgboost-predictor-java/issues/21
+ *
+ * Tree evaluation reads features through {@link #floatValue(int)}, which follows the
+ * "NaN is missing" convention of XGBoost and never boxes. {@link #fvalue(int)} is kept for
+ * compatibility with existing implementations and callers.
  */
 public interface FVec extends Serializable {
     /**
      * Gets index-th value.
      *
      * @param index index
-     * @return value
+     * @return value, or {@code null} (or {@link Float#NaN}) if the value is missing
      */
     Float fvalue(int index);
 
+    /**
+     * Gets index-th value without boxing.
+     * <p>
+     * The default implementation adapts {@link #fvalue(int)}, so implementations on the
+     * prediction hot path should override this method.
+     * </p>
+     *
+     * @param index index
+     * @return value, or {@link Float#NaN} if the value is missing
+     */
+    default float floatValue(int index) {
+        Float value = fvalue(index);
+        return value == null ? Float.NaN : value;
+    }
+
+    /**
+     * Tests whether a value returned by {@link #floatValue(int)} is missing.
+     *
+     * @param value value returned by {@link #floatValue(int)}
+     * @return {@code true} if the value is missing
+     */
+    static boolean isMissing(float value) {
+        return value != value;
+    }
+
+    /**
+     * Feature vector that can be filled and cleared in place, so that one instance can be pooled
+     * or held per thread and reused across predictions without allocation.
+     * <p>
+     * Implementations are not thread-safe.
+     * </p>
+     */
+    interface Mutable extends FVec {
+        /**
+         * Sets index-th value, replacing the existing value if any.
+         *
+         * @param index non-negative index
+         * @param value value, or {@link Float#NaN} for a missing value
+         */
+        void set(int index, float value);
+
+        /**
+         * Removes all values. Implementations only reset the entries touched since the last
+         * clear.
+         */
+        void clear();
+    }
+
     class Transformer {
         private Transformer() {
             // do nothing
@@ -66,6 +123,151 @@ public interface FVec extends Serializable {
             }
             return new FVecMapImpl(floatMap);
         }
+
+        /**
+         * Builds FVec from sparse vector given by parallel arrays.
+         * <p>
+         * The arrays are not copied, so they must not be modified while the FVec is in use.
+         * </p>
+         *
+         * @param indices feature indices in strictly ascending order
+         * @param values  feature values corresponding to {@code indices}
+         * @return FVec
+         */
+        public static FVec fromSparseArray(int[] indices, float[] values) {
+            if (indices.length != values.length) {
+                throw new IllegalArgumentException(
+                        String.format("Length mismatch: indices = %d, values = %d",
+                                indices.length, values.length));
+            }
+            return new FVecSparseArrayImpl(indices, values, 0, indices.length);
+        }
+
+        /**
+         * Builds FVec from a row of sparse matrix in CSR (compressed sparse row) format.
+         * <p>
+         * The arrays are not copied, so they must not be modified while the FVec is in use.
+         * </p>
+         *
+         * @param indptr  row pointers; the row spans {@code [indptr[row], indptr[row + 1])}
+         * @param indices feature indices, in strictly ascending order within each row
+         * @param values  feature values corresponding to {@code indices}
+         * @param row     row number
+         * @return FVec
+         */
+        public static FVec fromCSR(int[] indptr, int[] indices, float[] values, int row) {
+            int begin = indptr[row];
+            int end = indptr[row + 1];
+            if (begin < 0 || end < begin || end > indices.length || end > values.length) {
+                throw new IllegalArgumentException(
+                        String.format("Invalid row pointers for row %d: [%d, %d)", row, begin, end));
+            }
+            return new FVecSparseArrayImpl(indices, values, begin, end - begin);
+        }
+
+        /**
+         * Creates an empty FVec backed by a primitive hash table, to be filled with
+         * {@link FVecHashImpl#set(int, float)} in arbitrary index order.
+         * <p>
+         * The instance can be {@link FVecHashImpl#clear() cleared} and reused, e.g. held per
+         * thread across requests.
+         * </p>
+         *
+         * @param expectedNumValues expected number of non-missing values
+         * @return empty FVec
+         */
+        public static FVecHashImpl newHashFVec(int expectedNumValues) {
+            return new FVecHashImpl(expectedNumValues);
+        }
+
+        /**
+         * Creates an empty dense FVec to be filled with
+         * {@link FVecMutableArrayImpl#set(int, float)}.
+         * <p>
+         * All values are initially missing. The instance can be
+         * {@link FVecMutableArrayImpl#clear() cleared} and reused, e.g. held per thread across
+         * requests.
+         * </p>
+         *
+         * @param numFeatures number of features, i.e. the maximum index plus one
+         * @return empty FVec
+         */
+        public static FVecMutableArrayImpl newMutableArrayFVec(int numFeatures) {
+            return new FVecMutableArrayImpl(numFeatures);
+        }
+
+        /**
+         * Builds FVec from dense vector stored in a float buffer, without copying.
+         * <p>
+         * The index-th value is read from {@code buffer.get(offset + index * stride)}, using
+         * absolute reads, so the buffer's position and limit are not used.
+         * </p>
+         *
+         * @param buffer         float buffer
+         * @param offset         buffer index of the first value
+         * @param length         number of values
+         * @param stride         distance in floats between consecutive values
+         * @param treatsZeroAsNA treat zero as N/A if true
+         * @return FVec
+         */
+        public static FVec fromFloatBuffer(
+                FloatBuffer buffer, int offset, int length, int stride, boolean treatsZeroAsNA) {
+            return new FVecBufferImpl.FVecDenseBufferImpl(buffer, offset, length, stride, treatsZeroAsNA);
+        }
+
+        /**
+         * Builds FVec from dense vector stored in a byte buffer, without copying.
+         * <p>
+         * Values are decoded in the byte order of the given buffer, e.g. set
+         * {@link ByteOrder#LITTLE_ENDIAN} for little-endian data.
+         * </p>
+         *
+         * @param buffer         byte buffer, either heap, direct or memory-mapped
+         * @param byteOffset     byte offset of the first value
+         * @param length         number of values
+         * @param stride         distance in floats between consecutive values
+         * @param treatsZeroAsNA treat zero as N/A if true
+         * @return FVec
+         */
+        public static FVec fromByteBuffer(
+                ByteBuffer buffer, int byteOffset, int length, int stride, boolean treatsZeroAsNA) {
+            return new FVecBufferImpl.FVecDenseBufferImpl(
+                    FVecBufferImpl.asFloatBuffer(buffer, byteOffset), 0, length, stride, treatsZeroAsNA);
+        }
+
+        /**
+         * Builds FVec from sparse vector stored in int and float buffers, without copying.
+         *
+         * @param indices buffer holding feature indices in strictly ascending order
+         * @param values  buffer holding feature values corresponding to {@code indices}
+         * @param offset  buffer index of the first entry in both buffers
+         * @param length  number of entries
+         * @return FVec
+         */
+        public static FVec fromSparseBuffer(IntBuffer indices, FloatBuffer values, int offset, int length) {
+            return new FVecBufferImpl.FVecSparseBufferImpl(indices, values, offset, length);
+        }
+
+        /**
+         * Builds FVec from sparse vector stored as a block of int indices and a block of float
+         * values in a byte buffer, without copying.
+         * <p>
+         * Values are decoded in the byte order of the given buffer.
+         * </p>
+         *
+         * @param buffer            byte buffer, either heap, direct or memory-mapped
+         * @param indicesByteOffset byte offset of the indices block, in strictly ascending order
+         * @param valuesByteOffset  byte offset of the values block
+         * @param length            number of entries
+         * @return FVec
+         */
+        public static FVec fromSparseByteBuffer(
+                ByteBuffer buffer, int indicesByteOffset, int valuesByteOffset, int length) {
+            return new FVecBufferImpl.FVecSparseBufferImpl(
+                    FVecBufferImpl.asIntBuffer(buffer, indicesByteOffset),
+                    FVecBufferImpl.asFloatBuffer(buffer, valuesByteOffset),
+                    0, length);
+        }
     }
 
     class FVecMapImpl implements FVec {
@@ -79,6 +281,395 @@ public interface FVec extends Serializable {
         public Float fvalue(int index) {
             return values.get(index);
         }
+
+        @Override
+        public float floatValue(int index) {
+            Float value = values.get(index);
+            return value == null ? Float.NaN : value;
+        }
+    }
+
+    /**
+     * Sparse feature vector backed by sorted parallel arrays of indices and values.
+     * <p>
+     * Lookups use a branch-free binary search, which the JIT compiles to conditional moves, so
+     * the cost is a handful of cache-resident loads for the 50-300 non-zero entries typical of
+     * sparse features, without boxing or hashing.
+     * </p>
+     */
+    class FVecSparseArrayImpl implements FVec {
+        private final int[] indices;
+        private final float[] values;
+        private final int offset;
+        private final int length;
+
+        FVecSparseArrayImpl(int[] indices, float[] values, int offset, int length) {
+            checkAscending(indices, offset, length);
+
+            this.indices = indices;
+            this.values = values;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public Float fvalue(int index) {
+            float result = floatValue(index);
+            return FVec.isMissing(result) ? null : result;
+        }
+
+        @Override
+        public float floatValue(int index) {
+            return lookup(indices, values, offset, length, index);
+        }
+
+        static void checkAscending(int[] indices, int offset, int length) {
+            for (int i = offset + 1; i < offset + length; i++) {
+                if (indices[i - 1] >= indices[i]) {
+                    throw new IllegalArgumentException(
+                            String.format("Indices must be strictly ascending: [%d] = %d, [%d] = %d",
+                                    i - 1, indices[i - 1], i, indices[i]));
+                }
+            }
+        }
+
+        /**
+         * Looks up a value of a sparse vector stored in sorted parallel arrays.
+         */
+        static float lookup(int[] indices, float[] values, int offset, int length, int index) {
+            int n = length;
+            if (n == 0) {
+                return Float.NaN;
+            }
+
+            // Keeps the last position whose index is <= the given index within [base, base + n)
+            int base = offset;
+            while (n > 1) {
+                int half = n >>> 1;
+                base = (indices[base + half] <= index) ? base + half : base;
+                n -= half;
+            }
+
+            return indices[base] == index ? values[base] : Float.NaN;
+        }
+    }
+
+    /**
+     * Sparse feature vector backed by an open-addressing hash table of primitive int keys and
+     * float values, using linear probing over a power-of-two capacity.
+     * <p>
+     * Unlike {@link FVecSparseArrayImpl}, values can be set in any order. The table grows if more
+     * values than expected are set; otherwise {@link #set(int, float)} and {@link #clear()} do not
+     * allocate. This class is not thread-safe.
+     * </p>
+     */
+    class FVecHashImpl implements Mutable {
+        private static final int EMPTY = -1;
+        private static final int GOLDEN_RATIO = 0x9E3779B9;
+
+        private int[] keys;
+        private float[] values;
+        // slots in use, in insertion order, so that clear() only resets touched slots
+        private int[] usedSlots;
+        private int size;
+        private int shift;
+
+        FVecHashImpl(int expectedNumValues) {
+            if (expectedNumValues < 0) {
+                throw new IllegalArgumentException("Negative expected size: " + expectedNumValues);
+            }
+            allocate(capacityFor(expectedNumValues));
+        }
+
+        private static int capacityFor(int numValues) {
+            // keeps the load factor at or below 0.5
+            int capacity = Integer.highestOneBit(Math.max(numValues, 4) * 2 - 1) << 1;
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("Too many values: " + numValues);
+            }
+            return capacity;
+        }
+
+        private void allocate(int capacity) {
+            keys = new int[capacity];
+            Arrays.fill(keys, EMPTY);
+            values = new float[capacity];
+            usedSlots = new int[capacity / 2];
+            size = 0;
+            shift = 32 - Integer.numberOfTrailingZeros(capacity);
+        }
+
+        private int slotOf(int index) {
+            return (index * GOLDEN_RATIO) >>> shift;
+        }
+
+        @Override
+        public void set(int index, float value) {
+            if (index < 0) {
+                throw new IllegalArgumentException("Negative index: " + index);
+            }
+
+            int mask = keys.length - 1;
+            for (int slot = slotOf(index); ; slot = (slot + 1) & mask) {
+                int key = keys[slot];
+                if (key == index) {
+                    values[slot] = value;
+                    return;
+                }
+                if (key == EMPTY) {
+                    if (size == usedSlots.length) {
+                        grow();
+                        set(index, value);
+                        return;
+                    }
+                    keys[slot] = index;
+                    values[slot] = value;
+                    usedSlots[size++] = slot;
+                    return;
+                }
+            }
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            float[] oldValues = values;
+            int[] oldUsedSlots = usedSlots;
+            int oldSize = size;
+
+            allocate(oldKeys.length * 2);
+            for (int i = 0; i < oldSize; i++) {
+                int slot = oldUsedSlots[i];
+                set(oldKeys[slot], oldValues[slot]);
+            }
+        }
+
+        @Override
+        public void clear() {
+            for (int i = 0; i < size; i++) {
+                keys[usedSlots[i]] = EMPTY;
+            }
+            size = 0;
+        }
+
+        /**
+         * @return number of values that have been set
+         */
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Float fvalue(int index) {
+            float result = floatValue(index);
+            return FVec.isMissing(result) ? null : result;
+        }
+
+        @Override
+        public float floatValue(int index) {
+            if (index < 0) {
+                return Float.NaN;
+            }
+
+            int mask = keys.length - 1;
+            for (int slot = slotOf(index); ; slot = (slot + 1) & mask) {
+                int key = keys[slot];
+                if (key == index) {
+                    return values[slot];
+                }
+                if (key == EMPTY) {
+                    return Float.NaN;
+                }
+            }
+        }
+    }
+
+    /**
+     * Dense feature vector that can be filled and cleared in place.
+     * <p>
+     * Values that have not been set are missing. {@link #clear()} only resets the entries set
+     * since the last clear, so clearing a wide vector after filling a few features is cheap.
+     * </p>
+     */
+    class FVecMutableArrayImpl implements Mutable {
+        private final float[] values;
+        // indices set since the last clear; may contain duplicates
+        private final int[] touched;
+        private int numTouched;
+        // set once touched overflows, in which case clear() resets every entry
+        private boolean clearAll;
+
+        FVecMutableArrayImpl(int numFeatures) {
+            values = new float[numFeatures];
+            Arrays.fill(values, Float.NaN);
+            touched = new int[numFeatures];
+        }
+
+        @Override
+        public void set(int index, float value) {
+            if (!clearAll && FVec.isMissing(values[index])) {
+                if (numTouched == touched.length) {
+                    clearAll = true;
+                } else {
+                    touched[numTouched++] = index;
+                }
+            }
+            values[index] = value;
+        }
+
+        @Override
+        public void clear() {
+            if (clearAll) {
+                Arrays.fill(values, Float.NaN);
+                clearAll = false;
+            } else {
+                for (int i = 0; i < numTouched; i++) {
+                    values[touched[i]] = Float.NaN;
+                }
+            }
+            numTouched = 0;
+        }
+
+        @Override
+        public Float fvalue(int index) {
+            float result = floatValue(index);
+            return FVec.isMissing(result) ? null : result;
+        }
+
+        @Override
+        public float floatValue(int index) {
+            if (values.length <= index) {
+                return Float.NaN;
+            }
+            return values[index];
+        }
+    }
+
+    /**
+     * Feature vectors reading values directly from {@link java.nio} buffers, e.g. network frames
+     * or memory-mapped feature stores, without decoding them into arrays first.
+     * <p>
+     * Buffers are read with absolute gets, so concurrent predictions over the same buffer are
+     * safe. These feature vectors are not serializable because buffers are not.
+     * </p>
+     */
+    class FVecBufferImpl {
+        static FloatBuffer asFloatBuffer(ByteBuffer buffer, int byteOffset) {
+            ByteBuffer view = buffer.duplicate().order(buffer.order());
+            view.position(byteOffset);
+            return view.asFloatBuffer();
+        }
+
+        static IntBuffer asIntBuffer(ByteBuffer buffer, int byteOffset) {
+            ByteBuffer view = buffer.duplicate().order(buffer.order());
+            view.position(byteOffset);
+            return view.asIntBuffer();
+        }
+
+        static class FVecDenseBufferImpl implements FVec {
+            private final FloatBuffer buffer;
+            private final int offset;
+            private final int length;
+            private final int stride;
+            private final boolean treatsZeroAsNA;
+
+            FVecDenseBufferImpl(FloatBuffer buffer, int offset, int length, int stride, boolean treatsZeroAsNA) {
+                if (offset < 0 || length < 0 || stride <= 0
+                        || (length > 0 && offset + (long) (length - 1) * stride >= buffer.limit())) {
+                    throw new IllegalArgumentException(String.format(
+                            "Out of buffer bounds: offset = %d, length = %d, stride = %d, limit = %d",
+                            offset, length, stride, buffer.limit()));
+                }
+
+                this.buffer = buffer;
+                this.offset = offset;
+                this.length = length;
+                this.stride = stride;
+                this.treatsZeroAsNA = treatsZeroAsNA;
+            }
+
+            @Override
+            public Float fvalue(int index) {
+                float result = floatValue(index);
+                return FVec.isMissing(result) ? null : result;
+            }
+
+            @Override
+            public float floatValue(int index) {
+                if (length <= index) {
+                    return Float.NaN;
+                }
+
+                float result = buffer.get(offset + index * stride);
+                if (treatsZeroAsNA && result == 0) {
+                    return Float.NaN;
+                }
+
+                return result;
+            }
+        }
+
+        static class FVecSparseBufferImpl implements FVec {
+            private final IntBuffer indices;
+            private final FloatBuffer values;
+            private final int offset;
+            private final int length;
+
+            FVecSparseBufferImpl(IntBuffer indices, FloatBuffer values, int offset, int length) {
+                if (offset < 0 || length < 0
+                        || offset + length > indices.limit() || offset + length > values.limit()) {
+                    throw new IllegalArgumentException(String.format(
+                            "Out of buffer bounds: offset = %d, length = %d, limits = (%d, %d)",
+                            offset, length, indices.limit(), values.limit()));
+                }
+                checkAscending(indices, offset, length);
+
+                this.indices = indices;
+                this.values = values;
+                this.offset = offset;
+                this.length = length;
+            }
+
+            @Override
+            public Float fvalue(int index) {
+                float result = floatValue(index);
+                return FVec.isMissing(result) ? null : result;
+            }
+
+            @Override
+            public float floatValue(int index) {
+                return lookup(indices, values, offset, length, index);
+            }
+
+            private static void checkAscending(IntBuffer indices, int offset, int length) {
+                for (int i = offset + 1; i < offset + length; i++) {
+                    if (indices.get(i - 1) >= indices.get(i)) {
+                        throw new IllegalArgumentException(
+                                String.format("Indices must be strictly ascending: [%d] = %d, [%d] = %d",
+                                        i - 1, indices.get(i - 1), i, indices.get(i)));
+                    }
+                }
+            }
+
+            /**
+             * Same search as {@link FVecSparseArrayImpl#lookup(int[], float[], int, int, int)},
+             * reading the buffers with absolute gets.
+             */
+            private static float lookup(IntBuffer indices, FloatBuffer values, int offset, int length, int index) {
+                int n = length;
+                if (n == 0) {
+                    return Float.NaN;
+                }
+
+                int base = offset;
+                while (n > 1) {
+                    int half = n >>> 1;
+                    base = (indices.get(base + half) <= index) ? base + half : base;
+                    n -= half;
+                }
+
+                return indices.get(base) == index ? values.get(base) : Float.NaN;
+            }
+        }
     }
 
     class FVecArrayImpl {
@@ -93,11 +684,16 @@ public interface FVec extends Serializable {
 
             @Override
             public Float fvalue(int index) {
+                return floatValue(index);
+            }
+
+            @Override
+            public float floatValue(int index) {
                 if (values.length <= index) {
                     return Float.NaN;
                 }
 
-                Float result = values[index];
+                float result = values[index];
                 if (treatsZeroAsNA && result == 0) {
                     return Float.NaN;
                 }
@@ -0,0 +1,237 @@
+package biz.k11i.xgboost.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Feature names of a model, loaded from an XGBoost feature map ({@code featmap.txt}) whose
+ * lines are {@code <index>\t<name>\t<type>}.
+ * <p>
+ * Only the features the model uses are kept. They are indexed by a minimal perfect hash, so
+ * resolving a name costs a string hash (cached by {@link String}) and one string comparison.
+ * A name can also be resolved once into a handle, which then sets the feature by array
+ * access only.
+ * </p>
+ */
+public class FeatureMap implements Serializable {
+    private final MinimalPerfectHash hash;
+    // handle -> name / feature index
+    private final String[] names;
+    private final int[] featureIndices;
+    // largest feature index + 1
+    private final int numFeatures;
+
+    private FeatureMap(MinimalPerfectHash hash, String[] names, int[] featureIndices) {
+        this.hash = hash;
+        this.names = names;
+        this.featureIndices = featureIndices;
+
+        int max = -1;
+        for (int featureIndex : featureIndices) {
+            max = Math.max(max, featureIndex);
+        }
+        numFeatures = max + 1;
+    }
+
+    /**
+     * Loads the feature map, keeping the features used by the model.
+     *
+     * @param in           input stream of the feature map
+     * @param usedFeatures indices of the features used by the model
+     * @return feature map
+     * @throws IOException If an I/O error occurs or the feature map is malformed
+     */
+    public static FeatureMap load(InputStream in, BitSet usedFeatures) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<Integer> indices = new ArrayList<>();
+        Set<String> seenNames = new HashSet<>();
+        BitSet seenIndices = new BitSet();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+
+            String[] columns = line.split("\t");
+            if (columns.length < 2) {
+                throw new IOException(String.format("Invalid feature map at line %d: %s", lineNumber, line));
+            }
+
+            int index;
+            try {
+                index = Integer.parseInt(columns[0].trim());
+            } catch (NumberFormatException e) {
+                throw new IOException(String.format("Invalid feature index at line %d: %s", lineNumber, line), e);
+            }
+            if (index < 0) {
+                throw new IOException(String.format("Invalid feature index at line %d: %s", lineNumber, line));
+            }
+
+            if (seenIndices.get(index)) {
+                throw new IOException(String.format("Duplicate feature index at line %d: %s", lineNumber, line));
+            }
+            seenIndices.set(index);
+
+            String name = columns[1];
+            if (!seenNames.add(name)) {
+                throw new IOException(String.format("Duplicate feature name at line %d: %s", lineNumber, name));
+            }
+
+            if (usedFeatures.get(index)) {
+                names.add(name);
+                indices.add(index);
+            }
+        }
+
+        String[] keys = names.toArray(new String[0]);
+        MinimalPerfectHash hash = MinimalPerfectHash.build(keys);
+
+        String[] slotNames = new String[keys.length];
+        int[] slotIndices = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            int slot = hash.slot(keys[i]);
+            slotNames[slot] = keys[i];
+            slotIndices[slot] = indices.get(i);
+        }
+
+        return new FeatureMap(hash, slotNames, slotIndices);
+    }
+
+    /**
+     * Resolves a feature name into a handle.
+     *
+     * @param name feature name
+     * @return handle, or -1 if the feature is unknown or not used by the model
+     */
+    public int handle(String name) {
+        int slot = hash.slot(name);
+        if (slot < 0 || !names[slot].equals(name)) {
+            return -1;
+        }
+        return slot;
+    }
+
+    /**
+     * @return number of features used by the model that have a name
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @param handle handle
+     * @return feature name
+     */
+    public String name(int handle) {
+        return names[handle];
+    }
+
+    /**
+     * @param handle handle
+     * @return feature index
+     */
+    public int featureIndex(int handle) {
+        return featureIndices[handle];
+    }
+
+    /**
+     * @return new reusable feature vector filled by name or by handle
+     */
+    public NamedFVec newFVec() {
+        return new NamedFVec(this);
+    }
+
+    /**
+     * Feature vector filled by feature name or handle. Features the model doesn't use are
+     * ignored. Like {@link FVec.Mutable}, it can be cleared and reused without allocation.
+     * This class is not thread-safe.
+     * <p>
+     * Values are stored by feature index up to the largest used one, so reading a feature is a
+     * single array access. {@link #clear()} only resets the features set since the last clear.
+     * </p>
+     */
+    public static class NamedFVec implements FVec {
+        private final FeatureMap featureMap;
+        // feature index -> value
+        private final float[] values;
+        // handles set since the last clear()
+        private final int[] touchedHandles;
+        private final boolean[] touched;
+        private int numTouched;
+
+        NamedFVec(FeatureMap featureMap) {
+            this.featureMap = featureMap;
+            this.values = new float[featureMap.numFeatures];
+            Arrays.fill(values, Float.NaN);
+            this.touchedHandles = new int[featureMap.size()];
+            this.touched = new boolean[featureMap.size()];
+        }
+
+        /**
+         * Sets the value of the named feature.
+         *
+         * @param name  feature name
+         * @param value value, or {@link Float#NaN} for a missing value
+         * @return {@code true} if the feature is used by the model
+         */
+        public boolean set(String name, float value) {
+            int handle = featureMap.handle(name);
+            if (handle < 0) {
+                return false;
+            }
+            set(handle, value);
+            return true;
+        }
+
+        /**
+         * Sets the value of the feature resolved by {@link FeatureMap#handle(String)}.
+         *
+         * @param handle handle
+         * @param value  value, or {@link Float#NaN} for a missing value
+         */
+        public void set(int handle, float value) {
+            values[featureMap.featureIndices[handle]] = value;
+            if (!touched[handle]) {
+                touched[handle] = true;
+                touchedHandles[numTouched++] = handle;
+            }
+        }
+
+        /**
+         * Removes all values.
+         */
+        public void clear() {
+            for (int i = 0; i < numTouched; i++) {
+                int handle = touchedHandles[i];
+                values[featureMap.featureIndices[handle]] = Float.NaN;
+                touched[handle] = false;
+            }
+            numTouched = 0;
+        }
+
+        @Override
+        public Float fvalue(int index) {
+            float result = floatValue(index);
+            return FVec.isMissing(result) ? null : result;
+        }
+
+        @Override
+        public float floatValue(int index) {
+            return index < values.length ? values[index] : Float.NaN;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package biz.k11i.xgboost.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Mapping between the feature indices of the input and a dense range of "compact" indices
+ * {@code 0..size()-1} covering only the features a model actually uses.
+ * <p>
+ * Features are gathered from any {@link FVec} into a small dense array once per row, after
+ * which the model only reads that cache-resident array.
+ * </p>
+ */
+public class FeatureRemap implements Serializable {
+    // compact index -> original index, in ascending order
+    private final int[] originalIndices;
+
+    private FeatureRemap(int[] originalIndices) {
+        this.originalIndices = originalIndices;
+    }
+
+    /**
+     * Creates the mapping from the set of used feature indices.
+     *
+     * @param usedFeatures original indices of the used features
+     * @return mapping
+     */
+    public static FeatureRemap fromUsedFeatures(BitSet usedFeatures) {
+        return new FeatureRemap(usedFeatures.stream().toArray());
+    }
+
+    /**
+     * @return number of used features
+     */
+    public int size() {
+        return originalIndices.length;
+    }
+
+    /**
+     * @param compactIndex compact index
+     * @return original index of the feature
+     */
+    public int originalIndex(int compactIndex) {
+        return originalIndices[compactIndex];
+    }
+
+    /**
+     * @param originalIndex original index
+     * @return compact index of the feature, or -1 if the feature is not used
+     */
+    public int compactIndex(int originalIndex) {
+        int result = Arrays.binarySearch(originalIndices, originalIndex);
+        return result < 0 ? -1 : result;
+    }
+
+    /**
+     * Copies the used features of the given feature vector into a dense array, indexed by
+     * compact index. Missing values are stored as {@link Float#NaN}.
+     *
+     * @param feat       feature vector indexed by original index
+     * @param dest       destination array
+     * @param destOffset position in {@code dest} of the value for compact index 0
+     */
+    public void gather(FVec feat, float[] dest, int destOffset) {
+        for (int i = 0; i < originalIndices.length; i++) {
+            dest[destOffset + i] = feat.floatValue(originalIndices[i]);
+        }
+    }
+
+    /**
+     * @return new reusable feature vector to gather features into
+     */
+    public Gathered newGathered() {
+        return new Gathered(this);
+    }
+
+    /**
+     * Dense feature vector indexed by compact index, refilled with {@link #gather(FVec)}.
+     * This class is not thread-safe.
+     */
+    public static class Gathered implements FVec {
+        private final FeatureRemap remap;
+        private final float[] values;
+
+        Gathered(FeatureRemap remap) {
+            this.remap = remap;
+            this.values = new float[remap.size()];
+        }
+
+        /**
+         * Replaces the values with the used features of the given feature vector.
+         *
+         * @param feat feature vector indexed by original index
+         * @return this feature vector
+         */
+        public Gathered gather(FVec feat) {
+            remap.gather(feat, values, 0);
+            return this;
+        }
+
+        @Override
+        public Float fvalue(int index) {
+            float result = floatValue(index);
+            return FVec.isMissing(result) ? null : result;
+        }
+
+        @Override
+        public float floatValue(int index) {
+            return values[index];
+        }
+    }
+}
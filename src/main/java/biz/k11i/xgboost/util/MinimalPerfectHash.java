@@ -0,0 +1,174 @@
+package biz.k11i.xgboost.util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Minimal perfect hash function over a fixed set of strings, built with the
+ * "hash, displace and compress" scheme: keys are first hashed into small buckets, then each
+ * bucket gets a displacement that sends all of its keys to distinct free slots.
+ * <p>
+ * {@link #slot(String)} maps each key of the set to a distinct slot in {@code 0..size()-1}
+ * with two array reads and no allocation. Strings outside of the set map to arbitrary slots,
+ * so callers must verify the key stored at the slot.
+ * </p>
+ */
+class MinimalPerfectHash implements Serializable {
+    private static final int KEYS_PER_BUCKET = 4;
+    private static final int MAX_DISPLACEMENT = 1 << 24;
+
+    private final int numSlots;
+    private final int[] displacements;
+    // uses the cached String#hashCode() unless it collides among the keys
+    private final boolean useStringHashCode;
+
+    private MinimalPerfectHash(int numSlots, int[] displacements, boolean useStringHashCode) {
+        this.numSlots = numSlots;
+        this.displacements = displacements;
+        this.useStringHashCode = useStringHashCode;
+    }
+
+    /**
+     * Builds the function.
+     *
+     * @param keys distinct keys
+     * @return minimal perfect hash function of the keys
+     */
+    static MinimalPerfectHash build(String[] keys) {
+        Set<Integer> hashCodes = new HashSet<>();
+        for (String key : keys) {
+            hashCodes.add(key.hashCode());
+        }
+        boolean useStringHashCode = hashCodes.size() == keys.length;
+
+        long[] hashes = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            hashes[i] = hash(keys[i], useStringHashCode);
+        }
+
+        int numBuckets = Math.max(1, (keys.length + KEYS_PER_BUCKET - 1) / KEYS_PER_BUCKET);
+        List<List<Integer>> buckets = new ArrayList<>(numBuckets);
+        for (int i = 0; i < numBuckets; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (int i = 0; i < keys.length; i++) {
+            buckets.get(bucket(hashes[i], numBuckets)).add(i);
+        }
+
+        Integer[] bucketOrder = new Integer[numBuckets];
+        for (int i = 0; i < numBuckets; i++) {
+            bucketOrder[i] = i;
+        }
+        // Places large buckets first while most slots are still free
+        Arrays.sort(bucketOrder, Comparator.comparingInt((Integer b) -> buckets.get(b).size()).reversed());
+
+        int[] displacements = new int[numBuckets];
+        boolean[] occupied = new boolean[keys.length];
+        int[] bucketSlots = new int[keys.length];
+
+        for (int b : bucketOrder) {
+            List<Integer> bucketKeys = buckets.get(b);
+            if (bucketKeys.isEmpty()) {
+                continue;
+            }
+
+            int displacement = 0;
+            while (!tryPlace(bucketKeys, hashes, displacement, keys.length, occupied, bucketSlots)) {
+                if (++displacement == MAX_DISPLACEMENT) {
+                    throw new IllegalStateException("Cannot build perfect hash for " + keys.length + " keys");
+                }
+            }
+            displacements[b] = displacement;
+        }
+
+        return new MinimalPerfectHash(keys.length, displacements, useStringHashCode);
+    }
+
+    private static boolean tryPlace(
+            List<Integer> bucketKeys, long[] hashes, int displacement, int numSlots,
+            boolean[] occupied, int[] bucketSlots) {
+        int numPlaced = 0;
+        for (int key : bucketKeys) {
+            int slot = slot(hashes[key], displacement, numSlots);
+            if (occupied[slot]) {
+                break;
+            }
+            occupied[slot] = true;
+            bucketSlots[numPlaced++] = slot;
+        }
+
+        if (numPlaced == bucketKeys.size()) {
+            return true;
+        }
+
+        for (int i = 0; i < numPlaced; i++) {
+            occupied[bucketSlots[i]] = false;
+        }
+        return false;
+    }
+
+    /**
+     * @return number of slots, which equals the number of keys
+     */
+    int size() {
+        return numSlots;
+    }
+
+    /**
+     * Gets the slot of the given key.
+     *
+     * @param key key
+     * @return slot in {@code 0..size()-1}, or -1 if the function has no slot
+     */
+    int slot(String key) {
+        if (numSlots == 0) {
+            return -1;
+        }
+        long hash = hash(key, useStringHashCode);
+        return slot(hash, displacements[bucket(hash, displacements.length)], numSlots);
+    }
+
+    private static long hash(String key, boolean useStringHashCode) {
+        if (useStringHashCode) {
+            return mix(key.hashCode());
+        }
+
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        // finalizer of MurmurHash3 (fmix64)
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int bucket(long hash, int numBuckets) {
+        return reduce((int) hash, numBuckets);
+    }
+
+    private static int slot(long hash, int displacement, int numSlots) {
+        int h = (int) (hash >>> 32) ^ (displacement * 0x9E3779B9);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return reduce(h, numSlots);
+    }
+
+    private static int reduce(int hash, int n) {
+        // maps a 32-bit hash onto [0, n) without division
+        return (int) (((hash & 0xffffffffL) * n) >>> 32);
+    }
+}
@@ -0,0 +1,165 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.util.FVec;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * Verifies that the prediction hot path does not allocate once it is warmed up.
+ */
+public class AllocationTest {
+    private static final int NUM_FEATURES = 127;
+    private static final int NUM_ITERATIONS = 10000;
+
+    // Tolerates the few bytes allocated by ThreadMXBean itself
+    private static final long ALLOCATION_TOLERANCE = 1024;
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+    private List<FVec> denseTestData;
+    private List<float[]> denseValues;
+
+    @Before
+    public void setUp() throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        denseValues = loadDenseValues();
+        denseTestData = new ArrayList<>();
+        for (float[] values : denseValues) {
+            denseTestData.add(FVec.Transformer.fromArray(values, true));
+        }
+    }
+
+    @Test
+    public void testGBTreePredictSingleDoesNotAllocate() throws IOException {
+        verifyNoAllocation(PredictorTest.newPredictor("model/gbtree/v47/binary-logistic.model"));
+    }
+
+    @Test
+    public void testRemappedGBTreePredictSingleDoesNotAllocate() throws IOException {
+        verifyNoAllocation(PredictorTest.newPredictor(
+                "model/gbtree/v47/binary-logistic.model",
+                PredictorConfiguration.builder().remapFeatures(true).build()));
+    }
+
+    @Test
+    public void testGBLinearPredictSingleDoesNotAllocate() throws IOException {
+        verifyNoAllocation(PredictorTest.newPredictor("model/gblinear/v47/binary-logistic.model"));
+    }
+
+    @Test
+    public void testPredictIntoArrayDoesNotAllocate() throws IOException {
+        for (String modelPath : new String[]{
+                "model/gbtree/v47/multi-softmax.model",
+                "model/gbtree/v47/multi-softprob.model",
+                "model/gblinear/v47/multi-softmax.model"}) {
+            final Predictor predictor = PredictorTest.newPredictor(modelPath);
+            final double[] out = new double[8];
+
+            verifyNoAllocation(i -> {
+                FVec feat = denseTestData.get(i % denseTestData.size());
+                int size = predictor.predict(feat, false, 0, out, 1);
+                size += predictor.predict(feat, true, 0, out, 1 + size);
+                return out[1] + out[size];
+            });
+        }
+    }
+
+    @Test
+    public void testPredictLeafIntoArrayDoesNotAllocate() throws IOException {
+        final Predictor predictor = PredictorTest.newPredictor("model/gbtree/v47/multi-softprob.model");
+        final int[] out = new int[predictor.predictLeaf(denseTestData.get(0)).length];
+
+        verifyNoAllocation(i -> {
+            predictor.predictLeaf(denseTestData.get(i % denseTestData.size()), 0, out, 0);
+            return out[out.length - 1];
+        });
+    }
+
+    @Test
+    public void testFillingMutableFVecDoesNotAllocate() throws IOException {
+        final Predictor predictor = PredictorTest.newPredictor("model/gbtree/v47/binary-logistic.model");
+        final FVec.Mutable dense = FVec.Transformer.newMutableArrayFVec(NUM_FEATURES);
+        final FVec.Mutable sparse = FVec.Transformer.newHashFVec(32);
+
+        verifyNoAllocation(i -> {
+            float[] values = denseValues.get(i % denseValues.size());
+            dense.clear();
+            sparse.clear();
+            for (int j = 0; j < values.length; j++) {
+                if (values[j] != 0) {
+                    dense.set(j, values[j]);
+                    sparse.set(j, values[j]);
+                }
+            }
+            return predictor.predictSingle(dense, true) + predictor.predictSingle(sparse, true);
+        });
+    }
+
+    interface Request {
+        double run(int iteration);
+    }
+
+    private void verifyNoAllocation(final Predictor predictor) {
+        verifyNoAllocation(i -> predictor.predictSingle(denseTestData.get(i % denseTestData.size()), true));
+    }
+
+    private void verifyNoAllocation(Request request) {
+        double sum = 0;
+        for (int i = 0; i < NUM_ITERATIONS; i++) {
+            sum += request.run(i);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < NUM_ITERATIONS; i++) {
+            sum += request.run(i);
+        }
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertThat("allocated bytes (checksum: " + sum + ")", allocated, lessThan(ALLOCATION_TOLERANCE));
+    }
+
+    private static List<float[]> loadDenseValues() throws IOException {
+        try (InputStream stream = AllocationTest.class.getResourceAsStream("model/agaricus.txt.test");
+             BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
+
+            List<float[]> result = new ArrayList<>();
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                float[] values = new float[NUM_FEATURES];
+
+                for (String val : line.split("\\s")) {
+                    if (!val.contains(":")) {
+                        continue;
+                    }
+
+                    String[] pair = val.split(":");
+                    values[Integer.parseInt(pair[0])] = Float.parseFloat(pair[1]);
+                }
+
+                result.add(values);
+            }
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.util.FVec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+public class AsyncPredictorTest {
+
+    @Test
+    public void testSameAsPredictor() throws Exception {
+        Predictor predictor = PredictorTest.newPredictor("model/gbtree/v47/multi-softprob.model");
+        BatchPredictionTest.DenseData data = BatchPredictionTest.loadDenseData("model/agaricus.txt.test");
+
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        try (AsyncPredictor asyncPredictor = AsyncPredictor.builder(predictor)
+                .numThreads(2)
+                .maxBatchSize(16)
+                .maxWait(1, TimeUnit.MILLISECONDS)
+                .queueCapacity(data.numRows)
+                .build()) {
+
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                results.add(clients.submit(() -> {
+                    for (int i = thread; i < data.numRows; i += 8) {
+                        FVec row = data.row(i);
+                        assertThat(asyncPredictor.predict(row).get(), is(predictor.predict(row)));
+                    }
+                    return true;
+                }));
+            }
+
+            for (Future<Boolean> result : results) {
+                assertThat(result.get(), is(true));
+            }
+        } finally {
+            clients.shutdown();
+        }
+    }
+
+    @Test
+    public void testRejectsWhenQueueIsFull() throws IOException, ExecutionException, InterruptedException {
+        Predictor predictor = PredictorTest.newPredictor("model/gbtree/v47/binary-logistic.model");
+        FVec feat = BatchPredictionTest.loadDenseData("model/agaricus.txt.test").row(0);
+
+        CountDownLatch started = new CountDownLatch(1);
+        AsyncPredictor asyncPredictor = AsyncPredictor.builder(predictor)
+                .queueCapacity(2)
+                .threadFactory(r -> new Thread(() -> {
+                    try {
+                        started.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    r.run();
+                }))
+                .build();
+
+        CompletableFuture<double[]> first = asyncPredictor.predict(feat);
+        CompletableFuture<double[]> second = asyncPredictor.predict(feat);
+        try {
+            asyncPredictor.predict(feat);
+            fail();
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertThat(asyncPredictor.queueSize(), is(2));
+
+        started.countDown();
+        assertThat(first.get(), is(predictor.predict(feat)));
+        assertThat(second.get(), is(predictor.predict(feat)));
+
+        asyncPredictor.close();
+        try {
+            asyncPredictor.predict(feat);
+            fail();
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testErrorFailsTheBatchAndKeepsTheScorer() throws Exception {
+        Predictor predictor = PredictorTest.newPredictor("model/gbtree/v47/binary-logistic.model");
+        FVec feat = BatchPredictionTest.loadDenseData("model/agaricus.txt.test").row(0);
+        FVec broken = new FVec() {
+            @Override
+            public Float fvalue(int index) {
+                throw new AssertionError("broken feature vector");
+            }
+
+            @Override
+            public float floatValue(int index) {
+                throw new AssertionError("broken feature vector");
+            }
+        };
+
+        try (AsyncPredictor asyncPredictor = AsyncPredictor.builder(predictor).build()) {
+            try {
+                asyncPredictor.predict(broken).get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertThat(e.getCause() instanceof AssertionError, is(true));
+            }
+
+            assertThat(asyncPredictor.predict(feat).get(10, TimeUnit.SECONDS), is(predictor.predict(feat)));
+        }
+    }
+
+    @Test
+    public void testEveryRequestCompletesWhenClosedConcurrently() throws Exception {
+        Predictor predictor = PredictorTest.newPredictor("model/gbtree/v47/binary-logistic.model");
+        FVec feat = BatchPredictionTest.loadDenseData("model/agaricus.txt.test").row(0);
+
+        ExecutorService clients = Executors.newFixedThreadPool(4);
+        try {
+            for (int round = 0; round < 20; round++) {
+                AsyncPredictor asyncPredictor = AsyncPredictor.builder(predictor).numThreads(2).build();
+                List<Future<List<CompletableFuture<double[]>>>> submitted = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    submitted.add(clients.submit(() -> {
+                        List<CompletableFuture<double[]>> futures = new ArrayList<>();
+                        try {
+                            while (true) {
+                                futures.add(asyncPredictor.predict(feat));
+                            }
+                        } catch (RejectedExecutionException e) {
+                            return futures;
+                        }
+                    }));
+                }
+
+                Thread.sleep(1);
+                asyncPredictor.close();
+
+                for (Future<List<CompletableFuture<double[]>>> result : submitted) {
+                    for (CompletableFuture<double[]> future : result.get()) {
+                        try {
+                            assertThat(future.get(10, TimeUnit.SECONDS), is(predictor.predict(feat)));
+                        } catch (ExecutionException e) {
+                            assertThat(e.getCause() instanceof RejectedExecutionException, is(true));
+                        }
+                    }
+                }
+            }
+        } finally {
+            clients.shutdown();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.util.FMatrix;
+import biz.k11i.xgboost.util.FVec;
+
+import org.junit.Test;
+import org.junit.experimental.theories.DataPoints;
+import org.junit.experimental.theories.Theories;
+import org.junit.experimental.theories.Theory;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Verifies that batch prediction produces exactly the same results as row-by-row prediction.
+ */
+@RunWith(Theories.class)
+public class BatchPredictionTest {
+
+    static class Model {
+        final String modelPath;
+        final String dataPath;
+
+        Model(String modelPath, String dataPath) {
+            this.modelPath = modelPath;
+            this.dataPath = dataPath;
+        }
+
+        @Override
+        public String toString() {
+            return modelPath;
+        }
+    }
+
+    @DataPoints
+    public static final Model[] MODELS = {
+            new Model("model/gbtree/v47/binary-logistic.model", "model/agaricus.txt.test"),
+            new Model("model/gbtree/v47/multi-softmax.model", "model/agaricus.txt.test"),
+            new Model("model/gbtree/v40/multi-softprob.model", "model/agaricus.txt.test"),
+            new Model("model/gbtree/v47/rank-pairwise.model", "model/mq2008.test"),
+            new Model("model/gbtree/v80/poisson.model", "model/agaricus_new.txt.test"),
+            new Model("model/gblinear/v47/binary-logistic.model", "model/agaricus.txt.test"),
+            new Model("model/gblinear/v47/multi-softmax.model", "model/agaricus.txt.test"),
+    };
+
+    @DataPoints
+    public static final boolean[] REMAP_FEATURES = {false, true};
+
+    /**
+     * Test data in dense row-major layout with NaN as missing values.
+     */
+    static class DenseData {
+        final float[] values;
+        final int numRows;
+        final int numCols;
+
+        DenseData(float[] values, int numRows, int numCols) {
+            this.values = values;
+            this.numRows = numRows;
+            this.numCols = numCols;
+        }
+
+        FVec row(int i) {
+            return FVec.Transformer.fromArray(
+                    Arrays.copyOfRange(values, i * numCols, (i + 1) * numCols), false);
+        }
+    }
+
+    static DenseData loadDenseData(String resourceName) throws IOException {
+        List<String[]> lines = new ArrayList<>();
+        int numCols = 0;
+
+        try (InputStream stream = BatchPredictionTest.class.getResourceAsStream(resourceName);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split("\\s");
+                lines.add(tokens);
+                for (String token : tokens) {
+                    if (token.contains(":") && !token.startsWith("qid")) {
+                        numCols = Math.max(numCols, Integer.parseInt(token.split(":")[0]) + 1);
+                    }
+                }
+            }
+        }
+
+        float[] values = new float[lines.size() * numCols];
+        Arrays.fill(values, Float.NaN);
+        for (int i = 0; i < lines.size(); i++) {
+            for (String token : lines.get(i)) {
+                if (token.contains(":") && !token.startsWith("qid")) {
+                    String[] pair = token.split(":");
+                    values[i * numCols + Integer.parseInt(pair[0])] = Float.parseFloat(pair[1]);
+                }
+            }
+        }
+
+        return new DenseData(values, lines.size(), numCols);
+    }
+
+    static Predictor newPredictor(Model model, boolean remapFeatures) throws IOException {
+        return PredictorTest.newPredictor(
+                model.modelPath,
+                PredictorConfiguration.builder().remapFeatures(remapFeatures).build());
+    }
+
+    static void verifySameAsRowByRow(
+            Predictor predictor, DenseData data, double[] batchResults,
+            boolean output_margin, int ntree_limit) {
+        int predictionSize = predictor.getPredictionSize(output_margin);
+        for (int i = 0; i < data.numRows; i++) {
+            double[] expected = predictor.predict(data.row(i), output_margin, ntree_limit);
+            assertThat(expected.length, is(predictionSize));
+            for (int j = 0; j < predictionSize; j++) {
+                assertThat(
+                        String.format("row %d, value %d", i, j),
+                        batchResults[i * predictionSize + j], is(expected[j]));
+            }
+        }
+    }
+
+    @Theory
+    public void testDenseBatch(Model model, boolean remapFeatures) throws IOException {
+        Predictor predictor = newPredictor(model, remapFeatures);
+        DenseData data = loadDenseData(model.dataPath);
+        FMatrix batch = FMatrix.Transformer.fromDense(
+                data.values, data.numRows, data.numCols, data.numCols, Float.NaN);
+
+        for (boolean outputMargin : new boolean[]{false, true}) {
+            for (int ntreeLimit : new int[]{0, 1}) {
+                double[] results = new double[data.numRows * predictor.getPredictionSize(outputMargin)];
+                predictor.predict(batch, results, outputMargin, ntreeLimit);
+                verifySameAsRowByRow(predictor, data, results, outputMargin, ntreeLimit);
+
+                float[] floatResults = new float[results.length];
+                predictor.predict(batch, floatResults, outputMargin, ntreeLimit);
+                for (int i = 0; i < results.length; i++) {
+                    assertThat(floatResults[i], is((float) results[i]));
+                }
+            }
+        }
+    }
+
+    @Theory
+    public void testCSRBatch(Model model, boolean remapFeatures) throws IOException {
+        Predictor predictor = newPredictor(model, remapFeatures);
+        DenseData data = loadDenseData(model.dataPath);
+
+        int[] indptr = new int[data.numRows + 1];
+        int[] indices = new int[data.values.length];
+        float[] values = new float[data.values.length];
+        int nnz = 0;
+        for (int i = 0; i < data.numRows; i++) {
+            for (int j = 0; j < data.numCols; j++) {
+                float value = data.values[i * data.numCols + j];
+                if (!FVec.isMissing(value)) {
+                    indices[nnz] = j;
+                    values[nnz] = value;
+                    nnz++;
+                }
+            }
+            indptr[i + 1] = nnz;
+        }
+
+        for (boolean outputMargin : new boolean[]{false, true}) {
+            int predictionSize = predictor.getPredictionSize(outputMargin);
+            double[] results = new double[data.numRows * predictionSize];
+            predictor.predictCSR(indptr, indices, values, results, outputMargin);
+            verifySameAsRowByRow(predictor, data, results, outputMargin, 0);
+
+            // Predicts a sub-range of rows with tree limit
+            int rowBegin = data.numRows / 3;
+            int rowEnd = rowBegin + 10;
+            double[] rangeResults = new double[(rowEnd - rowBegin) * predictionSize];
+            predictor.predictCSR(indptr, indices, values, rowBegin, rowEnd, rangeResults, outputMargin, 1);
+            for (int i = rowBegin; i < rowEnd; i++) {
+                double[] expected = predictor.predict(data.row(i), outputMargin, 1);
+                for (int j = 0; j < predictionSize; j++) {
+                    assertThat(rangeResults[(i - rowBegin) * predictionSize + j], is(expected[j]));
+                }
+            }
+        }
+    }
+
+    @Theory
+    public void testParallelBatch(Model model, boolean remapFeatures) throws IOException {
+        Predictor predictor = newPredictor(model, remapFeatures);
+        DenseData data = loadDenseData(model.dataPath);
+        FMatrix batch = FMatrix.Transformer.fromDense(
+                data.values, data.numRows, data.numCols, data.numCols, Float.NaN);
+
+        int predictionSize = predictor.getPredictionSize(false);
+        double[] expected = new double[data.numRows * predictionSize];
+        predictor.predict(batch, expected, false, 0);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (int minChunkRows : new int[]{1, 7, 64, data.numRows + 1}) {
+                double[] results = new double[expected.length];
+                predictor.predictParallel(batch, results, false, 0, minChunkRows);
+                assertThat(results, is(expected));
+
+                results = new double[expected.length];
+                predictor.predictParallel(batch, results, false, 0, executor, minChunkRows);
+                assertThat(results, is(expected));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Theory
+    public void testInterleavedBatch(Model model, boolean remapFeatures) throws IOException {
+        Predictor expected = newPredictor(model, remapFeatures);
+        DenseData data = loadDenseData(model.dataPath);
+        FMatrix batch = FMatrix.Transformer.fromDense(
+                data.values, data.numRows, data.numCols, data.numCols, Float.NaN);
+
+        // Other tree layouts are interleaved by EngineEquivalenceTest
+        for (int interleavedRows : new int[]{2, 5, 16}) {
+            Predictor predictor = PredictorTest.newPredictor(model.modelPath, PredictorConfiguration.builder()
+                    .interleavedRows(interleavedRows)
+                    .remapFeatures(remapFeatures)
+                    .build());
+
+            double[] results = new double[data.numRows * predictor.getPredictionSize(true)];
+            predictor.predict(batch, results, true);
+            verifySameAsRowByRow(expected, data, results, true, 0);
+        }
+    }
+
+    @Theory
+    public void testTiledBatch(Model model, boolean remapFeatures) throws IOException {
+        Predictor expected = newPredictor(model, remapFeatures);
+        DenseData data = loadDenseData(model.dataPath);
+        FMatrix batch = FMatrix.Transformer.fromDense(
+                data.values, data.numRows, data.numCols, data.numCols, Float.NaN);
+
+        // From a tile of a single tree and row up to a single tile
+        for (long cacheBudget : new long[]{1, 4096, 1 << 20, Long.MAX_VALUE}) {
+            for (int interleavedRows : new int[]{0, 4}) {
+                Predictor predictor = PredictorTest.newPredictor(model.modelPath, PredictorConfiguration.builder()
+                        .cacheBudget(cacheBudget)
+                        .interleavedRows(interleavedRows)
+                        .remapFeatures(remapFeatures)
+                        .build());
+
+                double[] results = new double[data.numRows * predictor.getPredictionSize(true)];
+                predictor.predict(batch, results, true);
+                verifySameAsRowByRow(expected, data, results, true, 0);
+
+                results = new double[data.numRows * predictor.getPredictionSize(false)];
+                predictor.predict(batch, results, false, 1);
+                verifySameAsRowByRow(expected, data, results, false, 1);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativeCacheBudget() {
+        PredictorConfiguration.builder().cacheBudget(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsTooManyInterleavedRows() {
+        PredictorConfiguration.builder().interleavedRows(PredictorConfiguration.MAX_INTERLEAVED_ROWS + 1);
+    }
+
+    @Test
+    public void testSlice() {
+        float[] data = {0, 1, 2, 3, 4, 5, 6, 7};
+        FMatrix dense = FMatrix.Transformer.fromDense(data, 4, 2, 2, Float.NaN).slice(1, 3);
+        assertThat(dense.numRows(), is(2));
+        assertThat(dense.newRow().at(1).floatValue(1), is(5f));
+
+        FMatrix csr = FMatrix.Transformer.fromCSR(
+                new int[]{0, 1, 2, 4}, new int[]{0, 1, 0, 1}, new float[]{1, 2, 3, 4}).slice(1, 3);
+        assertThat(csr.numRows(), is(2));
+        assertThat(csr.newRow().at(1).floatValue(0), is(3f));
+        assertThat(csr.newRow().at(0).floatValue(1), is(2f));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSliceRejectsInvalidRange() {
+        FMatrix.Transformer.fromDense(new float[4], 2, 2, 2, Float.NaN).slice(1, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCSRRejectsUnsortedIndices() {
+        FMatrix.Transformer.fromCSR(new int[]{0, 2}, new int[]{3, 1}, new float[]{1f, 1f}, 0, 1, true);
+    }
+
+    @Test
+    public void testDenseBatchWithStrideAndMissingValue() throws IOException {
+        Predictor predictor = PredictorTest.newPredictor("model/gbtree/v47/binary-logistic.model");
+        DenseData data = loadDenseData("model/agaricus.txt.test");
+
+        // Pads each row with 3 extra columns and encodes missing values as 0
+        int stride = data.numCols + 3;
+        float[] padded = new float[data.numRows * stride];
+        for (int i = 0; i < data.numRows; i++) {
+            for (int j = 0; j < data.numCols; j++) {
+                float value = data.values[i * data.numCols + j];
+                padded[i * stride + j] = FVec.isMissing(value) ? 0 : value;
+            }
+        }
+
+        double[] results = new double[data.numRows];
+        predictor.predict(FMatrix.Transformer.fromDense(padded, data.numRows, data.numCols, stride, 0), results);
+        verifySameAsRowByRow(predictor, data, results, false, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooSmallOutput() throws IOException {
+        Predictor predictor = PredictorTest.newPredictor("model/gbtree/v47/multi-softprob.model");
+        predictor.predict(FMatrix.Transformer.fromDense(new float[10], 2, 5, 5, Float.NaN), new double[2]);
+    }
+}
@@ -0,0 +1,61 @@
+package biz.k11i.xgboost;
+
+import java.util.Arrays;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Minimal harness for the {@code *Benchmark} classes among the tests. They are not picked up by
+ * {@code mvn test}, and are run one class at a time with e.g.
+ * {@code mvn test -Djacoco.skip=true -Dtest=TreeLayoutBenchmark}.
+ * <p>
+ * Each case is warmed up and then timed over several rounds, and the median time per operation
+ * is printed. Results depend on the machine, so they are reported rather than asserted. Unlike
+ * JMH, all cases of a class share a JVM, so compare cases of the same run with each other.
+ * The durations can be tuned with {@code -Dbenchmark.warmupMillis}, {@code -Dbenchmark.rounds}
+ * and {@code -Dbenchmark.roundMillis}.
+ * </p>
+ */
+class Benchmark {
+    private static final long WARMUP_NANOS = Long.getLong("benchmark.warmupMillis", 1000) * 1_000_000;
+    private static final int ROUNDS = Integer.getInteger("benchmark.rounds", 5);
+    private static final long ROUND_NANOS = Long.getLong("benchmark.roundMillis", 200) * 1_000_000;
+
+    // Keeps the JIT from eliminating the benchmarked code
+    static volatile double sink;
+
+    /**
+     * Measures a case and prints its median time per operation.
+     *
+     * @param name       name of the case
+     * @param operations number of operations done by a call of {@code body}
+     * @param body       benchmarked code, whose result is consumed
+     * @return median nanoseconds per operation
+     */
+    static double measure(String name, long operations, DoubleSupplier body) {
+        double consumed = 0;
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < WARMUP_NANOS) {
+            consumed += body.getAsDouble();
+        }
+
+        double[] rounds = new double[ROUNDS];
+        for (int r = 0; r < ROUNDS; r++) {
+            long calls = 0;
+            long begin = System.nanoTime();
+            long elapsed;
+            do {
+                consumed += body.getAsDouble();
+                calls++;
+                elapsed = System.nanoTime() - begin;
+            } while (elapsed < ROUND_NANOS);
+            rounds[r] = (double) elapsed / (calls * operations);
+        }
+        sink = consumed;
+
+        Arrays.sort(rounds);
+        double median = rounds[ROUNDS / 2];
+        System.out.printf("%-56s %10.1f ns/op  (min %.1f, max %.1f)%n",
+                name, median, rounds[0], rounds[ROUNDS - 1]);
+        return median;
+    }
+}
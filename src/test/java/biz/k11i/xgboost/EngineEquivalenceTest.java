@@ -0,0 +1,241 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.tree.AbstractRegTree;
+import biz.k11i.xgboost.tree.AdaptiveRegTree;
+import biz.k11i.xgboost.tree.CompactRegTree;
+import biz.k11i.xgboost.tree.CompiledRegTree;
+import biz.k11i.xgboost.tree.CompleteRegTree;
+import biz.k11i.xgboost.tree.ForestArena;
+import biz.k11i.xgboost.tree.HybridRegTree;
+import biz.k11i.xgboost.tree.PreorderRegTree;
+import biz.k11i.xgboost.tree.QuantizedForest;
+import biz.k11i.xgboost.tree.QuickScorer;
+import biz.k11i.xgboost.util.FMatrix;
+import biz.k11i.xgboost.util.FVec;
+
+import org.junit.experimental.theories.DataPoints;
+import org.junit.experimental.theories.Theories;
+import org.junit.experimental.theories.Theory;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Verifies that every tree layout and forest engine produces the same results as
+ * {@link PreorderRegTree}, for single rows, leaf indices and batches, before and after
+ * serialization.
+ */
+@RunWith(Theories.class)
+public class EngineEquivalenceTest {
+
+    interface Strategy extends Function<AbstractRegTree.Param, AbstractRegTree>, Serializable {
+    }
+
+    static final Strategy PREORDER = param -> new PreorderRegTree();
+
+    static class Engine {
+        final String name;
+        final UnaryOperator<PredictorConfiguration.Builder> configurer;
+        final double tolerance;
+
+        Engine(String name, UnaryOperator<PredictorConfiguration.Builder> configurer) {
+            this(name, configurer, 0);
+        }
+
+        /**
+         * @param tolerance allowed error of margins, or {@code 0} if they must be identical
+         */
+        Engine(String name, UnaryOperator<PredictorConfiguration.Builder> configurer, double tolerance) {
+            this.name = name;
+            this.configurer = configurer;
+            this.tolerance = tolerance;
+        }
+
+        PredictorConfiguration.Builder configuration(boolean remapFeatures) {
+            return configurer.apply(PredictorConfiguration.builder().remapFeatures(remapFeatures));
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    @DataPoints
+    public static final Engine[] ENGINES = {
+            new Engine("CompiledRegTree",
+                    builder -> builder.treeCreationStrategy((Strategy) param -> new CompiledRegTree())),
+            new Engine("CompiledRegTree(2)",
+                    builder -> builder.treeCreationStrategy((Strategy) param -> new CompiledRegTree(2))),
+            new Engine("CompactRegTree(FLOAT)", builder -> builder.treeCreationStrategy(
+                    CompactRegTree.strategy(CompactRegTree.LeafEncoding.FLOAT))),
+            new Engine("CompactRegTree(DICTIONARY)", builder -> builder.treeCreationStrategy(
+                    CompactRegTree.strategy(CompactRegTree.LeafEncoding.DICTIONARY))),
+            // Half precision leaves round each leaf value
+            new Engine("CompactRegTree(FP16)", builder -> builder.treeCreationStrategy(
+                    CompactRegTree.strategy(CompactRegTree.LeafEncoding.FP16)), 1e-3),
+            new Engine("CompleteRegTree(12)", builder -> builder.treeCreationStrategy(CompleteRegTree.strategy(12))),
+            new Engine("CompleteRegTree(2)", builder -> builder.treeCreationStrategy(CompleteRegTree.strategy(2))),
+            new Engine("HybridRegTree(0)", builder -> builder.treeCreationStrategy(HybridRegTree.strategy(0))),
+            new Engine("HybridRegTree(1)", builder -> builder.treeCreationStrategy(HybridRegTree.strategy(1))),
+            new Engine("HybridRegTree(3)", builder -> builder.treeCreationStrategy(HybridRegTree.strategy(3))),
+            new Engine("HybridRegTree(64)", builder -> builder.treeCreationStrategy(HybridRegTree.strategy(64))),
+            new Engine("AdaptiveRegTree(2, 7)", builder -> builder.treeCreationStrategy(AdaptiveRegTree.strategy(2, 7))),
+            new Engine("ForestArena", builder -> builder.forestEngine(ForestArena.factory())),
+            new Engine("ForestArena(deduplicate)", builder -> builder.forestEngine(ForestArena.factory(true))),
+            new Engine("ForestArena(deduplicate) with parallel trees", builder -> builder
+                    .forestEngine(ForestArena.factory(true))
+                    .parallelTreeThreshold(1)
+                    .parallelTreeSegmentSize(3)),
+            new Engine("QuantizedForest", builder -> builder.forestEngine(QuantizedForest.factory())),
+            new Engine("QuickScorer", builder -> builder.forestEngine(QuickScorer.factory())),
+            new Engine("QuickScorer(1)", builder -> builder.forestEngine(QuickScorer.factory(1))),
+            new Engine("QuickScorer(3)", builder -> builder.forestEngine(QuickScorer.factory(3))),
+    };
+
+    /**
+     * Batch evaluation order, applied on top of the configuration of an engine.
+     */
+    static class Schedule {
+        final String name;
+        final UnaryOperator<PredictorConfiguration.Builder> configurer;
+
+        Schedule(String name, UnaryOperator<PredictorConfiguration.Builder> configurer) {
+            this.name = name;
+            this.configurer = configurer;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final Schedule[] BATCH_SCHEDULES = {
+            new Schedule("tree by tree", null),
+            new Schedule("interleaved", builder -> builder.interleavedRows(5)),
+            new Schedule("tiled", builder -> builder.cacheBudget(4096)),
+    };
+
+    @DataPoints
+    public static final BatchPredictionTest.Model[] MODELS = BatchPredictionTest.MODELS;
+
+    @DataPoints
+    public static final boolean[] REMAP_FEATURES = {false, true};
+
+    /**
+     * Predictions of {@link PreorderRegTree} for each row of the test data of a model.
+     */
+    static class Reference {
+        final BatchPredictionTest.DenseData data;
+        final double[][] margins;
+        final double[][] firstTreeMargins;
+        final int[][] leaves;
+
+        Reference(BatchPredictionTest.Model model) throws IOException {
+            data = BatchPredictionTest.loadDenseData(model.dataPath);
+            Predictor predictor = PredictorTest.newPredictor(model.modelPath, PredictorConfiguration.builder()
+                    .treeCreationStrategy(PREORDER)
+                    .build());
+
+            margins = new double[data.numRows][];
+            firstTreeMargins = new double[data.numRows][];
+            leaves = new int[data.numRows][];
+            for (int i = 0; i < data.numRows; i++) {
+                FVec row = data.row(i);
+                margins[i] = predictor.predict(row, true);
+                firstTreeMargins[i] = predictor.predict(row, true, 1);
+                leaves[i] = predictor.predictLeaf(row);
+            }
+        }
+    }
+
+    private static final Map<String, Reference> REFERENCES = new HashMap<>();
+
+    private static Reference reference(BatchPredictionTest.Model model) {
+        return REFERENCES.computeIfAbsent(model.modelPath, modelPath -> {
+            try {
+                return new Reference(model);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    @Theory
+    public void testSameAsPreorder(BatchPredictionTest.Model model, Engine engine, boolean remapFeatures)
+            throws IOException, ClassNotFoundException {
+        assumeTrue(model.modelPath.contains("gbtree"));
+
+        Reference expected = reference(model);
+        BatchPredictionTest.DenseData data = expected.data;
+        Predictor predictor = serializeAndDeserialize(
+                PredictorTest.newPredictor(model.modelPath, engine.configuration(remapFeatures).build()));
+
+        for (int i = 0; i < data.numRows; i++) {
+            FVec row = data.row(i);
+            String reason = engine + ", row " + i;
+            assertSame(reason, engine, predictor.predict(row, true), expected.margins[i]);
+            assertSame(reason, engine, predictor.predict(row, true, 1), expected.firstTreeMargins[i]);
+            assertThat(reason, predictor.predictLeaf(row), is(expected.leaves[i]));
+        }
+
+        FMatrix batch = FMatrix.Transformer.fromDense(
+                data.values, data.numRows, data.numCols, data.numCols, Float.NaN);
+        for (Schedule schedule : BATCH_SCHEDULES) {
+            Predictor batchPredictor = schedule.configurer == null ? predictor : PredictorTest.newPredictor(
+                    model.modelPath, schedule.configurer.apply(engine.configuration(remapFeatures)).build());
+
+            int predictionSize = batchPredictor.getPredictionSize(true);
+            double[] results = new double[data.numRows * predictionSize];
+            batchPredictor.predict(batch, results, true);
+            for (int i = 0; i < data.numRows; i++) {
+                assertSame(engine + ", " + schedule + " batch, row " + i, engine,
+                        Arrays.copyOfRange(results, i * predictionSize, (i + 1) * predictionSize),
+                        expected.margins[i]);
+            }
+        }
+    }
+
+    private static void assertSame(String reason, Engine engine, double[] actual, double[] expected) {
+        assertThat(reason, actual.length, is(expected.length));
+        for (int k = 0; k < actual.length; k++) {
+            assertSame(reason, engine, actual[k], expected[k]);
+        }
+    }
+
+    private static void assertSame(String reason, Engine engine, double actual, double expected) {
+        if (engine.tolerance == 0) {
+            assertThat(reason, actual, is(expected));
+        } else {
+            assertThat(reason, actual, closeTo(expected, engine.tolerance));
+        }
+    }
+
+    static Predictor serializeAndDeserialize(Predictor predictor) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(predictor);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (Predictor) in.readObject();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.util.FVec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertTrue;
+
+public class FVecTest {
+
+    @Test
+    public void testArrayFloatValue() {
+        FVec fvec = FVec.Transformer.fromArray(new float[]{1.5f, 0f, -2f}, true);
+
+        assertThat(fvec.floatValue(0), is(1.5f));
+        assertTrue(FVec.isMissing(fvec.floatValue(1)));
+        assertThat(fvec.floatValue(2), is(-2f));
+        assertTrue(FVec.isMissing(fvec.floatValue(3)));
+
+        fvec = FVec.Transformer.fromArray(new double[]{1.5, 0, -2}, false);
+        assertThat(fvec.floatValue(1), is(0f));
+        assertThat(fvec.fvalue(0), is(1.5f));
+    }
+
+    @Test
+    public void testMapFloatValue() {
+        Map<Integer, Double> map = new HashMap<>();
+        map.put(2, 32.);
+        map.put(1000, -8.);
+        FVec fvec = FVec.Transformer.fromMap(map);
+
+        assertThat(fvec.floatValue(2), is(32f));
+        assertThat(fvec.floatValue(1000), is(-8f));
+        assertTrue(FVec.isMissing(fvec.floatValue(0)));
+        assertThat(fvec.fvalue(0), is(nullValue()));
+    }
+
+    @Test
+    public void testSparseArrayFloatValue() {
+        int[] indices = {1, 4, 5, 9, 1000000};
+        float[] values = {0.5f, -1f, 2f, 0f, 7f};
+
+        for (int length = 0; length <= indices.length; length++) {
+            FVec fvec = FVec.Transformer.fromSparseArray(
+                    Arrays.copyOf(indices, length), Arrays.copyOf(values, length));
+
+            for (int index = -1; index <= 10; index++) {
+                int pos = Arrays.binarySearch(indices, 0, length, index);
+                if (pos >= 0) {
+                    assertThat(fvec.floatValue(index), is(values[pos]));
+                    assertThat(fvec.fvalue(index), is(values[pos]));
+                } else {
+                    assertTrue(FVec.isMissing(fvec.floatValue(index)));
+                    assertThat(fvec.fvalue(index), is(nullValue()));
+                }
+            }
+        }
+
+        FVec fvec = FVec.Transformer.fromSparseArray(indices, values);
+        assertThat(fvec.floatValue(1000000), is(7f));
+        assertTrue(FVec.isMissing(fvec.floatValue(Integer.MAX_VALUE)));
+    }
+
+    @Test
+    public void testCSRFloatValue() {
+        int[] indptr = {0, 2, 2, 5};
+        int[] indices = {3, 7, 0, 3, 8};
+        float[] values = {1f, 2f, 3f, 4f, 5f};
+
+        FVec row0 = FVec.Transformer.fromCSR(indptr, indices, values, 0);
+        assertThat(row0.floatValue(3), is(1f));
+        assertThat(row0.floatValue(7), is(2f));
+        assertTrue(FVec.isMissing(row0.floatValue(0)));
+        assertTrue(FVec.isMissing(row0.floatValue(8)));
+
+        FVec row1 = FVec.Transformer.fromCSR(indptr, indices, values, 1);
+        assertTrue(FVec.isMissing(row1.floatValue(3)));
+
+        FVec row2 = FVec.Transformer.fromCSR(indptr, indices, values, 2);
+        assertThat(row2.floatValue(0), is(3f));
+        assertThat(row2.floatValue(3), is(4f));
+        assertThat(row2.floatValue(8), is(5f));
+        assertTrue(FVec.isMissing(row2.floatValue(7)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSparseArrayRejectsUnsortedIndices() {
+        FVec.Transformer.fromSparseArray(new int[]{1, 5, 3}, new float[]{1f, 2f, 3f});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSparseArrayRejectsLengthMismatch() {
+        FVec.Transformer.fromSparseArray(new int[]{1, 2}, new float[]{1f});
+    }
+
+    @Test
+    public void testHashFloatValue() {
+        FVec.FVecHashImpl fvec = FVec.Transformer.newHashFVec(4);
+        Map<Integer, Float> expected = new HashMap<>();
+        Random random = new Random(0);
+
+        for (int round = 0; round < 3; round++) {
+            fvec.clear();
+            expected.clear();
+            assertThat(fvec.size(), is(0));
+
+            // Sets more values than expected to exercise growing the table
+            for (int i = 0; i < 100; i++) {
+                int index = random.nextInt(round == 0 ? 64 : 1000000);
+                float value = random.nextFloat();
+                fvec.set(index, value);
+                expected.put(index, value);
+            }
+            assertThat(fvec.size(), is(expected.size()));
+
+            for (int index = 0; index < 64; index++) {
+                Float value = expected.get(index);
+                if (value == null) {
+                    assertTrue(FVec.isMissing(fvec.floatValue(index)));
+                    assertThat(fvec.fvalue(index), is(nullValue()));
+                } else {
+                    assertThat(fvec.floatValue(index), is(value));
+                }
+            }
+            for (Map.Entry<Integer, Float> entry : expected.entrySet()) {
+                assertThat(fvec.floatValue(entry.getKey()), is(entry.getValue()));
+            }
+        }
+
+        fvec.set(3, Float.NaN);
+        assertTrue(FVec.isMissing(fvec.floatValue(3)));
+        assertTrue(FVec.isMissing(fvec.floatValue(-3)));
+    }
+
+    @Test
+    public void testMutableArrayFloatValue() {
+        FVec.FVecMutableArrayImpl fvec = FVec.Transformer.newMutableArrayFVec(8);
+        for (int index = 0; index < 9; index++) {
+            assertTrue(FVec.isMissing(fvec.floatValue(index)));
+        }
+
+        fvec.set(1, 1f);
+        fvec.set(5, 0f);
+        fvec.set(1, 2f);
+        assertThat(fvec.floatValue(1), is(2f));
+        assertThat(fvec.floatValue(5), is(0f));
+        assertThat(fvec.fvalue(5), is(0f));
+        assertThat(fvec.fvalue(4), is(nullValue()));
+
+        fvec.clear();
+        for (int index = 0; index < 8; index++) {
+            assertTrue(FVec.isMissing(fvec.floatValue(index)));
+        }
+
+        // Setting and unsetting the same index repeatedly overflows the touched list
+        for (int i = 0; i < 20; i++) {
+            fvec.set(3, 1f);
+            fvec.set(3, Float.NaN);
+        }
+        fvec.set(7, 1f);
+        fvec.clear();
+        for (int index = 0; index < 8; index++) {
+            assertTrue(FVec.isMissing(fvec.floatValue(index)));
+        }
+
+        fvec.set(2, 5f);
+        assertThat(fvec.floatValue(2), is(5f));
+    }
+
+    @Test
+    public void testDenseBufferFloatValue() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64).order(ByteOrder.LITTLE_ENDIAN);
+        // 2 rows x 3 columns with 2 bytes of header, row-major
+        buffer.position(2);
+        buffer.putFloat(1f).putFloat(0f).putFloat(3f);
+        buffer.putFloat(4f).putFloat(5f).putFloat(6f);
+
+        FVec row1 = FVec.Transformer.fromByteBuffer(buffer, 2 + 12, 3, 1, true);
+        assertThat(row1.floatValue(0), is(4f));
+        assertThat(row1.floatValue(2), is(6f));
+        assertTrue(FVec.isMissing(row1.floatValue(3)));
+
+        FVec row0 = FVec.Transformer.fromByteBuffer(buffer, 2, 3, 1, true);
+        assertTrue(FVec.isMissing(row0.floatValue(1)));
+        assertThat(row0.fvalue(1), is(nullValue()));
+
+        // Column 2 read with stride
+        FVec column2 = FVec.Transformer.fromFloatBuffer(FloatBuffer.wrap(new float[]{1, 2, 3, 4, 5, 6}), 2, 2, 3, false);
+        assertThat(column2.floatValue(0), is(3f));
+        assertThat(column2.floatValue(1), is(6f));
+        assertTrue(FVec.isMissing(column2.floatValue(2)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDenseBufferRejectsOutOfBounds() {
+        FVec.Transformer.fromFloatBuffer(FloatBuffer.allocate(6), 2, 2, 4, false);
+    }
+
+    @Test
+    public void testSparseBufferFloatValue() {
+        ByteBuffer buffer = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(2).putInt(10).putInt(300);
+        buffer.putFloat(0.5f).putFloat(-1f).putFloat(8f);
+
+        FVec fvec = FVec.Transformer.fromSparseByteBuffer(buffer, 0, 12, 3);
+        assertThat(fvec.floatValue(2), is(0.5f));
+        assertThat(fvec.floatValue(10), is(-1f));
+        assertThat(fvec.floatValue(300), is(8f));
+        assertTrue(FVec.isMissing(fvec.floatValue(0)));
+        assertTrue(FVec.isMissing(fvec.floatValue(11)));
+        assertThat(fvec.fvalue(3), is(nullValue()));
+
+        fvec = FVec.Transformer.fromSparseBuffer(
+                IntBuffer.wrap(new int[]{1, 4, 6}), FloatBuffer.wrap(new float[]{1f, 4f, 6f}), 1, 2);
+        assertTrue(FVec.isMissing(fvec.floatValue(1)));
+        assertThat(fvec.floatValue(4), is(4f));
+        assertThat(fvec.floatValue(6), is(6f));
+    }
+
+    @Test
+    public void testDefaultFloatValueAdaptsBoxedValue() {
+        FVec fvec = index -> index == 1 ? 3f : null;
+
+        assertThat(fvec.floatValue(1), is(3f));
+        assertTrue(FVec.isMissing(fvec.floatValue(0)));
+    }
+}
@@ -0,0 +1,172 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.util.FVec;
+import biz.k11i.xgboost.util.FeatureMap;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FeatureMapTest {
+    private static final int NUM_FEATURES = 127;
+
+    private static InputStream featureMapOf(String... names) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            sb.append(i).append('\t').append(names[i]).append("\ti\n");
+        }
+        return new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String featureName(int index) {
+        return "feature-" + index + "=yes";
+    }
+
+    @Test
+    public void testHandles() throws IOException {
+        int numNames = 1000;
+        String[] names = new String[numNames];
+        BitSet usedFeatures = new BitSet();
+        for (int i = 0; i < numNames; i++) {
+            names[i] = featureName(i);
+            if (i % 3 != 0) {
+                usedFeatures.set(i);
+            }
+        }
+
+        FeatureMap featureMap = FeatureMap.load(featureMapOf(names), usedFeatures);
+        assertThat(featureMap.size(), is(usedFeatures.cardinality()));
+
+        BitSet handles = new BitSet();
+        for (int i = 0; i < numNames; i++) {
+            int handle = featureMap.handle(names[i]);
+            if (usedFeatures.get(i)) {
+                assertTrue(handle >= 0 && handle < featureMap.size());
+                assertThat(featureMap.featureIndex(handle), is(i));
+                assertThat(featureMap.name(handle), is(names[i]));
+                handles.set(handle);
+            } else {
+                assertThat(handle, is(-1));
+            }
+        }
+        assertThat(handles.cardinality(), is(featureMap.size()));
+        assertThat(featureMap.handle("unknown"), is(-1));
+    }
+
+    @Test
+    public void testCollidingStringHashCodes() throws IOException {
+        // "Aa" and "BB" share the same String#hashCode()
+        BitSet usedFeatures = new BitSet();
+        usedFeatures.set(0, 3);
+        FeatureMap featureMap = FeatureMap.load(featureMapOf("Aa", "BB", "C"), usedFeatures);
+
+        assertThat(featureMap.featureIndex(featureMap.handle("Aa")), is(0));
+        assertThat(featureMap.featureIndex(featureMap.handle("BB")), is(1));
+        assertThat(featureMap.featureIndex(featureMap.handle("C")), is(2));
+        assertThat(featureMap.handle("AaBB"), is(-1));
+    }
+
+    @Test
+    public void testNamedFVecWithLargeFeatureIndices() throws IOException {
+        String featureMap = "5\tsmall\ti\n1000000\tlarge\tq\n2000000\tunused\tq\n";
+        BitSet usedFeatures = new BitSet();
+        usedFeatures.set(5);
+        usedFeatures.set(1_000_000);
+        FeatureMap map = FeatureMap.load(
+                new ByteArrayInputStream(featureMap.getBytes(StandardCharsets.UTF_8)), usedFeatures);
+
+        FeatureMap.NamedFVec named = map.newFVec();
+        assertTrue(named.set("large", 2f));
+        assertFalse(named.set("unused", 3f));
+        assertThat(named.floatValue(1_000_000), is(2f));
+        assertTrue(FVec.isMissing(named.floatValue(5)));
+        assertTrue(FVec.isMissing(named.floatValue(2_000_000)));
+        assertTrue(FVec.isMissing(named.floatValue(7)));
+
+        named.clear();
+        assertTrue(FVec.isMissing(named.floatValue(1_000_000)));
+    }
+
+    @Test
+    public void testNamedFVecClearsTouchedFeatures() throws IOException {
+        BitSet usedFeatures = new BitSet();
+        usedFeatures.set(0, 3);
+        FeatureMap featureMap = FeatureMap.load(featureMapOf("a", "b", "c"), usedFeatures);
+        FeatureMap.NamedFVec named = featureMap.newFVec();
+
+        for (int round = 0; round < 3; round++) {
+            // Setting the same feature again, even after a missing value, is tracked once
+            named.set("a", 1f);
+            named.set("a", Float.NaN);
+            named.set("a", 2f);
+            named.set("c", 3f);
+            assertThat(named.floatValue(0), is(2f));
+            assertTrue(FVec.isMissing(named.floatValue(1)));
+            assertThat(named.floatValue(2), is(3f));
+
+            named.clear();
+            for (int index = 0; index < 3; index++) {
+                assertTrue(FVec.isMissing(named.floatValue(index)));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testDuplicateFeatureIndex() throws IOException {
+        FeatureMap.load(
+                new ByteArrayInputStream("0\tfoo\ti\n0\tbar\ti\n".getBytes(StandardCharsets.UTF_8)),
+                new BitSet());
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedFeatureMap() throws IOException {
+        FeatureMap.load(
+                new ByteArrayInputStream("0\tfoo\ti\nbar\n".getBytes(StandardCharsets.UTF_8)),
+                new BitSet());
+    }
+
+    @Test
+    public void testPredictWithNamedFeatures() throws IOException {
+        Predictor predictor = PredictorTest.newPredictor("model/gbtree/v47/binary-logistic.model");
+
+        String[] names = new String[NUM_FEATURES];
+        for (int i = 0; i < NUM_FEATURES; i++) {
+            names[i] = featureName(i);
+        }
+        FeatureMap featureMap = predictor.loadFeatureMap(featureMapOf(names));
+        assertThat(predictor.getFeatureMap(), is(featureMap));
+
+        FeatureMap.NamedFVec named = featureMap.newFVec();
+        Random random = new Random(0);
+
+        for (int row = 0; row < 100; row++) {
+            Map<Integer, Float> values = new HashMap<>();
+            named.clear();
+            for (int i = 0; i < NUM_FEATURES; i++) {
+                if (random.nextBoolean()) {
+                    values.put(i, 1f);
+                    boolean used = named.set(names[i], 1f);
+                    assertThat(used, is(featureMap.handle(names[i]) >= 0));
+                }
+            }
+
+            assertThat(
+                    predictor.predictSingle(named),
+                    is(predictor.predictSingle(FVec.Transformer.fromMap(values))));
+        }
+
+        assertFalse(named.set("unknown", 1f));
+    }
+}
@@ -0,0 +1,152 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.tree.AbstractRegTree;
+import biz.k11i.xgboost.tree.AdaptiveRegTree;
+import biz.k11i.xgboost.util.FVec;
+
+import org.junit.Test;
+import org.junit.experimental.theories.Theories;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+@RunWith(Theories.class)
+public class GBTreeAdaptivePredictorTest extends GBTreePredictorTest {
+    private static final FVec GOES_LEFT = FVec.Transformer.fromArray(new float[]{-1}, false);
+    private static final FVec GOES_RIGHT = FVec.Transformer.fromArray(new float[]{1}, false);
+    // Index of the child placed next to the root, whose block has 3 ints
+    private static final int NEXT_TO_ROOT = 3;
+
+    @Override
+    protected PredictorConfiguration configuration() {
+        return PredictorConfiguration.builder()
+                .treeCreationStrategy(AdaptiveRegTree.strategy(1, 10))
+                .build();
+    }
+
+    /**
+     * Exposes where the root of the current layout leads to.
+     */
+    static class ProbedTree extends AdaptiveRegTree {
+        ProbedTree(int relayoutInterval, List<Runnable> relayouts) {
+            super(1, relayoutInterval, relayouts::add);
+        }
+
+        int childOfRoot(FVec feat) {
+            return getNextNode(getRootNode(), feat);
+        }
+    }
+
+    /**
+     * Stump whose left leaf has the higher training cover.
+     */
+    private static AbstractRegTree.Param stump() {
+        return new TreeParams()
+                .split(1, 2, 0, 0, true)
+                .leaf(1, 10)
+                .leaf(2, 1)
+                .build();
+    }
+
+    @Test
+    public void testRelayoutReordersChildren() {
+        ProbedTree tree = new ProbedTree(Integer.MAX_VALUE, new ArrayList<>());
+        tree.loadModel(stump());
+        assertThat(tree.childOfRoot(GOES_LEFT), is(NEXT_TO_ROOT));
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(tree.getLeafValue(GOES_RIGHT), is(2.0));
+        }
+        tree.relayout();
+
+        assertThat(tree.childOfRoot(GOES_RIGHT), is(NEXT_TO_ROOT));
+        assertThat(tree.getLeafValue(GOES_LEFT), is(1.0));
+        assertThat(tree.getLeafIndex(GOES_LEFT), is(1));
+        assertThat(tree.getLeafValue(GOES_RIGHT), is(2.0));
+        assertThat(tree.getLeafIndex(GOES_RIGHT), is(2));
+    }
+
+    @Test
+    public void testRelayoutRunsOnExecutor() {
+        List<Runnable> relayouts = new ArrayList<>();
+        ProbedTree tree = new ProbedTree(4, relayouts);
+        tree.loadModel(stump());
+
+        for (int i = 0; i < 4; i++) {
+            tree.getLeafValue(GOES_RIGHT);
+        }
+
+        // The triggering evaluation only submits the relayout
+        assertThat(relayouts.size(), is(1));
+        assertThat(tree.childOfRoot(GOES_RIGHT), is(not(NEXT_TO_ROOT)));
+
+        // No other relayout is submitted while one is pending
+        for (int i = 0; i < 4; i++) {
+            tree.getLeafValue(GOES_RIGHT);
+        }
+        assertThat(relayouts.size(), is(1));
+
+        relayouts.get(0).run();
+        assertThat(tree.childOfRoot(GOES_RIGHT), is(NEXT_TO_ROOT));
+
+        for (int i = 0; i < 4; i++) {
+            tree.getLeafValue(GOES_RIGHT);
+        }
+        assertThat(relayouts.size(), is(2));
+    }
+
+    @Test
+    public void testSameAsPreorderWhileRelayingOut() throws IOException, InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (BatchPredictionTest.Model model : BatchPredictionTest.MODELS) {
+                if (!model.modelPath.contains("gbtree")) {
+                    continue;
+                }
+
+                BatchPredictionTest.DenseData data = BatchPredictionTest.loadDenseData(model.dataPath);
+                Predictor expected = newPredictor(model.modelPath, PredictorConfiguration.builder()
+                        .treeCreationStrategy(EngineEquivalenceTest.PREORDER)
+                        .build());
+                Predictor predictor = newPredictor(model.modelPath, PredictorConfiguration.builder()
+                        .treeCreationStrategy(AdaptiveRegTree.strategy(2, 7))
+                        .remapFeatures(true)
+                        .build());
+
+                List<Future<?>> futures = new ArrayList<>();
+                for (int thread = 0; thread < 4; thread++) {
+                    // Each thread skews the traffic differently, while trees are repacked on the common pool
+                    final int first = thread * data.numRows / 4;
+                    futures.add(executor.submit(() -> {
+                        for (int n = 0; n < data.numRows; n++) {
+                            FVec row = data.row((first + n) % data.numRows);
+                            assertThat(predictor.predict(row, true), is(expected.predict(row, true)));
+                            assertThat(predictor.predictLeaf(row), is(expected.predictLeaf(row)));
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNonPositiveSampleInterval() {
+        AdaptiveRegTree.strategy(0, 1);
+    }
+}
@@ -0,0 +1,164 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.tree.AbstractRegTree;
+import biz.k11i.xgboost.tree.ForestArena;
+import biz.k11i.xgboost.tree.ForestEngine;
+import biz.k11i.xgboost.tree.PreorderRegTree;
+import biz.k11i.xgboost.util.FVec;
+
+import org.junit.Test;
+import org.junit.experimental.theories.Theories;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+
+@RunWith(Theories.class)
+public class GBTreeArenaPredictorTest extends GBTreePredictorTest {
+
+    @Override
+    protected PredictorConfiguration configuration() {
+        return PredictorConfiguration.builder()
+                .forestEngine(ForestArena.factory())
+                .build();
+    }
+
+    private static final float[] VALUES = {-1, 1, Float.NaN};
+
+    /**
+     * Trees whose subtrees splitting feature 1 into leaves 2 and 3 are identical but for their
+     * leaf IDs.
+     */
+    private static AbstractRegTree.Param[] forest() {
+        AbstractRegTree.Param first = new TreeParams()
+                .split(1, 2, 0, 0, true)
+                .leaf(1)
+                .split(3, 4, 1, 0, true)
+                .leaf(2).leaf(3)
+                .build();
+        // The subtree is the less covered child, so it may point to the one of the first tree
+        AbstractRegTree.Param second = new TreeParams()
+                .split(1, 2, 2, 0, true, 10)
+                .leaf(5, 9)
+                .split(3, 4, 3, 0, false, 1)
+                .leaf(6, 0.5f)
+                .split(5, 6, 1, 0, true, 0.1f)
+                .leaf(2).leaf(3)
+                .build();
+        // Twice the same subtree within a tree
+        AbstractRegTree.Param third = new TreeParams()
+                .split(1, 2, 0, 0, true)
+                .split(3, 4, 1, 0, true)
+                .split(5, 6, 1, 0, true)
+                .leaf(2).leaf(3).leaf(2).leaf(3)
+                .build();
+        return new AbstractRegTree.Param[]{first, second, third};
+    }
+
+    @Test
+    public void testTreesAreViewsOfTheArena() {
+        AbstractRegTree.Param[] params = forest();
+        for (boolean deduplicate : new boolean[]{false, true}) {
+            ForestEngine engine = ForestArena.factory(deduplicate)
+                    .create(new AbstractRegTree.Param[][]{params}, null)[0];
+            AbstractRegTree[] trees = engine.getTrees();
+            assertThat(trees.length, is(params.length));
+            if (deduplicate) {
+                assertThat(ForestArena.of(engine).getSharedSubtrees(), is(greaterThan(0)));
+            }
+
+            for (int t = 0; t < params.length; t++) {
+                AbstractRegTree expected = new PreorderRegTree();
+                expected.loadModel(params[t]);
+                for (float f0 : VALUES) {
+                    for (float f1 : VALUES) {
+                        for (float f2 : VALUES) {
+                            for (float f3 : VALUES) {
+                                FVec feat = FVec.Transformer.fromArray(new float[]{f0, f1, f2, f3}, false);
+                                String reason = String.format(
+                                        "deduplicate=%s, tree %d, [%s, %s, %s, %s]", deduplicate, t, f0, f1, f2, f3);
+                                assertThat(reason, trees[t].getLeafIndex(feat), is(expected.getLeafIndex(feat)));
+                                assertThat(reason, trees[t].getLeafValue(feat), is(expected.getLeafValue(feat)));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRetainedNodeBytes() {
+        AbstractRegTree.Param[] params = forest();
+        long preorderBytes = 0;
+        for (AbstractRegTree.Param param : params) {
+            AbstractRegTree tree = new PreorderRegTree();
+            tree.loadModel(param);
+            preorderBytes += tree.sizeInBytes();
+        }
+
+        // Without deduplication, the arena holds the same nodes the trees would
+        ForestArena arena = ForestArena.of(ForestArena.factory(false)
+                .create(new AbstractRegTree.Param[][]{params}, null)[0]);
+        assertThat(arena.sizeInBytes(), is(preorderBytes));
+        assertThat(arena.undeduplicatedSizeInBytes(), is(preorderBytes));
+
+        // The second tree shares the subtree of the first, saving 3 nodes of 12 bytes but keeping
+        // the IDs of its 2 leaves in 8 bytes each. The third tree only shares a leaf, keeping its
+        // ID, since its other copy of the subtree already reaches that leaf
+        ForestArena deduplicated = ForestArena.of(ForestArena.factory(true)
+                .create(new AbstractRegTree.Param[][]{params}, null)[0]);
+        assertThat(deduplicated.getSharedSubtrees(), is(2));
+        assertThat(deduplicated.undeduplicatedSizeInBytes(), is(preorderBytes));
+        assertThat(deduplicated.sizeInBytes(), is(preorderBytes - 3 * 12 + 2 * 8 - 12 + 8));
+    }
+
+    @Test
+    public void testEarlyExit() throws IOException {
+        Predictor expected = newPredictor("model/gbtree/v80/poisson.model");
+        Predictor predictor = newPredictor("model/gbtree/v80/poisson.model", PredictorConfiguration.builder()
+                .forestEngine(ForestArena.factory(true))
+                .build());
+        BatchPredictionTest.DenseData data = BatchPredictionTest.loadDenseData("model/agaricus_new.txt.test");
+
+        for (int i = 0; i < data.numRows; i++) {
+            FVec row = data.row(i);
+            for (double threshold : new double[]{0.5, 1, 2}) {
+                ThresholdPrediction result = predictor.predictAboveThreshold(row, threshold);
+                ThresholdPrediction expectedResult = expected.predictAboveThreshold(row, threshold);
+                assertThat(result.isAboveThreshold(), is(expectedResult.isAboveThreshold()));
+                assertThat(result.getEvaluatedTrees(), is(expectedResult.getEvaluatedTrees()));
+            }
+        }
+    }
+
+    @Test
+    public void testDeduplication() throws IOException {
+        Predictor plain = newPredictor("model/gbtree/v80/poisson.model", PredictorConfiguration.builder()
+                .forestEngine(ForestArena.factory())
+                .build());
+        ForestArena arena = plain.getForestArena();
+        assertThat(arena.getSharedSubtrees(), is(0));
+        assertThat(arena.sizeInBytes(), is(arena.undeduplicatedSizeInBytes()));
+
+        Predictor deduplicated = newPredictor("model/gbtree/v80/poisson.model", PredictorConfiguration.builder()
+                .forestEngine(ForestArena.factory(true))
+                .build());
+        ForestArena deduplicatedArena = deduplicated.getForestArena();
+        assertThat(deduplicatedArena.getSharedSubtrees(), is(greaterThan(0)));
+        assertThat(deduplicatedArena.sizeInBytes(), is(lessThan(arena.sizeInBytes())));
+        assertThat(deduplicatedArena.undeduplicatedSizeInBytes(), is(arena.sizeInBytes()));
+        assertThat(deduplicatedArena.toString(), containsString(
+                "retained node bytes=" + deduplicatedArena.sizeInBytes()
+                + ", without deduplication=" + arena.sizeInBytes()));
+
+        assertThat(newPredictor("model/gbtree/v80/poisson.model").getForestArena(), is(nullValue()));
+    }
+}
@@ -0,0 +1,24 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.tree.CompactRegTree;
+
+import org.junit.Test;
+import org.junit.experimental.theories.Theories;
+import org.junit.runner.RunWith;
+
+@RunWith(Theories.class)
+public class GBTreeCompactPredictorTest extends GBTreePredictorTest {
+
+    @Override
+    protected PredictorConfiguration configuration() {
+        return PredictorConfiguration.builder()
+                .treeCreationStrategy(CompactRegTree.strategy(CompactRegTree.LeafEncoding.DICTIONARY))
+                .build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNullLeafEncoding() {
+        CompactRegTree.strategy(null);
+    }
+}
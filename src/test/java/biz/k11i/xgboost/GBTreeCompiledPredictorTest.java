@@ -0,0 +1,18 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.tree.CompiledRegTree;
+
+import org.junit.experimental.theories.Theories;
+import org.junit.runner.RunWith;
+
+@RunWith(Theories.class)
+public class GBTreeCompiledPredictorTest extends GBTreePredictorTest {
+
+    @Override
+    protected PredictorConfiguration configuration() {
+        return PredictorConfiguration.builder()
+                .treeCreationStrategy(param -> new CompiledRegTree())
+                .build();
+    }
+}
@@ -0,0 +1,88 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.tree.AbstractRegTree;
+import biz.k11i.xgboost.tree.CompleteRegTree;
+import biz.k11i.xgboost.tree.PreorderRegTree;
+import biz.k11i.xgboost.util.FVec;
+
+import org.junit.Test;
+import org.junit.experimental.theories.Theories;
+import org.junit.runner.RunWith;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+
+@RunWith(Theories.class)
+public class GBTreeCompletePredictorTest extends GBTreePredictorTest {
+    private static final float[] VALUES = {
+            Float.NaN, Float.NEGATIVE_INFINITY, -1, 0, 0.5f, 1, Float.POSITIVE_INFINITY};
+
+    @Override
+    protected PredictorConfiguration configuration() {
+        return PredictorConfiguration.builder()
+                .treeCreationStrategy(CompleteRegTree.strategy(12))
+                .build();
+    }
+
+    /**
+     * Tree of depth 3 whose left child of the root is a leaf, padded over 2 levels.
+     */
+    private static AbstractRegTree.Param unbalancedTree() {
+        return new TreeParams()
+                .split(1, 2, 0, 0.5f, true)
+                .leaf(1)
+                .split(3, 4, 1, 0, false)
+                .leaf(2)
+                .split(5, 6, 2, 1, true)
+                .leaf(3)
+                .leaf(4)
+                .build();
+    }
+
+    @Test
+    public void testPaddedLeaves() {
+        AbstractRegTree tree = new CompleteRegTree();
+        tree.loadModel(unbalancedTree());
+        AbstractRegTree expected = new PreorderRegTree();
+        expected.loadModel(unbalancedTree());
+
+        // 7 internal nodes of 2 ints, and 8 leaf values and ids, of which 4 copy leaf 1
+        assertThat(tree.sizeInBytes(), is(4L * (2 * 7 + 8 + 8)));
+
+        for (float f0 : VALUES) {
+            for (float f1 : VALUES) {
+                for (float f2 : VALUES) {
+                    FVec feat = FVec.Transformer.fromArray(new float[]{f0, f1, f2}, false);
+                    String reason = String.format("[%s, %s, %s]", f0, f1, f2);
+                    assertThat(reason, tree.getLeafIndex(feat), is(expected.getLeafIndex(feat)));
+                    assertThat(reason, tree.getLeafValue(feat), is(expected.getLeafValue(feat)));
+                    if (!(f0 >= 0.5f)) {
+                        assertThat(reason, tree.getLeafIndex(feat), is(1));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFallbackAtMaxDepth() {
+        assertThat(CompleteRegTree.strategy(3).apply(unbalancedTree()), is(instanceOf(CompleteRegTree.class)));
+        assertThat(CompleteRegTree.strategy(2).apply(unbalancedTree()), is(instanceOf(PreorderRegTree.class)));
+
+        // A single leaf is a complete tree of depth 0
+        AbstractRegTree.Param stump = new TreeParams().leaf(5).build();
+        AbstractRegTree tree = CompleteRegTree.strategy(0).apply(stump);
+        assertThat(tree, is(instanceOf(CompleteRegTree.class)));
+        tree.loadModel(stump);
+        FVec feat = FVec.Transformer.fromArray(new float[]{1}, false);
+        assertThat(tree.getLeafIndex(feat), is(0));
+        assertThat(tree.getLeafValue(feat), is(5.0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsTooLargeMaxDepth() {
+        CompleteRegTree.strategy(31);
+    }
+}
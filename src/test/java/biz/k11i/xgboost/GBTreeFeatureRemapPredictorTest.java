@@ -0,0 +1,50 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.util.FVec;
+import biz.k11i.xgboost.util.FeatureRemap;
+
+import org.junit.Test;
+import org.junit.experimental.theories.Theories;
+import org.junit.runner.RunWith;
+
+import java.util.BitSet;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(Theories.class)
+public class GBTreeFeatureRemapPredictorTest extends GBTreePredictorTest {
+
+    @Override
+    protected PredictorConfiguration configuration() {
+        return PredictorConfiguration.builder()
+                .remapFeatures(true)
+                .build();
+    }
+
+    @Test
+    public void testFeatureRemap() {
+        BitSet usedFeatures = new BitSet();
+        usedFeatures.set(3);
+        usedFeatures.set(100);
+        usedFeatures.set(7);
+        FeatureRemap remap = FeatureRemap.fromUsedFeatures(usedFeatures);
+
+        assertThat(remap.size(), is(3));
+        assertThat(remap.compactIndex(3), is(0));
+        assertThat(remap.compactIndex(7), is(1));
+        assertThat(remap.compactIndex(100), is(2));
+        assertThat(remap.compactIndex(4), is(-1));
+        assertThat(remap.originalIndex(2), is(100));
+
+        float[] values = new float[101];
+        values[3] = 1f;
+        values[100] = 2f;
+        FVec gathered = remap.newGathered().gather(FVec.Transformer.fromArray(values, true));
+        assertThat(gathered.floatValue(0), is(1f));
+        assertTrue(FVec.isMissing(gathered.floatValue(1)));
+        assertThat(gathered.floatValue(2), is(2f));
+    }
+}
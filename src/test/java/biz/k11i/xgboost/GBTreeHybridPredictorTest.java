@@ -0,0 +1,143 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.tree.AbstractRegTree;
+import biz.k11i.xgboost.tree.HybridRegTree;
+import biz.k11i.xgboost.tree.PreorderRegTree;
+import biz.k11i.xgboost.util.FVec;
+
+import org.junit.Test;
+import org.junit.experimental.theories.Theories;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+@RunWith(Theories.class)
+public class GBTreeHybridPredictorTest extends GBTreePredictorTest {
+    // A line of 4 nodes of 4 ints
+    private static final int LINE_INTS = 16;
+    private static final float[] VALUES = {-1, 1, Float.NaN};
+
+    @Override
+    protected PredictorConfiguration configuration() {
+        return PredictorConfiguration.builder()
+                .treeCreationStrategy(HybridRegTree.strategy(HybridRegTree.DEFAULT_TOP_LEVELS))
+                .build();
+    }
+
+    /**
+     * Exposes the node indices an evaluation goes through.
+     */
+    static class ProbedTree extends HybridRegTree {
+        ProbedTree(int topLevels) {
+            super(topLevels);
+        }
+
+        List<Integer> path(FVec feat) {
+            List<Integer> result = new ArrayList<>();
+            int node = getRootNode();
+            result.add(node);
+            while (!isLeafNode(node)) {
+                node = getNextNode(node, feat);
+                result.add(node);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Complete tree of depth 3 splitting feature {@code d} at depth {@code d}, whose leftmost path
+     * has the highest cover.
+     */
+    private static AbstractRegTree.Param completeTree() {
+        return new TreeParams()
+                .split(1, 2, 0, 0, true, 100)
+                .split(3, 4, 1, 0, false, 90)
+                .split(5, 6, 1, 0, true, 10)
+                .split(7, 8, 2, 0, true, 80)
+                .split(9, 10, 2, 0, false, 10)
+                .split(11, 12, 2, 0, true, 5)
+                .split(13, 14, 2, 0, false, 5)
+                .leaf(1, 70).leaf(2, 10).leaf(3, 5).leaf(4, 5)
+                .leaf(5, 3).leaf(6, 2).leaf(7, 3).leaf(8, 2)
+                .build();
+    }
+
+    private static ProbedTree load(int topLevels) {
+        ProbedTree tree = new ProbedTree(topLevels);
+        tree.loadModel(completeTree());
+        return tree;
+    }
+
+    private static FVec feat(float f0, float f1, float f2) {
+        return FVec.Transformer.fromArray(new float[]{f0, f1, f2}, false);
+    }
+
+    @Test
+    public void testLinesAreEnteredAtAlignedStarts() {
+        AbstractRegTree expected = new PreorderRegTree();
+        expected.loadModel(completeTree());
+
+        for (int topLevels : new int[]{0, 1, 2}) {
+            ProbedTree tree = load(topLevels);
+            assertThat(tree.sizeInBytes() % (4 * LINE_INTS), is(0L));
+
+            for (float f0 : VALUES) {
+                for (float f1 : VALUES) {
+                    for (float f2 : VALUES) {
+                        FVec feat = feat(f0, f1, f2);
+                        String reason = String.format("topLevels=%d, [%s, %s, %s]", topLevels, f0, f1, f2);
+                        assertThat(reason, tree.getLeafIndex(feat), is(expected.getLeafIndex(feat)));
+                        assertThat(reason, tree.getLeafValue(feat), is(expected.getLeafValue(feat)));
+
+                        // Below the top levels, a path only enters a line at its first node
+                        List<Integer> path = tree.path(feat);
+                        for (int depth = Math.max(topLevels, 1); depth < path.size(); depth++) {
+                            int from = path.get(depth - 1);
+                            int to = path.get(depth);
+                            if (from / LINE_INTS != to / LINE_INTS || depth == topLevels) {
+                                assertThat(reason + ", depth " + depth, to % LINE_INTS, is(0));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWithoutTopLevels() {
+        ProbedTree tree = load(0);
+
+        // The hottest path fills the line of the root
+        assertThat(tree.path(feat(-1, -1, -1)), contains(0, 4, 8, 12));
+        // The colder child of the root starts the next line
+        assertThat(tree.path(feat(1, -1, -1)).get(1), is(LINE_INTS));
+
+        // A single leaf is a line of its own
+        ProbedTree leaf = new ProbedTree(0);
+        leaf.loadModel(new TreeParams().leaf(5).build());
+        assertThat(leaf.path(feat(-1, -1, -1)), contains(0));
+        assertThat(leaf.getLeafValue(feat(-1, -1, -1)), is(5.0));
+        assertThat(leaf.sizeInBytes(), is(4L * LINE_INTS));
+    }
+
+    @Test
+    public void testOnlyTopLevels() {
+        ProbedTree tree = load(64);
+
+        // Breadth first order with no padding between levels
+        assertThat(tree.path(feat(1, 1, 1)), contains(0, 8, 24, 56));
+        assertThat(tree.sizeInBytes(), is(4L * 4 * LINE_INTS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativeTopLevels() {
+        HybridRegTree.strategy(-1);
+    }
+}
@@ -0,0 +1,78 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.config.PredictorConfiguration;
+
+import org.junit.Test;
+import org.junit.experimental.theories.Theories;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+@RunWith(Theories.class)
+public class GBTreeParallelTreesPredictorTest extends GBTreePredictorTest {
+
+    @Override
+    protected PredictorConfiguration configuration() {
+        return PredictorConfiguration.builder()
+                .parallelTreeThreshold(1)
+                .parallelTreeSegmentSize(1)
+                .build();
+    }
+
+    @Test
+    public void testSameAsSequential() throws IOException {
+        String modelPath = "model/gbtree/v47/multi-softprob.model";
+        BatchPredictionTest.DenseData data = BatchPredictionTest.loadDenseData("model/agaricus.txt.test");
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            Predictor sequential = newPredictor(modelPath);
+            Predictor parallel = newPredictor(modelPath, PredictorConfiguration.builder()
+                    .parallelTreeThreshold(2)
+                    .parallelTreeSegmentSize(3)
+                    .parallelTreePool(pool)
+                    .remapFeatures(true)
+                    .build());
+
+            for (int i = 0; i < data.numRows; i++) {
+                assertThat(parallel.predict(data.row(i), true), is(sequential.predict(data.row(i), true)));
+                assertThat(parallel.predict(data.row(i)), is(sequential.predict(data.row(i))));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testPredictionsRunningOnThePool() throws Exception {
+        String modelPath = "model/gbtree/v47/multi-softprob.model";
+        BatchPredictionTest.DenseData data = BatchPredictionTest.loadDenseData("model/agaricus.txt.test");
+
+        // Workers predicting rows also evaluate segments of other predictions while they wait
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Predictor sequential = newPredictor(modelPath);
+            Predictor parallel = newPredictor(modelPath, PredictorConfiguration.builder()
+                    .parallelTreeThreshold(1)
+                    .parallelTreeSegmentSize(1)
+                    .parallelTreePool(pool)
+                    .build());
+
+            pool.submit(() -> IntStream.range(0, data.numRows).parallel().forEach(i ->
+                    assertThat(parallel.predict(data.row(i), true), is(sequential.predict(data.row(i), true)))))
+                    .get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsInvalidSegmentSize() {
+        PredictorConfiguration.builder().parallelTreeSegmentSize(0);
+    }
+}
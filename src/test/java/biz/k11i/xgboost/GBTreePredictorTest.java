@@ -1,5 +1,6 @@
 package biz.k11i.xgboost;
 
+import biz.k11i.xgboost.config.PredictorConfiguration;
 import biz.k11i.xgboost.learner.ObjFunction;
 
 import org.junit.After;
@@ -10,6 +11,7 @@ import org.junit.experimental.theories.Theory;
 import org.junit.runner.RunWith;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 @RunWith(Theories.class)
 public class GBTreePredictorTest extends PredictorTest {
@@ -38,7 +40,7 @@ public class GBTreePredictorTest extends PredictorTest {
 
         ObjFunction.useFastMathExp(useJafama);
         String path = "model/" + MODEL_TYPE + "/" + modelNameWithVersion(version, modelName) + ".model";
-        final Predictor predictor = newPredictor(path);
+        final Predictor predictor = newPredictor(path, configuration());
 
         verifyDouble(MODEL_TYPE, modelNameWithVersion(version, modelName), "predict",
             predictor::predict);
@@ -49,6 +51,21 @@ public class GBTreePredictorTest extends PredictorTest {
         verifyDouble(MODEL_TYPE, modelNameWithVersion(version, modelName), "margin",
             feat -> predictor.predict(feat, true));
 
+        // test predict() into caller-provided arrays
+        verifyDouble(MODEL_TYPE, modelNameWithVersion(version, modelName), "predict",
+            feat -> {
+                double[] out = new double[predictor.getPredictionSize(false) + 2];
+                int size = predictor.predict(feat, false, 0, out, 2);
+                return Arrays.copyOfRange(out, 2, 2 + size);
+            });
+
+        verifyDouble(MODEL_TYPE, modelNameWithVersion(version, modelName), "margin",
+            feat -> {
+                double[] out = new double[predictor.getPredictionSize(true)];
+                predictor.predict(feat, true, 0, out, 0);
+                return out;
+            });
+
         if (modelName.startsWith("binary-")) {
             // test predictSingle()
             verifyDouble(MODEL_TYPE, modelNameWithVersion(version, modelName), "predict",
@@ -60,6 +77,17 @@ public class GBTreePredictorTest extends PredictorTest {
 
         verifyInt(MODEL_TYPE, modelNameWithVersion(version, modelName), "leaf_ntree",
             feat -> predictor.predictLeaf(feat, 2));
+
+        verifyInt(MODEL_TYPE, modelNameWithVersion(version, modelName), "leaf_ntree",
+            feat -> {
+                int[] out = new int[3];
+                int size = predictor.predictLeaf(feat, 2, out, 1);
+                return Arrays.copyOfRange(out, 1, 1 + size);
+            });
+    }
+
+    protected PredictorConfiguration configuration() {
+        return PredictorConfiguration.DEFAULT;
     }
 
     @After
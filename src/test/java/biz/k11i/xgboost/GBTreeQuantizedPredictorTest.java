@@ -0,0 +1,90 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.tree.AbstractRegTree;
+import biz.k11i.xgboost.tree.ForestEngine;
+import biz.k11i.xgboost.tree.PreorderRegTree;
+import biz.k11i.xgboost.tree.QuantizedForest;
+import biz.k11i.xgboost.util.FVec;
+
+import org.junit.Test;
+import org.junit.experimental.theories.Theories;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+@RunWith(Theories.class)
+public class GBTreeQuantizedPredictorTest extends GBTreePredictorTest {
+
+    @Override
+    protected PredictorConfiguration configuration() {
+        return PredictorConfiguration.builder()
+                .forestEngine(QuantizedForest.factory())
+                .build();
+    }
+
+    /**
+     * Trees sharing thresholds 0, 0.5 and 1 of feature 0 with both default directions, and
+     * splitting feature 1 at -1. Leaf values are powers of 2, so that sums tell the leaves apart.
+     */
+    private static AbstractRegTree.Param[] forest() {
+        return new AbstractRegTree.Param[]{
+                new TreeParams()
+                        .split(1, 2, 0, 0.5f, true)
+                        .leaf(1)
+                        .leaf(2)
+                        .build(),
+                new TreeParams()
+                        .split(1, 4, 0, 1, false)
+                        .split(2, 3, 0, 0, true)
+                        .leaf(4)
+                        .leaf(8)
+                        .leaf(16)
+                        .build(),
+                new TreeParams()
+                        .split(1, 2, 1, -1, false)
+                        .leaf(32)
+                        .leaf(64)
+                        .build(),
+        };
+    }
+
+    @Test
+    public void testBinEdges() {
+        AbstractRegTree.Param[] params = forest();
+        AbstractRegTree[] trees = new AbstractRegTree[params.length];
+        for (int t = 0; t < params.length; t++) {
+            trees[t] = new PreorderRegTree();
+            trees[t].loadModel(forest()[t]);
+        }
+        ForestEngine engine = QuantizedForest.factory().create(params, trees);
+
+        // Each threshold, its neighbouring floats and values outside of all bins
+        List<Float> values = new ArrayList<>();
+        for (float threshold : new float[]{-1, 0, 0.5f, 1}) {
+            values.add(Math.nextDown(threshold));
+            values.add(threshold);
+            values.add(Math.nextUp(threshold));
+        }
+        values.add(-0f);
+        values.add(Float.NEGATIVE_INFINITY);
+        values.add(Float.POSITIVE_INFINITY);
+        values.add(Float.NaN);
+
+        for (float f0 : values) {
+            for (float f1 : values) {
+                FVec feat = FVec.Transformer.fromArray(new float[]{f0, f1}, false);
+                float expected = 0;
+                for (int t = 0; t < trees.length; t++) {
+                    expected += (float) trees[t].getLeafValue(feat);
+                    assertThat(String.format("[%s, %s], %d trees", f0, f1, t + 1),
+                            engine.predict(feat, t + 1), is((double) expected));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.tree.QuickScorer;
+
+import org.junit.Test;
+import org.junit.experimental.theories.Theories;
+import org.junit.runner.RunWith;
+
+@RunWith(Theories.class)
+public class GBTreeQuickScorerPredictorTest extends GBTreePredictorTest {
+
+    @Override
+    protected PredictorConfiguration configuration() {
+        return PredictorConfiguration.builder()
+                .forestEngine(QuickScorer.factory())
+                .build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativeBlockSize() {
+        QuickScorer.factory(-1);
+    }
+}
@@ -33,7 +33,7 @@ public class GBTreeRankNDCGPredictorTest extends GBTreePredictorTest {
   ) throws IOException {
     ObjFunction.useFastMathExp(useJafama);
     String path = "model/" + MODEL_TYPE + "/" + modelNameWithVersion(version, modelName) + ".model";
-    final Predictor predictor = newPredictor(path);
+    final Predictor predictor = newPredictor(path, configuration());
 
     verifyDouble(
         MODEL_TYPE,
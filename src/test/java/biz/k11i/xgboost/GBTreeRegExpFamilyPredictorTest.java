@@ -35,7 +35,7 @@ public class GBTreeRegExpFamilyPredictorTest extends GBTreePredictorTest {
   ) throws IOException {
     ObjFunction.useFastMathExp(useJafama);
     String path = "model/" + MODEL_TYPE + "/" + modelNameWithVersion(version, modelName) + ".model";
-    final Predictor predictor = newPredictor(path);
+    final Predictor predictor = newPredictor(path, configuration());
 
     verifyDouble(
         MODEL_TYPE,
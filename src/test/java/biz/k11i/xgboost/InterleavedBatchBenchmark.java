@@ -0,0 +1,149 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.tree.AbstractRegTree;
+import biz.k11i.xgboost.tree.CompactRegTree;
+import biz.k11i.xgboost.tree.PreorderRegTree;
+import biz.k11i.xgboost.util.FMatrix;
+import biz.k11i.xgboost.util.FVec;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Compares batch prediction advancing 2 to 16 rows through each tree in lockstep with
+ * row-at-a-time scoring, on the test models and on a random forest too large for the caches. Run
+ * with
+ * {@code mvn test -Djacoco.skip=true -Dtest=InterleavedBatchBenchmark}.
+ *
+ * @see Benchmark
+ */
+public class InterleavedBatchBenchmark {
+    private static final int[] INTERLEAVED_ROWS = {1, 2, 4, 8, 16};
+
+    @Test
+    public void poisson() throws Exception {
+        benchmark("poisson");
+    }
+
+    @Test
+    public void tweedie12() throws Exception {
+        benchmark("tweedie12");
+    }
+
+    /**
+     * Evaluates 400 random trees of depth 10, about 5 MB of {@link PreorderRegTree} nodes, the
+     * same way as batch prediction does.
+     */
+    @Test
+    public void largeForest() {
+        Random random = new Random(0);
+        int numFeatures = 100;
+        AbstractRegTree[] trees = new AbstractRegTree[400];
+        for (int t = 0; t < trees.length; t++) {
+            trees[t] = new PreorderRegTree();
+            trees[t].loadModel(randomTree(10, numFeatures, random));
+        }
+
+        int numRows = 1024;
+        FVec[] rows = new FVec[numRows];
+        for (int i = 0; i < numRows; i++) {
+            float[] values = new float[numFeatures];
+            for (int j = 0; j < numFeatures; j++) {
+                values[j] = random.nextFloat();
+            }
+            rows[i] = FVec.Transformer.fromArray(values, false);
+        }
+
+        for (int width : INTERLEAVED_ROWS) {
+            FVec[][] groups = new FVec[numRows / width][];
+            for (int g = 0; g < groups.length; g++) {
+                groups[g] = Arrays.copyOfRange(rows, g * width, (g + 1) * width);
+            }
+            int[] nodes = new int[width];
+            double[] values = new double[width];
+            float[] out = new float[numRows];
+
+            Benchmark.measure("large forest, PreorderRegTree, interleavedRows=" + width, numRows, () -> {
+                Arrays.fill(out, 0);
+                for (AbstractRegTree tree : trees) {
+                    if (width == 1) {
+                        for (int i = 0; i < numRows; i++) {
+                            out[i] += (float) tree.getLeafValue(rows[i]);
+                        }
+                        continue;
+                    }
+                    for (int g = 0; g < groups.length; g++) {
+                        tree.getLeafValues(groups[g], width, nodes, values);
+                        for (int k = 0; k < width; k++) {
+                            out[g * width + k] += (float) values[k];
+                        }
+                    }
+                }
+                return out[0];
+            });
+        }
+    }
+
+    /**
+     * Builds a complete tree with random splits, numbering the nodes in BFS order.
+     */
+    private static AbstractRegTree.Param randomTree(int depth, int numFeatures, Random random) {
+        TreeParams params = new TreeParams();
+        int numSplits = (1 << depth) - 1;
+        for (int i = 0; i < numSplits; i++) {
+            params.split(2 * i + 1, 2 * i + 2, random.nextInt(numFeatures), random.nextFloat(), random.nextBoolean());
+        }
+        for (int i = 0; i <= numSplits; i++) {
+            params.leaf(random.nextFloat());
+        }
+        return params.build();
+    }
+
+    private static void benchmark(String modelName) throws Exception {
+        BatchPredictionTest.DenseData data = BatchPredictionTest.loadDenseData("model/agaricus_new.txt.test");
+        FMatrix batch = FMatrix.Transformer.fromDense(
+                data.values, data.numRows, data.numCols, data.numCols, Float.NaN);
+        FVec[] rows = new FVec[data.numRows];
+        for (int i = 0; i < data.numRows; i++) {
+            rows[i] = data.row(i);
+        }
+
+        benchmark(modelName, "CompactRegTree", CompactRegTree.strategy(CompactRegTree.LeafEncoding.FLOAT),
+                batch, rows);
+        benchmark(modelName, "PreorderRegTree", param -> new PreorderRegTree(), batch, rows);
+    }
+
+    private static void benchmark(
+            String modelName, String treeName, Function<AbstractRegTree.Param, AbstractRegTree> strategy,
+            FMatrix batch, FVec[] rows) throws Exception {
+        String prefix = modelName + ", " + treeName + ", ";
+        String modelPath = "model/gbtree/v80/" + modelName + ".model";
+
+        Predictor predictor = PredictorTest.newPredictor(modelPath,
+                PredictorConfiguration.builder().treeCreationStrategy(strategy).build());
+        Benchmark.measure(prefix + "predictSingle", rows.length, () -> {
+            double sum = 0;
+            for (FVec row : rows) {
+                sum += predictor.predictSingle(row);
+            }
+            return sum;
+        });
+
+        double[] out = new double[batch.numRows()];
+        for (int interleavedRows : INTERLEAVED_ROWS) {
+            Predictor interleaved = PredictorTest.newPredictor(modelPath,
+                    PredictorConfiguration.builder()
+                            .treeCreationStrategy(strategy)
+                            .interleavedRows(interleavedRows)
+                            .build());
+            Benchmark.measure(prefix + "batch, interleavedRows=" + interleavedRows, batch.numRows(), () -> {
+                interleaved.predict(batch, out);
+                return out[0];
+            });
+        }
+    }
+}
@@ -1,10 +1,14 @@
 package biz.k11i.xgboost;
 
+import biz.k11i.xgboost.gbm.GBTree;
+
 import org.junit.Test;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectOutputStream;
 
 public class ModelLoadingTest {
     private static final String MODEL_PATH = "model/gbtree/v80/poisson.model";
@@ -25,6 +29,14 @@ public class ModelLoadingTest {
         }
     }
 
+    @Test
+    public void testDefaultGBTreeIsSerializable() throws IOException {
+        // The default tree creation strategy is serialized along with the trees
+        try (ObjectOutputStream out = new ObjectOutputStream(new ByteArrayOutputStream())) {
+            out.writeObject(new GBTree());
+        }
+    }
+
     static class LazyInputStream extends InputStream {
         private final InputStream in;
 
@@ -1,5 +1,6 @@
 package biz.k11i.xgboost;
 
+import biz.k11i.xgboost.config.PredictorConfiguration;
 import biz.k11i.xgboost.util.FVec;
 
 import org.junit.Before;
@@ -63,8 +64,12 @@ public abstract class PredictorTest {
     }
 
     static Predictor newPredictor(String resourceName) throws IOException {
+        return newPredictor(resourceName, PredictorConfiguration.DEFAULT);
+    }
+
+    static Predictor newPredictor(String resourceName, PredictorConfiguration configuration) throws IOException {
         try (InputStream stream = PredictorTest.class.getResourceAsStream(resourceName)) {
-            return new Predictor(stream);
+            return new Predictor(stream, configuration);
         }
     }
 
@@ -0,0 +1,143 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.util.FVec;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the sparse FVecs on rows with 50 to 3000 non-missing values out of a million feature
+ * ids. Run with {@code mvn test -Djacoco.skip=true -Dtest=SparseFVecBenchmark}.
+ *
+ * @see Benchmark
+ */
+public class SparseFVecBenchmark {
+    private static final int NUM_FEATURES = 1_000_000;
+    private static final int NUM_PROBES = 1024;
+
+    /**
+     * Sparse row with the same values as a map, sorted arrays and a hash FVec.
+     */
+    private static class Row {
+        final int[] indices;
+        final float[] values;
+        final Map<Integer, Float> map = new HashMap<>();
+
+        Row(int numValues, Random random) {
+            indices = random.ints(0, NUM_FEATURES).distinct().limit(numValues).sorted().toArray();
+            values = new float[numValues];
+            for (int i = 0; i < numValues; i++) {
+                values[i] = random.nextFloat();
+                map.put(indices[i], values[i]);
+            }
+        }
+
+        FVec.FVecHashImpl toHashFVec() {
+            FVec.FVecHashImpl fvec = FVec.Transformer.newHashFVec(indices.length);
+            for (int i = 0; i < indices.length; i++) {
+                fvec.set(indices[i], values[i]);
+            }
+            return fvec;
+        }
+    }
+
+    /**
+     * Feature ids looked up: half of them present in the row, the others random.
+     */
+    private static int[] probes(Row row, Random random) {
+        int[] probes = new int[NUM_PROBES];
+        for (int i = 0; i < NUM_PROBES; i++) {
+            probes[i] = i % 2 == 0
+                    ? row.indices[random.nextInt(row.indices.length)]
+                    : random.nextInt(NUM_FEATURES);
+        }
+        return probes;
+    }
+
+    private static double lookUp(FVec fvec, int[] probes) {
+        double sum = 0;
+        for (int index : probes) {
+            float value = fvec.floatValue(index);
+            if (!FVec.isMissing(value)) {
+                sum += value;
+            }
+        }
+        return sum;
+    }
+
+    @Test
+    public void floatValue() {
+        Random random = new Random(0);
+        for (int numValues : new int[]{50, 300, 3000}) {
+            Row row = new Row(numValues, random);
+            int[] probes = probes(row, random);
+
+            FVec map = FVec.Transformer.fromMap(row.map);
+            FVec sparseArray = FVec.Transformer.fromSparseArray(row.indices, row.values);
+            FVec hash = row.toHashFVec();
+
+            Benchmark.measure("floatValue, " + numValues + " values, fromMap", NUM_PROBES,
+                    () -> lookUp(map, probes));
+            Benchmark.measure("floatValue, " + numValues + " values, fromSparseArray", NUM_PROBES,
+                    () -> lookUp(sparseArray, probes));
+            Benchmark.measure("floatValue, " + numValues + " values, newHashFVec", NUM_PROBES,
+                    () -> lookUp(hash, probes));
+        }
+    }
+
+    @Test
+    public void build() {
+        Random random = new Random(1);
+        for (int numValues : new int[]{50, 300, 3000}) {
+            Row row = new Row(numValues, random);
+
+            Benchmark.measure("build, " + numValues + " values, fromMap", 1,
+                    () -> FVec.Transformer.fromMap(row.map).floatValue(row.indices[0]));
+            Benchmark.measure("build, " + numValues + " values, fromSparseArray", 1,
+                    () -> FVec.Transformer.fromSparseArray(row.indices, row.values).floatValue(row.indices[0]));
+            Benchmark.measure("build, " + numValues + " values, newHashFVec", 1,
+                    () -> row.toHashFVec().floatValue(row.indices[0]));
+        }
+    }
+
+    @Test
+    public void predictSingle() throws Exception {
+        Predictor predictor = PredictorTest.newPredictor("model/gbtree/v80/poisson.model");
+        BatchPredictionTest.DenseData data = BatchPredictionTest.loadDenseData("model/agaricus_new.txt.test");
+
+        FVec[] maps = new FVec[data.numRows];
+        FVec[] sparseArrays = new FVec[data.numRows];
+        for (int i = 0; i < data.numRows; i++) {
+            float[] dense = Arrays.copyOfRange(data.values, i * data.numCols, (i + 1) * data.numCols);
+            Map<Integer, Float> map = new HashMap<>();
+            for (int j = 0; j < dense.length; j++) {
+                if (!FVec.isMissing(dense[j])) {
+                    map.put(j, dense[j]);
+                }
+            }
+            int[] indices = map.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+            float[] values = new float[indices.length];
+            for (int j = 0; j < indices.length; j++) {
+                values[j] = dense[indices[j]];
+            }
+            maps[i] = FVec.Transformer.fromMap(map);
+            sparseArrays[i] = FVec.Transformer.fromSparseArray(indices, values);
+        }
+
+        Benchmark.measure("predictSingle, poisson, fromMap", data.numRows, () -> predictAll(predictor, maps));
+        Benchmark.measure("predictSingle, poisson, fromSparseArray", data.numRows,
+                () -> predictAll(predictor, sparseArrays));
+    }
+
+    private static double predictAll(Predictor predictor, FVec[] rows) {
+        double sum = 0;
+        for (FVec row : rows) {
+            sum += predictor.predictSingle(row);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,151 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.util.FVec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.DoubleUnaryOperator;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * Verifies that early exit of threshold prediction gives exactly the same decision as full
+ * prediction.
+ */
+public class ThresholdPredictionTest {
+    private static final String[][] SINGLE_VALUE_MODELS = {
+            {"model/gbtree/v47/binary-logistic.model", "model/agaricus.txt.test"},
+            {"model/gbtree/v47/rank-pairwise.model", "model/mq2008.test"},
+            {"model/gbtree/v80/poisson.model", "model/agaricus_new.txt.test"},
+    };
+
+    @Test
+    public void testSameAsFullPrediction() throws IOException {
+        for (String[] model : SINGLE_VALUE_MODELS) {
+            Predictor predictor = PredictorTest.newPredictor(model[0]);
+            BatchPredictionTest.DenseData data = BatchPredictionTest.loadDenseData(model[1]);
+
+            for (boolean outputMargin : new boolean[]{false, true}) {
+                for (int ntreeLimit : new int[]{0, 1}) {
+                    double[] predictions = new double[data.numRows];
+                    for (int i = 0; i < data.numRows; i++) {
+                        predictions[i] = predictor.predictSingle(data.row(i), outputMargin, ntreeLimit);
+                    }
+
+                    // Thresholds around and exactly at the predictions
+                    double[] sorted = predictions.clone();
+                    Arrays.sort(sorted);
+                    double[] thresholds = {
+                            sorted[0] - 1, sorted[0], sorted[sorted.length / 4], sorted[sorted.length / 2],
+                            Math.nextUp(sorted[sorted.length / 2]), sorted[sorted.length - 1], sorted[sorted.length - 1] + 1};
+
+                    for (int i = 0; i < data.numRows; i++) {
+                        FVec row = data.row(i);
+                        for (double threshold : thresholds) {
+                            ThresholdPrediction result =
+                                    predictor.predictAboveThreshold(row, threshold, outputMargin, ntreeLimit);
+                            assertThat(
+                                    String.format("%s, row %d, threshold %s", model[0], i, threshold),
+                                    result.isAboveThreshold(), is(predictions[i] > threshold));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEarlyExit() throws IOException {
+        Predictor predictor = PredictorTest.newPredictor("model/gbtree/v80/poisson.model");
+        BatchPredictionTest.DenseData data = BatchPredictionTest.loadDenseData("model/agaricus_new.txt.test");
+
+        long evaluatedTrees = 0;
+        for (int i = 0; i < data.numRows; i++) {
+            FVec row = data.row(i);
+            ThresholdPrediction result = predictor.predictAboveThreshold(row, 1e6);
+            assertThat(result.isAboveThreshold(), is(false));
+            assertThat(result.getEvaluatedTrees(), is(lessThanOrEqualTo(500)));
+            evaluatedTrees += result.getEvaluatedTrees();
+        }
+        assertThat(evaluatedTrees, is(lessThan(500L * data.numRows)));
+    }
+
+    @Test
+    public void testMarginThresholdIsExactBoundary() {
+        int[] calls = {0};
+        DoubleUnaryOperator sigmoid = x -> {
+            calls[0]++;
+            return 1.0f / (1.0f + (float) Math.exp(-((float) x)));
+        };
+
+        for (double threshold : new double[]{0.5, 0.1, 0.9, 1e-30, 0.99999}) {
+            calls[0] = 0;
+            MarginThreshold marginThreshold = new MarginThreshold(sigmoid, threshold);
+            // Found by bisection over the 64 bits of double, not by a search per prediction
+            assertThat(calls[0], is(lessThanOrEqualTo(66)));
+
+            double above = marginThreshold.getAboveMargin();
+            double notAbove = marginThreshold.getNotAboveMargin();
+            String reason = "threshold " + threshold;
+            assertThat(reason, Math.nextDown(above), is(notAbove));
+            assertThat(reason, sigmoid.applyAsDouble(above) > threshold, is(true));
+            assertThat(reason, sigmoid.applyAsDouble(notAbove) > threshold, is(false));
+            assertThat(reason, marginThreshold.isAbove(above), is(true));
+            assertThat(reason, marginThreshold.isAbove(notAbove), is(false));
+        }
+
+        // Boundary across zero, where -0.0 comes right below 0.0
+        MarginThreshold margin = new MarginThreshold(DoubleUnaryOperator.identity(), 0);
+        assertThat(margin.getNotAboveMargin(), is(0.0));
+        assertThat(margin.getAboveMargin(), is(Double.MIN_VALUE));
+    }
+
+    @Test
+    public void testMarginThresholdOutOfRange() {
+        DoubleUnaryOperator sigmoid = x -> 1 / (1 + Math.exp(-x));
+
+        // No margin is above
+        MarginThreshold never = new MarginThreshold(sigmoid, 1);
+        assertThat(Double.isNaN(never.getAboveMargin()), is(true));
+        assertThat(never.getNotAboveMargin(), is(Double.POSITIVE_INFINITY));
+
+        // Every margin is above
+        MarginThreshold always = new MarginThreshold(sigmoid, -1);
+        assertThat(always.getAboveMargin(), is(Double.NEGATIVE_INFINITY));
+        assertThat(Double.isNaN(always.getNotAboveMargin()), is(true));
+    }
+
+    @Test
+    public void testOutOfRangeThresholdsExitBeforeAnyTree() throws IOException {
+        Predictor predictor = PredictorTest.newPredictor("model/gbtree/v47/binary-logistic.model");
+        BatchPredictionTest.DenseData data = BatchPredictionTest.loadDenseData("model/agaricus.txt.test");
+
+        for (int i = 0; i < data.numRows; i++) {
+            FVec row = data.row(i);
+            ThresholdPrediction never = predictor.predictAboveThreshold(row, 1);
+            assertThat(never.isAboveThreshold(), is(false));
+            assertThat(never.getEvaluatedTrees(), is(0));
+
+            ThresholdPrediction always = predictor.predictAboveThreshold(row, -1);
+            assertThat(always.isAboveThreshold(), is(true));
+            assertThat(always.getEvaluatedTrees(), is(0));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRejectsMultipleValues() throws IOException {
+        Predictor predictor = PredictorTest.newPredictor("model/gbtree/v47/multi-softmax.model");
+        predictor.predictAboveThreshold(FVec.Transformer.fromArray(new float[]{0}, false), 0.5);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testRejectsLinearModel() throws IOException {
+        Predictor predictor = PredictorTest.newPredictor("model/gblinear/v47/binary-logistic.model");
+        predictor.predictAboveThreshold(FVec.Transformer.fromArray(new float[]{0}, false), 0.5);
+    }
+}
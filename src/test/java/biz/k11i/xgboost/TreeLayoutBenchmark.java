@@ -0,0 +1,181 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.tree.AbstractRegTree;
+import biz.k11i.xgboost.tree.HybridRegTree;
+import biz.k11i.xgboost.tree.PreorderRegTree;
+import biz.k11i.xgboost.tree.RegTree;
+import biz.k11i.xgboost.util.FVec;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Compares the tree layouts on skewed and uniform traffic, on the test models and on random
+ * forests too large for the caches. Run with
+ * {@code mvn test -Djacoco.skip=true -Dtest=TreeLayoutBenchmark}.
+ * <p>
+ * The layouts share the tree traversal of {@link AbstractRegTree}, so the first layout measured
+ * in a JVM gets the best compiled code. Run one layout per JVM, e.g.
+ * {@code -Dtest=TreeLayoutBenchmark#hybridRegTree}, to compare them on equal terms.
+ * </p>
+ *
+ * @see Benchmark
+ */
+public class TreeLayoutBenchmark {
+    private static final String[] MODELS = {"poisson", "tweedie12"};
+    private static final int NUM_RANDOM_FEATURES = 1000;
+
+    @Test
+    public void regTree() throws Exception {
+        benchmark("RegTree", param -> new RegTree());
+    }
+
+    @Test
+    public void preorderRegTree() throws Exception {
+        benchmark("PreorderRegTree", param -> new PreorderRegTree());
+    }
+
+    @Test
+    public void hybridRegTree() throws Exception {
+        benchmark("HybridRegTree(" + HybridRegTree.DEFAULT_TOP_LEVELS + ")",
+                HybridRegTree.strategy(HybridRegTree.DEFAULT_TOP_LEVELS));
+    }
+
+    private static void benchmark(
+            String treeName, Function<AbstractRegTree.Param, AbstractRegTree> strategy) throws Exception {
+        BatchPredictionTest.DenseData data = BatchPredictionTest.loadDenseData("model/agaricus_new.txt.test");
+        FVec[] skewedRows = new FVec[data.numRows];
+        for (int i = 0; i < data.numRows; i++) {
+            skewedRows[i] = data.row(i);
+        }
+        FVec[] uniformRows = uniformRows(data, new Random(0));
+
+        for (String modelName : MODELS) {
+            List<AbstractRegTree> trees = new ArrayList<>();
+            Predictor predictor = PredictorTest.newPredictor("model/gbtree/v80/" + modelName + ".model",
+                    PredictorConfiguration.builder()
+                            .treeCreationStrategy(param -> {
+                                AbstractRegTree tree = strategy.apply(param);
+                                trees.add(tree);
+                                return tree;
+                            })
+                            .build());
+
+            String prefix = modelName + ", " + treeName + ", ";
+            printNodeBytes(prefix, trees.toArray(new AbstractRegTree[0]));
+            Benchmark.measure(prefix + "skewed", skewedRows.length, () -> predictAll(predictor, skewedRows));
+            Benchmark.measure(prefix + "uniform", uniformRows.length, () -> predictAll(predictor, uniformRows));
+        }
+
+        for (boolean skewed : new boolean[]{true, false}) {
+            Random random = new Random(1);
+            AbstractRegTree[] trees = new AbstractRegTree[100];
+            for (int t = 0; t < trees.length; t++) {
+                trees[t] = strategy.apply(null);
+                trees[t].loadModel(randomTree(12, skewed, random));
+            }
+            FVec[] rows = new FVec[512];
+            for (int i = 0; i < rows.length; i++) {
+                float[] values = new float[NUM_RANDOM_FEATURES];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = random.nextFloat();
+                }
+                rows[i] = FVec.Transformer.fromArray(values, false);
+            }
+
+            String prefix = "large forest, " + treeName + ", " + (skewed ? "skewed" : "uniform");
+            printNodeBytes(prefix + ", ", trees);
+            Benchmark.measure(prefix, rows.length, () -> {
+                double sum = 0;
+                for (FVec row : rows) {
+                    float margin = 0;
+                    for (AbstractRegTree tree : trees) {
+                        margin += tree.getLeafValue(row);
+                    }
+                    sum += margin;
+                }
+                return sum;
+            });
+        }
+    }
+
+    /**
+     * Builds a complete tree with random splits, numbering the nodes in BFS order. Features are
+     * uniform in [0, 1), so a split on {@code t} sends a fraction {@code t} of the rows left, and
+     * the cover of each node is set accordingly. Skewed trees send 90% of the rows one way at each
+     * split, and uniform trees split them in half.
+     */
+    private static AbstractRegTree.Param randomTree(int depth, boolean skewed, Random random) {
+        int numSplits = (1 << depth) - 1;
+        float[] thresholds = new float[numSplits];
+        float[] covers = new float[2 * numSplits + 1];
+        covers[0] = 1;
+        for (int i = 0; i < numSplits; i++) {
+            thresholds[i] = skewed ? (random.nextBoolean() ? 0.9f : 0.1f) : 0.5f;
+            covers[2 * i + 1] = covers[i] * thresholds[i];
+            covers[2 * i + 2] = covers[i] * (1 - thresholds[i]);
+        }
+
+        TreeParams params = new TreeParams();
+        for (int i = 0; i < numSplits; i++) {
+            params.split(2 * i + 1, 2 * i + 2, random.nextInt(NUM_RANDOM_FEATURES), thresholds[i],
+                    random.nextBoolean(), covers[i]);
+        }
+        for (int i = numSplits; i < covers.length; i++) {
+            params.leaf(random.nextFloat(), covers[i]);
+        }
+        return params.build();
+    }
+
+    /**
+     * Draws each feature uniformly from the distinct values of its column, missing included, so
+     * that both branches of a split are about equally likely.
+     */
+    private static FVec[] uniformRows(BatchPredictionTest.DenseData data, Random random) {
+        float[][] columnValues = new float[data.numCols][];
+        for (int j = 0; j < data.numCols; j++) {
+            Set<Float> distinct = new LinkedHashSet<>();
+            for (int i = 0; i < data.numRows; i++) {
+                distinct.add(data.values[i * data.numCols + j]);
+            }
+            columnValues[j] = new float[distinct.size()];
+            int k = 0;
+            for (float value : distinct) {
+                columnValues[j][k++] = value;
+            }
+        }
+
+        FVec[] rows = new FVec[data.numRows];
+        for (int i = 0; i < data.numRows; i++) {
+            float[] values = new float[data.numCols];
+            for (int j = 0; j < data.numCols; j++) {
+                values[j] = columnValues[j][random.nextInt(columnValues[j].length)];
+            }
+            rows[i] = FVec.Transformer.fromArray(values, false);
+        }
+        return rows;
+    }
+
+    private static void printNodeBytes(String prefix, AbstractRegTree[] trees) {
+        long bytes = 0;
+        for (AbstractRegTree tree : trees) {
+            bytes += tree.sizeInBytes();
+        }
+        System.out.printf("%-56s %10d bytes of nodes%n", prefix + "size", bytes);
+    }
+
+    private static double predictAll(Predictor predictor, FVec[] rows) {
+        double sum = 0;
+        for (FVec row : rows) {
+            sum += predictor.predictSingle(row);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,94 @@
+package biz.k11i.xgboost;
+
+import biz.k11i.xgboost.tree.AbstractRegTree;
+import biz.k11i.xgboost.util.ModelReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds tree parameters in the binary model format, to test tree layouts on hand-written trees.
+ * Nodes are added in id order; the root is node 0.
+ */
+class TreeParams {
+    private static class Node {
+        final int left;
+        final int right;
+        final int splitIndex;
+        final boolean defaultLeft;
+        final float value;
+        final float sumHess;
+
+        Node(int left, int right, int splitIndex, boolean defaultLeft, float value, float sumHess) {
+            this.left = left;
+            this.right = right;
+            this.splitIndex = splitIndex;
+            this.defaultLeft = defaultLeft;
+            this.value = value;
+            this.sumHess = sumHess;
+        }
+    }
+
+    private final List<Node> nodes = new ArrayList<>();
+
+    /**
+     * Adds a split node sending {@code fvalue < splitCondition} to {@code left}.
+     */
+    TreeParams split(int left, int right, int splitIndex, float splitCondition, boolean defaultLeft) {
+        return split(left, right, splitIndex, splitCondition, defaultLeft, 1);
+    }
+
+    TreeParams split(int left, int right, int splitIndex, float splitCondition, boolean defaultLeft, float sumHess) {
+        nodes.add(new Node(left, right, splitIndex, defaultLeft, splitCondition, sumHess));
+        return this;
+    }
+
+    TreeParams leaf(float leafValue) {
+        return leaf(leafValue, 1);
+    }
+
+    TreeParams leaf(float leafValue, float sumHess) {
+        nodes.add(new Node(-1, -1, 0, false, leafValue, sumHess));
+        return this;
+    }
+
+    AbstractRegTree.Param build() {
+        int[] parents = new int[nodes.size()];
+        parents[0] = -1;
+        int maxSplitIndex = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            if (node.left >= 0) {
+                parents[node.left] = i | 0x80000000;
+                parents[node.right] = i;
+                maxSplitIndex = Math.max(maxSplitIndex, node.splitIndex);
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 * (37 + 9 * nodes.size())).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(1).putInt(nodes.size()).putInt(0).putInt(0).putInt(maxSplitIndex + 1).putInt(0);
+        for (int i = 0; i < 31; i++) {
+            buffer.putInt(0);
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            buffer.putInt(parents[i]).putInt(node.left).putInt(node.right)
+                    .putInt(node.splitIndex | (node.defaultLeft ? 0x80000000 : 0))
+                    .putFloat(node.value);
+        }
+        for (Node node : nodes) {
+            buffer.putFloat(0).putFloat(node.sumHess).putFloat(0).putInt(0);
+        }
+
+        try {
+            return new AbstractRegTree.Param(new ModelReader(new ByteArrayInputStream(buffer.array())));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}